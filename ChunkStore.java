@@ -0,0 +1,257 @@
+package ml_project.cn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Server-side store of deduplicated chunks (see Chunker), kept under <saveDir>/chunks:
+//
+//   pack-NNNNN.dat  chunk data, appended back to back; a new pack is started every PACK_SIZE bytes
+//   index.log       one 44-byte record per chunk: [SHA-256][location][CRC32 of both]
+//
+// The whole index lives in memory as an open-addressing hash table in a single long[]: three longs
+// per slot (the first 16 bytes of the fingerprint, then pack | offset | length), so a lookup is
+// one or two cache-line reads whatever the number of chunks, and a million chunks take ~50 MB.
+// Index records are only written after the pack data they point to has been forced, so a crash
+// can lose the newest chunks (they are simply uploaded again) but never index garbage.
+//
+// The store is append-only: chunks are never removed, so a file rebuilt from it stays valid.
+public class ChunkStore implements Closeable {
+    private static final long PACK_SIZE = 1L << 30;
+    private static final int RECORD_LENGTH = Chunker.HASH_LENGTH + 8 + 4;
+    private static final int SYNC_RECORDS = 4096; // unsynced chunks before the store forces itself
+    // Packed location: pack number (17 bits) | offset in the pack (30 bits) | length (17 bits)
+    private static final int LENGTH_BITS = 17, OFFSET_BITS = 30;
+    private static final long MAX_PACKS = 1L << (64 - OFFSET_BITS - LENGTH_BITS);
+    private static final int STRIDE = 3;
+
+    private final File dir;
+    private final List<FileChannel> packs = new ArrayList<>();
+    private final FileOutputStream indexOut;
+
+    // Guarded by 'this'
+    private long[] table = new long[1024 * STRIDE];
+    private int size = 0;
+    private long packEnd;                                 // append position in the newest pack
+    private final ByteArrayOutputStream unsynced = new ByteArrayOutputStream();
+    private int unsyncedRecords = 0;
+    private boolean closed = false;
+
+    public ChunkStore(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create chunk store " + dir);
+        for (int n = 0; packFile(n).isFile(); n++) {
+            packs.add(FileChannel.open(packFile(n).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+        }
+        if (packs.isEmpty()) newPack();
+        packEnd = packs.get(packs.size() - 1).size();
+        long valid = load(new File(dir, "index.log"));
+        // Drop a record torn by a crash, so new records line up again
+        try (RandomAccessFile raf = new RandomAccessFile(new File(dir, "index.log"), "rw")) {
+            raf.setLength(valid);
+        }
+        indexOut = new FileOutputStream(new File(dir, "index.log"), true);
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Looks up 'count' fingerprints stored back to back in 'hashes'; locations[i] receives the
+    // chunk's location, or 0 if the store does not have it
+    public synchronized void findAll(byte[] hashes, int count, long[] locations) {
+        for (int i = 0; i < count; i++) {
+            int slot = slotOf(key(hashes, i * Chunker.HASH_LENGTH), key(hashes, i * Chunker.HASH_LENGTH + 8));
+            locations[i] = table[slot + 2];
+        }
+    }
+
+    // Length of the chunk at 'location'
+    public static int length(long location) {
+        return (int) (location & ((1L << LENGTH_BITS) - 1));
+    }
+
+    // Adds a chunk whose fingerprint the caller has verified, unless the store already has it.
+    // Returns its location.
+    public long put(byte[] hash, byte[] data, int len) throws IOException {
+        if (len <= 0 || len >= (1 << LENGTH_BITS)) throw new IOException("Invalid chunk length " + len);
+        long k1 = key(hash, 0), k2 = key(hash, 8);
+        FileChannel pack;
+        long location;
+        synchronized (this) {
+            if (closed) throw new IOException("Chunk store is closed");
+            long existing = table[slotOf(k1, k2) + 2];
+            if (existing != 0) return existing;
+            if (packEnd + len > PACK_SIZE) newPack();
+            int n = packs.size() - 1;
+            pack = packs.get(n);
+            location = ((long) n << (OFFSET_BITS + LENGTH_BITS)) | (packEnd << LENGTH_BITS) | len;
+            packEnd += len;
+        }
+        // Space is reserved, so the data can be written without holding the lock. A concurrent upload of
+        // the same chunk may store a second copy; the first one indexed wins and the other is never read.
+        ByteBuffer bb = ByteBuffer.wrap(data, 0, len);
+        long pos = offset(location);
+        while (bb.hasRemaining()) {
+            pos += pack.write(bb, pos);
+        }
+        boolean sync;
+        synchronized (this) {
+            int slot = slotOf(k1, k2);
+            if (table[slot + 2] != 0) return table[slot + 2];
+            insert(slot, k1, k2, location);
+            writeRecord(unsynced, hash, location);
+            sync = ++unsyncedRecords >= SYNC_RECORDS;
+        }
+        if (sync) sync();
+        return location;
+    }
+
+    // Copies the chunk at 'location' to 'target' at 'position' (file to file, without a user-space copy)
+    public void copyTo(long location, FileChannel target, long position) throws IOException {
+        FileChannel pack;
+        synchronized (this) {
+            pack = packs.get((int) (location >>> (OFFSET_BITS + LENGTH_BITS)));
+        }
+        long pos = offset(location);
+        long left = length(location);
+        while (left > 0) {
+            long n = pack.transferTo(pos, left, target.position(position));
+            if (n <= 0) throw new EOFException("Chunk store pack is truncated");
+            pos += n;
+            position += n;
+            left -= n;
+        }
+    }
+
+    // Forces new chunk data to disk, then indexes it durably
+    public void sync() throws IOException {
+        byte[] records;
+        List<FileChannel> toForce;
+        synchronized (this) {
+            if (unsyncedRecords == 0) return;
+            records = unsynced.toByteArray();
+            unsynced.reset();
+            unsyncedRecords = 0;
+            toForce = new ArrayList<>(packs);
+        }
+        // Every record taken above points at data written before it was recorded
+        for (FileChannel pack : toForce) pack.force(false);
+        synchronized (indexOut) {
+            indexOut.write(records);
+            indexOut.getFD().sync();
+        }
+    }
+
+    @Override public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                for (FileChannel pack : packs) pack.close();
+            }
+            indexOut.close();
+        }
+    }
+
+    private File packFile(int n) {
+        return new File(dir, String.format("pack-%05d.dat", n));
+    }
+
+    private void newPack() throws IOException {
+        if (packs.size() >= MAX_PACKS) throw new IOException("Chunk store is full");
+        packs.add(FileChannel.open(packFile(packs.size()).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        packEnd = 0;
+    }
+
+    // Reads the index log into the table; returns the length of its valid prefix
+    private long load(File index) throws IOException {
+        if (!index.isFile()) return 0;
+        long valid = 0;
+        byte[] rec = new byte[RECORD_LENGTH];
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index), 1 << 16))) {
+            while (true) {
+                try {
+                    in.readFully(rec);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(rec, 0, RECORD_LENGTH - 4);
+                if ((int) crc.getValue() != ByteBuffer.wrap(rec, RECORD_LENGTH - 4, 4).getInt()) break;
+                long location = ByteBuffer.wrap(rec, Chunker.HASH_LENGTH, 8).getLong();
+                int pack = (int) (location >>> (OFFSET_BITS + LENGTH_BITS));
+                // A record the packs do not cover is skipped, not trusted
+                if (pack < packs.size() && offset(location) + length(location) <= packs.get(pack).size()) {
+                    long k1 = key(rec, 0), k2 = key(rec, 8);
+                    int slot = slotOf(k1, k2);
+                    if (table[slot + 2] == 0) insert(slot, k1, k2, location);
+                }
+                valid += RECORD_LENGTH;
+            }
+        }
+        return valid;
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, byte[] hash, long location) {
+        ByteBuffer rec = ByteBuffer.allocate(RECORD_LENGTH);
+        rec.put(hash, 0, Chunker.HASH_LENGTH).putLong(location);
+        CRC32 crc = new CRC32();
+        crc.update(rec.array(), 0, RECORD_LENGTH - 4);
+        rec.putInt((int) crc.getValue());
+        out.write(rec.array(), 0, RECORD_LENGTH);
+    }
+
+    private static long offset(long location) {
+        return (location >>> LENGTH_BITS) & ((1L << OFFSET_BITS) - 1);
+    }
+
+    private static long key(byte[] b, int off) {
+        long k = 0;
+        for (int i = 0; i < 8; i++) k = (k << 8) | (b[off + i] & 0xff);
+        return k;
+    }
+
+    // Linear probing: the slot holding (k1, k2), or the empty slot where it would go.
+    // The fingerprint is already uniformly distributed, so its bits index the table directly.
+    private int slotOf(long k1, long k2) {
+        int slots = table.length / STRIDE;
+        int i = (int) (k1 & (slots - 1));
+        while (true) {
+            int slot = i * STRIDE;
+            if (table[slot + 2] == 0 || (table[slot] == k1 && table[slot + 1] == k2)) return slot;
+            i = (i + 1) & (slots - 1);
+        }
+    }
+
+    private void insert(int slot, long k1, long k2, long location) {
+        table[slot] = k1;
+        table[slot + 1] = k2;
+        table[slot + 2] = location;
+        if (++size * 4L > (table.length / STRIDE) * 3L) grow();
+    }
+
+    // Doubles the table once it is 3/4 full
+    private void grow() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        for (int s = 0; s < old.length; s += STRIDE) {
+            if (old[s + 2] == 0) continue;
+            int slot = slotOf(old[s], old[s + 1]);
+            table[slot] = old[s];
+            table[slot + 1] = old[s + 1];
+            table[slot + 2] = old[s + 2];
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ml_project.cn;
+
+import java.io.*;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+// Content-defined chunking for deduplicated uploads.
+//
+// A gear rolling hash (as in FastCDC) runs over the data and cuts a chunk wherever the hash matches
+// a mask, so an insertion or deletion only changes the chunks around it instead of shifting every
+// boundary after it. Normalised chunking uses a stricter mask before the target size and a looser
+// one after it, which keeps chunk sizes close to the average. Chunks are between MIN_SIZE and
+// MAX_SIZE bytes (the last one may be shorter); MAX_SIZE is one segment, so every chunk can travel
+// as a single sealed segment. Each chunk is fingerprinted with SHA-256.
+//
+// The input is read once, through a buffer of a few chunks, so files of any size can be chunked.
+public final class Chunker {
+    public static final int MIN_SIZE = 8 * 1024;
+    public static final int AVG_SIZE = 32 * 1024;
+    public static final int MAX_SIZE = SegmentedAead.SEGMENT_SIZE;
+    public static final int HASH_LENGTH = 32;
+
+    private static final long MASK_STRICT = 0x0000d9f303530000L; // 17 bits set: cuts less often before AVG_SIZE
+    private static final long MASK_LOOSE = 0x0000d90303530000L;  // 13 bits set: cuts more often after it
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed: boundaries must be the same from run to run (and client to client), or the
+        // same data would be cut differently and never deduplicate
+        Random r = new Random(0x5f7c3a1d2b4e6f80L);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = r.nextLong();
+    }
+
+    private final InputStream in;
+    private final MessageDigest sha = sha256();
+    private final byte[] buf = new byte[4 * MAX_SIZE];
+    private int start = 0, end = 0; // unconsumed bytes are buf[start, end)
+    private boolean eof = false;
+    private long offset = 0;        // file offset of the current chunk
+    private int length = 0;         // length of the current chunk
+    private final byte[] hash = new byte[HASH_LENGTH];
+
+    // Cuts the data read from 'in' into chunks, one per next() call
+    public Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    // Advances to the next chunk and fingerprints it; false once the input is exhausted
+    public boolean next() throws IOException {
+        offset += length;
+        start += length;
+        length = 0;
+        if (!eof && end - start < MAX_SIZE) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            start = 0;
+            int r;
+            while (end < buf.length && (r = in.read(buf, end, buf.length - end)) != -1) end += r;
+            eof = end < buf.length;
+        }
+        if (start == end) return false;
+        length = cut(buf, start, end - start);
+        sha.update(buf, start, length);
+        try {
+            sha.digest(hash, 0, HASH_LENGTH);
+        } catch (DigestException e) {
+            throw new IOException(e);
+        }
+        return true;
+    }
+
+    public long offset() {
+        return offset;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // SHA-256 of the current chunk (overwritten by the next call to next())
+    public byte[] hash() {
+        return hash;
+    }
+
+    // Length of the chunk starting at buf[off], given 'len' bytes available (all that is left at EOF)
+    static int cut(byte[] buf, int off, int len) {
+        if (len <= MIN_SIZE) return len;
+        int limit = Math.min(len, MAX_SIZE);
+        int normal = Math.min(limit, AVG_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[buf[off + i] & 0xff];
+            if ((hash & MASK_STRICT) == 0) return i + 1;
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[buf[off + i] & 0xff];
+            if ((hash & MASK_LOOSE) == 0) return i + 1;
+        }
+        return limit;
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
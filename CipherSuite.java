@@ -0,0 +1,287 @@
+package ml_project.cn;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.*;
+
+// AEAD cipher suites a transfer can be encrypted with. All of them take a 12-byte nonce and a
+// 16-byte tag, so the segment layout (see SegmentedAead) is the same whichever one is used.
+//
+// The client lists the suites it accepts in the handshake order it prefers them, the server answers
+// with its own list, and the client picks the suite both rank best (see negotiate()). The choice is
+// sent in each transfer header. The handshake agrees on one 256-bit key; every suite but AES-256-GCM
+// uses a key derived from it, so a suite never shares key material with another.
+//
+//   sft.ciphers             comma-separated suites in order of preference (default: all available,
+//                           AES-256-GCM first)
+//   sft.ciphers.calibrate   true to rank the suites by measuring them on this CPU at startup
+//
+// AES-GCM is fastest where the CPU has AES instructions; ChaCha20-Poly1305 usually wins where it has not.
+public enum CipherSuite {
+    AES_256_GCM(1, "AES-256-GCM", "AES/GCM/NoPadding", "AES", 32),
+    AES_128_GCM(2, "AES-128-GCM", "AES/GCM/NoPadding", "AES", 16),
+    CHACHA20_POLY1305(3, "ChaCha20-Poly1305", "ChaCha20-Poly1305", "ChaCha20", 32);
+
+    public static final CipherSuite DEFAULT = AES_256_GCM;
+    // Calibration budget for the measured rounds; they usually end sooner, once the rates are stable
+    private static final int CALIBRATION_MILLIS = Integer.getInteger("sft.ciphers.calibrateMillis", 2000);
+    private static final int CALIBRATION_SLICE_MILLIS = 20;
+    // Small messages sealed per suite before measuring, so the JIT compiles (and switches to the CPU's
+    // AES instructions) after a fraction of the time full segments would take
+    private static final int WARMUP_MESSAGES = 20000;
+    private static final int WARMUP_MESSAGE_SIZE = 1024;
+
+    private static volatile List<CipherSuite> preferred;
+    private static volatile List<Calibration> calibrated;
+
+    public final int id;
+    public final String displayName;
+    final String transformation;
+    private final String keyAlgorithm;
+    public final int keyLength; // bytes
+
+    CipherSuite(int id, String displayName, String transformation, String keyAlgorithm, int keyLength) {
+        this.id = id;
+        this.displayName = displayName;
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+        this.keyLength = keyLength;
+    }
+
+    @Override public String toString() {
+        return displayName;
+    }
+
+    // Cipher parameters for one message under 'nonce'
+    AlgorithmParameterSpec parameters(byte[] nonce) {
+        return this == CHACHA20_POLY1305 ? new IvParameterSpec(nonce) : new GCMParameterSpec(Crypto.GCM_TAG_LENGTH * 8, nonce);
+    }
+
+    public SecretKey key(byte[] keyBytes) {
+        return new SecretKeySpec(keyBytes, keyAlgorithm);
+    }
+
+    // Key this suite encrypts with, from the key the handshake agreed on. AES-256-GCM uses it as it
+    // is (so transfers look exactly as before suites existed); the others use HMAC(key, label).
+    public SecretKey transferKey(SecretKey agreed) throws GeneralSecurityException {
+        if (this == AES_256_GCM) return agreed;
+        byte[] derived = Crypto.hmacSha256(agreed.getEncoded(), ("sft suite " + displayName).getBytes(StandardCharsets.US_ASCII));
+        return key(Arrays.copyOf(derived, keyLength));
+    }
+
+    // Suite a transfer key belongs to
+    public static CipherSuite of(SecretKey key) {
+        if (key.getAlgorithm().equals(CHACHA20_POLY1305.keyAlgorithm)) return CHACHA20_POLY1305;
+        return key.getEncoded().length == AES_128_GCM.keyLength ? AES_128_GCM : AES_256_GCM;
+    }
+
+    public static CipherSuite fromWire(int id) throws IOException {
+        for (CipherSuite s : values()) {
+            if (s.id == id) return s;
+        }
+        throw new IOException("Unknown cipher suite " + id);
+    }
+
+    // Accepts the display name or the enum name, in any case, with or without dashes
+    public static CipherSuite parse(String name) {
+        String n = name.trim().replace('_', '-');
+        for (CipherSuite s : values()) {
+            if (s.displayName.equalsIgnoreCase(n) || s.displayName.replace("-", "").equalsIgnoreCase(n.replace("-", ""))) return s;
+        }
+        throw new IllegalArgumentException("Unknown cipher suite '" + name + "' (expected one of " + Arrays.toString(values()) + ")");
+    }
+
+    public static List<CipherSuite> parseList(String names) {
+        List<CipherSuite> suites = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (name.isBlank()) continue;
+            CipherSuite s = parse(name);
+            if (!s.isAvailable()) throw new IllegalArgumentException(s + " is not supported by this JVM");
+            if (!suites.contains(s)) suites.add(s);
+        }
+        if (suites.isEmpty()) throw new IllegalArgumentException("No cipher suite given");
+        return Collections.unmodifiableList(suites);
+    }
+
+    public boolean isAvailable() {
+        try {
+            Cipher.getInstance(transformation);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    // Suites this JVM supports, in the default order
+    public static List<CipherSuite> available() {
+        List<CipherSuite> suites = new ArrayList<>();
+        for (CipherSuite s : values()) {
+            if (s.isAvailable()) suites.add(s);
+        }
+        return Collections.unmodifiableList(suites);
+    }
+
+    // This process's order of preference, from sft.ciphers / sft.ciphers.calibrate (computed once)
+    public static List<CipherSuite> preferred() {
+        List<CipherSuite> p = preferred;
+        if (p == null) {
+            synchronized (CipherSuite.class) {
+                if ((p = preferred) == null) {
+                    String list = System.getProperty("sft.ciphers");
+                    if (list != null && !list.isBlank()) p = parseList(list);
+                    else if (Boolean.getBoolean("sft.ciphers.calibrate")) p = ranking(calibrate());
+                    else p = available();
+                    preferred = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    // Throughput of one suite on this machine
+    public static final class Calibration {
+        public final CipherSuite suite;
+        public final double mbPerSecond;
+
+        Calibration(CipherSuite suite, double mbPerSecond) {
+            this.suite = suite;
+            this.mbPerSecond = mbPerSecond;
+        }
+
+        @Override public String toString() {
+            return String.format("%s %.0f MB/s", suite, mbPerSecond);
+        }
+    }
+
+    // Measures every available suite by sealing full segments, fastest first. A cold JVM runs AES-GCM
+    // at a few percent of its real speed until the JIT has compiled it onto the CPU's AES instructions,
+    // so every suite is first warmed up on many small messages, then the suites are measured in short
+    // interleaved rounds, keeping each one's best, until two rounds in a row improve nothing by more
+    // than 5% (or the budget runs out). Takes about a second; runs once per process, later calls
+    // return the same result.
+    public static List<Calibration> calibrate() {
+        List<Calibration> c = calibrated;
+        if (c == null) {
+            synchronized (CipherSuite.class) {
+                if ((c = calibrated) == null) {
+                    List<CipherSuite> suites = available();
+                    for (CipherSuite s : suites) warmUp(s);
+                    double[] best = new double[suites.size()];
+                    long deadline = System.nanoTime() + CALIBRATION_MILLIS * 1_000_000L;
+                    int stableRounds = 0;
+                    while (stableRounds < 2 && System.nanoTime() < deadline) {
+                        boolean improved = false;
+                        for (int i = 0; i < suites.size(); i++) {
+                            double rate = measure(suites.get(i), CALIBRATION_SLICE_MILLIS);
+                            if (rate > best[i] * 1.05) improved = true;
+                            best[i] = Math.max(best[i], rate);
+                        }
+                        stableRounds = improved ? 0 : stableRounds + 1;
+                    }
+                    c = new ArrayList<>();
+                    for (int i = 0; i < suites.size(); i++) c.add(new Calibration(suites.get(i), best[i]));
+                    c.sort((a, b) -> Double.compare(b.mbPerSecond, a.mbPerSecond));
+                    calibrated = c = Collections.unmodifiableList(c);
+                }
+            }
+        }
+        return c;
+    }
+
+    public static List<CipherSuite> ranking(List<Calibration> calibrations) {
+        List<CipherSuite> suites = new ArrayList<>();
+        for (Calibration c : calibrations) suites.add(c.suite);
+        return Collections.unmodifiableList(suites);
+    }
+
+    // "A, B (1234 MB/s), C" with the measured speed of every suite that was calibrated
+    public static String describe(List<CipherSuite> suites) {
+        List<Calibration> measured = calibrated;
+        StringBuilder sb = new StringBuilder();
+        for (CipherSuite s : suites) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(s);
+            if (measured == null) continue;
+            for (Calibration c : measured) {
+                if (c.suite == s) sb.append(String.format(" (%.0f MB/s)", c.mbPerSecond));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void warmUp(CipherSuite suite) {
+        byte[] plain = new byte[WARMUP_MESSAGE_SIZE];
+        byte[] out = new byte[WARMUP_MESSAGE_SIZE + SegmentedAead.SEGMENT_OVERHEAD];
+        byte[] iv = Crypto.randomIv();
+        try {
+            SecretKey key = suite.transferKey(Crypto.generateAESKey());
+            for (int i = 0; i < WARMUP_MESSAGES; i++) SegmentedAead.encryptSegment(key, iv, i, false, plain, plain.length, out);
+        } catch (GeneralSecurityException e) {
+            // measure() reports the suite as unusable
+        }
+    }
+
+    private static double measure(CipherSuite suite, int millis) {
+        byte[] plain = new byte[SegmentedAead.SEGMENT_SIZE];
+        byte[] out = new byte[SegmentedAead.SEGMENT_FRAME];
+        byte[] iv = Crypto.randomIv();
+        try {
+            SecretKey key = suite.transferKey(Crypto.generateAESKey());
+            long bytes = 0;
+            long started = System.nanoTime();
+            long deadline = started + millis * 1_000_000L;
+            long counter = 0;
+            do {
+                SegmentedAead.encryptSegment(key, iv, counter++, false, plain, plain.length, out);
+                bytes += plain.length;
+            } while (System.nanoTime() < deadline);
+            return bytes / 1e6 / ((System.nanoTime() - started) / 1e9);
+        } catch (GeneralSecurityException e) {
+            return 0;
+        }
+    }
+
+    // Suite both sides rank best: lowest sum of the two positions, ties going to the client's order.
+    // Throws if the lists have nothing in common.
+    public static CipherSuite negotiate(List<CipherSuite> client, List<CipherSuite> server) throws IOException {
+        CipherSuite best = null;
+        int bestScore = Integer.MAX_VALUE;
+        for (int i = 0; i < client.size(); i++) {
+            int j = server.indexOf(client.get(i));
+            if (j >= 0 && i + j < bestScore) {
+                best = client.get(i);
+                bestScore = i + j;
+            }
+        }
+        if (best == null) throw new IOException("No cipher suite in common: client offers " + client + ", server accepts " + server);
+        return best;
+    }
+
+    // Handshake form: count byte, then one id byte per suite in order of preference
+    public static void writeList(DataOutput out, List<CipherSuite> suites) throws IOException {
+        out.writeByte(suites.size());
+        for (CipherSuite s : suites) out.writeByte(s.id);
+    }
+
+    // Unknown ids (a newer peer) are skipped
+    public static List<CipherSuite> readList(DataInput in) throws IOException {
+        int n = in.readUnsignedByte();
+        List<CipherSuite> suites = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int id = in.readUnsignedByte();
+            for (CipherSuite s : values()) {
+                if (s.id == id) suites.add(s);
+            }
+        }
+        return suites;
+    }
+}
@@ -0,0 +1,134 @@
+package ml_project.cn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Optional compression ahead of encryption (ciphertext itself does not compress).
+//
+// Compression is per segment, so the fixed segment layout that parallel uploads, resuming and
+// positional writes rely on is kept: a compressed segment still decodes to exactly SEGMENT_SIZE
+// bytes (less for the last one). It is adaptive at two levels. Before an upload a few samples of
+// the file are deflated, and already-compressed or high-entropy files are sent as they are. During
+// the upload every segment that does not shrink enough is sent raw as well.
+//
+//   sft.compression        OFF | AUTO | ALWAYS (default AUTO)
+//   sft.compression.level  Deflater level (default 1, BEST_SPEED)
+public final class Compression {
+    // Upload header byte: how the client encoded the segments
+    public enum Codec { NONE, DEFLATE }
+
+    public enum Policy { OFF, AUTO, ALWAYS }
+
+    private static final int SAMPLES = 4;
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final double MAX_SAMPLE_RATIO = 0.9; // compress the file only if samples shrink by 10%+
+    private static final int MIN_SAVING = 1024;         // per segment, otherwise it is sent raw
+    private static final int LEVEL = Integer.getInteger("sft.compression.level", Deflater.BEST_SPEED);
+
+    // Raw deflate (no zlib header/checksum: GCM already authenticates every segment)
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private Compression() {}
+
+    public static Policy defaultPolicy() {
+        return Policy.valueOf(System.getProperty("sft.compression", Policy.AUTO.name()).trim().toUpperCase());
+    }
+
+    public static Codec fromWire(int b) throws IOException {
+        if (b < 0 || b >= Codec.values().length) throw new IOException("Unknown codec " + b);
+        return Codec.values()[b];
+    }
+
+    // Picks the codec for 'file': AUTO deflates a few evenly spaced samples and gives up on data
+    // that barely shrinks (media, archives, encrypted files)
+    public static Codec choose(File file, Policy policy) throws IOException {
+        if (policy == Policy.OFF) return Codec.NONE;
+        if (policy == Policy.ALWAYS) return Codec.DEFLATE;
+        long size = file.length();
+        if (size < MIN_SAVING) return Codec.NONE;
+
+        byte[] sample = new byte[SAMPLE_SIZE];
+        byte[] out = new byte[SAMPLE_SIZE];
+        long raw = 0, packed = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int samples = (int) Math.min(SAMPLES, (size + SAMPLE_SIZE - 1) / SAMPLE_SIZE);
+            for (int i = 0; i < samples; i++) {
+                long pos = samples == 1 ? 0 : (size - SAMPLE_SIZE) * i / (samples - 1);
+                raf.seek(Math.max(0, pos));
+                int len = (int) Math.min(SAMPLE_SIZE, size - raf.getFilePointer());
+                raf.readFully(sample, 0, len);
+                int n = compress(sample, len, out);
+                raw += len;
+                packed += n < 0 ? len : n;
+            }
+        }
+        return packed <= raw * MAX_SAMPLE_RATIO ? Codec.DEFLATE : Codec.NONE;
+    }
+
+    // Deflates plain[0, len) into 'out' (at least 'len' bytes long). Returns the compressed length,
+    // or -1 if that would not save at least MIN_SAVING bytes.
+    public static int compress(byte[] plain, int len, byte[] out) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(plain, 0, len);
+        deflater.finish();
+        int limit = len - MIN_SAVING;
+        if (limit <= 0) return -1;
+        int n = 0;
+        while (!deflater.finished() && n < limit) {
+            n += deflater.deflate(out, n, limit - n);
+        }
+        return deflater.finished() ? n : -1;
+    }
+
+    // ByteBuffer form: deflates the remaining bytes of 'plain' into 'out' (whose remaining space must be
+    // at least as large). Returns the compressed length, or -1 as above.
+    public static int compress(ByteBuffer plain, ByteBuffer out) {
+        int len = plain.remaining();
+        int limit = len - MIN_SAVING;
+        if (limit <= 0) return -1;
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(plain);
+        deflater.finish();
+        ByteBuffer dst = out.duplicate();
+        dst.limit(dst.position() + limit);
+        int start = dst.position();
+        while (!deflater.finished() && dst.hasRemaining()) {
+            deflater.deflate(dst);
+        }
+        if (!deflater.finished()) return -1;
+        int n = dst.position() - start;
+        out.position(start + n);
+        return n;
+    }
+
+    // Inflates in[0, len) into 'out' and returns the decoded length; the data must end within 'out'
+    public static int decompress(byte[] in, int len, byte[] out) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(in, 0, len);
+        try {
+            int n = 0;
+            while (!inflater.finished() && n < out.length) {
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += r;
+            }
+            // Output exactly full: the end-of-stream marker may still be pending
+            if (!inflater.finished() && n == out.length && inflater.inflate(new byte[1]) != 0) {
+                throw new IOException("Compressed segment decodes to more than " + out.length + " bytes");
+            }
+            if (!inflater.finished()) throw new IOException("Compressed segment is truncated");
+            return n;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed segment: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package ml_project.cn;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Accepts connections and decides when each one gets a thread, with admission control in front.
+//
+// THREADS runs one thread per admitted connection: a virtual thread when the JVM has them (JDK 21+),
+// otherwise a platform thread from a pool capped at the connection limit. SELECTOR runs a single
+// event loop that accepts and parks new connections on a Selector; a connection only takes a worker
+// once its first request byte is readable, so idle or slow clients do not pin threads, and one that
+// stays silent past the idle timeout is closed and gives its slot back. The handler itself is
+// blocking in both modes.
+//
+// Limits (system properties):
+//   sft.connections.mode       THREADS | SELECTOR (default THREADS)
+//   sft.connections.max        open connections (default 1024); at the limit accepting pauses and
+//                              further clients wait in the listen backlog
+//   sft.connections.perClient  open connections per remote address (default 64, one parallel upload);
+//                              extra connections from the same address are closed straight away
+//   sft.connections.platformThreads  true to use platform threads even where virtual threads exist
+//   sft.connections.backlog    listen backlog (default 128)
+//   sft.connections.idleTimeout  ms a SELECTOR connection may stay parked without sending its first
+//                              byte (default 30000, 0 = no limit)
+//   sft.transfers.max          uploads receiving at once (default 2 x cores); later ones wait, FIFO
+//   sft.transfers.perClient    of those, at once per remote address (default half, at least 1); a
+//                              client's further uploads wait before they join the FIFO queue
+// Socket options (TCP_NODELAY, buffer sizes) come from the server's TransportProfile.
+public class ConnectionEngine {
+    public enum Mode { THREADS, SELECTOR }
+
+    private final Mode mode;
+    private final int maxConnections;
+    private final int maxPerClient;
+    private final int backlog;
+    private final int maxTransfers;
+    private final int maxTransfersPerClient;
+    private final long idleTimeoutNanos;
+    private final Semaphore connections;
+    private final Semaphore transfers;
+    // Transfers held or queued per remote address; guarded by itself
+    private final Map<InetAddress, Integer> clientTransfers = new HashMap<>();
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> perClient = new ConcurrentHashMap<>();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    // Executors.newVirtualThreadPerTaskExecutor on JDK 21+, looked up reflectively because the code targets Java 11
+    private static final Method VIRTUAL_EXECUTOR = virtualExecutorFactory();
+
+    private volatile boolean running = false;
+    private volatile TransportProfile.Settings transport;
+    private TransferListener listener;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private Thread acceptThread;
+    private Selector selector;
+
+    public ConnectionEngine(Mode mode, int maxConnections, int maxPerClient, int backlog, int maxTransfers,
+                            int maxTransfersPerClient, long idleTimeoutMillis) {
+        this.mode = mode;
+        this.maxConnections = maxConnections;
+        this.maxPerClient = maxPerClient;
+        this.backlog = backlog;
+        this.maxTransfers = maxTransfers;
+        this.maxTransfersPerClient = maxTransfersPerClient;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.connections = new Semaphore(maxConnections);
+        this.transfers = new Semaphore(maxTransfers, true);
+    }
+
+    public static ConnectionEngine fromSystemProperties() {
+        Mode mode = Mode.valueOf(System.getProperty("sft.connections.mode", Mode.THREADS.name()).trim().toUpperCase());
+        int maxTransfers = Integer.getInteger("sft.transfers.max", Runtime.getRuntime().availableProcessors() * 2);
+        return new ConnectionEngine(mode,
+                Integer.getInteger("sft.connections.max", 1024),
+                Integer.getInteger("sft.connections.perClient", Protocol.MAX_STREAMS),
+                Integer.getInteger("sft.connections.backlog", 128),
+                maxTransfers,
+                Integer.getInteger("sft.transfers.perClient", Math.max(1, maxTransfers / 2)),
+                Long.getLong("sft.connections.idleTimeout", 30_000));
+    }
+
+    // Binds 'address' and hands each admitted connection to 'handler'; the engine closes it afterwards
+    public void start(InetSocketAddress address, Consumer<SocketChannel> handler, TransferListener listener) throws IOException {
+        this.listener = listener;
+        serverChannel = ServerSocketChannel.open();
+        if (transport != null) transport.configure(serverChannel);
+        serverChannel.bind(address, backlog);
+        workers = newWorkers();
+        running = true;
+        if (mode == Mode.SELECTOR) {
+            selector = Selector.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            acceptThread = new Thread(() -> selectLoop(handler), "sft-selector");
+        } else {
+            acceptThread = new Thread(() -> acceptLoop(handler), "sft-accept");
+        }
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    // Stops accepting; connections already admitted run to completion
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+        if (selector != null) selector.wakeup();
+        if (acceptThread != null) acceptThread.interrupt();
+        if (workers != null) workers.shutdown();
+    }
+
+    // Stops accepting and interrupts the connections still being served
+    public void shutdownNow() {
+        stop();
+        if (workers != null) workers.shutdownNow();
+    }
+
+    // Blocks until the upload may start receiving: first until 'client' is under its own limit, then
+    // for a slot in FIFO order. Pair every successful call with releaseTransfer(client).
+    public void acquireTransfer(InetAddress client) throws InterruptedException {
+        synchronized (clientTransfers) {
+            while (clientTransfers.getOrDefault(client, 0) >= maxTransfersPerClient) clientTransfers.wait();
+            clientTransfers.merge(client, 1, Integer::sum);
+        }
+        try {
+            transfers.acquire();
+        } catch (InterruptedException e) {
+            releaseClientTransfer(client);
+            throw e;
+        }
+    }
+
+    public void releaseTransfer(InetAddress client) {
+        transfers.release();
+        releaseClientTransfer(client);
+    }
+
+    private void releaseClientTransfer(InetAddress client) {
+        synchronized (clientTransfers) {
+            clientTransfers.computeIfPresent(client, (k, n) -> n == 1 ? null : n - 1);
+            clientTransfers.notifyAll();
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // Options for the listening socket and every connection it accepts; set before start()
+    public void setTransport(TransportProfile.Settings transport) {
+        this.transport = transport;
+    }
+
+    // SO_RCVBUF the accepted connections inherit, as the kernel reports it
+    public int receiveBufferSize() {
+        try {
+            return serverChannel.getOption(StandardSocketOptions.SO_RCVBUF);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public boolean usesVirtualThreads() {
+        return VIRTUAL_EXECUTOR != null;
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int openConnections() {
+        return open.get();
+    }
+
+    public int activeTransfers() {
+        return maxTransfers - transfers.availablePermits();
+    }
+
+    // Uploads waiting for a transfer slot
+    public int queuedTransfers() {
+        return transfers.getQueueLength();
+    }
+
+    // Connections closed by the per-client limit since start
+    public long rejectedConnections() {
+        return rejected.get();
+    }
+
+    @Override public String toString() {
+        return mode + (usesVirtualThreads() ? " (virtual threads)" : " (platform threads)")
+                + ", max " + maxConnections + " connections / " + maxPerClient + " per client / "
+                + maxTransfers + " transfers / " + maxTransfersPerClient + " per client, backlog " + backlog;
+    }
+
+    // Blocking accept: waits for a free connection slot before taking the next client off the backlog
+    private void acceptLoop(Consumer<SocketChannel> handler) {
+        try {
+            while (running) {
+                connections.acquire();
+                SocketChannel ch;
+                try {
+                    ch = serverChannel.accept();
+                } catch (IOException e) {
+                    connections.release();
+                    throw e;
+                }
+                if (admit(ch)) dispatch(ch, handler);
+            }
+        } catch (ClosedChannelException | InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            if (running) listener.log("Accept error: " + e.getMessage());
+        }
+    }
+
+    // Event loop: accepts while slots are free and hands a connection to a worker once it has data
+    private void selectLoop(Consumer<SocketChannel> handler) {
+        SelectionKey acceptKey = serverChannel.keyFor(selector);
+        // Parked connections are checked against their deadline about ten times per timeout
+        long tick = idleTimeoutNanos > 0 ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 10) : 0;
+        try {
+            while (running) {
+                // Resume accepting once handlers have given slots back
+                if (acceptKey.interestOps() == 0 && connections.availablePermits() > 0) {
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+                selector.select(tick);
+                if (tick > 0) closeIdle(System.nanoTime());
+                List<SocketChannel> ready = new ArrayList<>();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        acceptReady(acceptKey);
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        ready.add((SocketChannel) key.channel());
+                    }
+                }
+                if (ready.isEmpty()) continue;
+                selector.selectNow(); // flush the cancelled keys so the channels can go back to blocking mode
+                for (SocketChannel ch : ready) {
+                    try {
+                        ch.configureBlocking(true);
+                        dispatch(ch, handler);
+                    } catch (IOException e) {
+                        close(ch);
+                    }
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // stopped
+        } catch (IOException e) {
+            if (running) listener.log("Selector error: " + e.getMessage());
+        } finally {
+            // Still parked: admitted, but never dispatched to a handler that would give the slot back
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.channel() instanceof SocketChannel) finished((SocketChannel) key.channel());
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Closes parked connections whose first byte has not arrived by their deadline
+    private void closeIdle(long now) {
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (!(key.attachment() instanceof Long) || now - (Long) key.attachment() < 0) continue;
+            SocketChannel ch = (SocketChannel) key.channel();
+            listener.log("Closed idle connection from " + remoteAddress(ch).getHostAddress());
+            key.cancel();
+            finished(ch);
+        }
+    }
+
+    private void acceptReady(SelectionKey acceptKey) throws IOException {
+        while (connections.tryAcquire()) {
+            SocketChannel ch = serverChannel.accept();
+            if (ch == null) {
+                connections.release();
+                return;
+            }
+            if (admit(ch)) {
+                ch.configureBlocking(false);
+                ch.register(selector, SelectionKey.OP_READ, idleTimeoutNanos > 0 ? System.nanoTime() + idleTimeoutNanos : null);
+            }
+        }
+        // Out of slots: leave the rest in the kernel backlog until a connection finishes
+        acceptKey.interestOps(0);
+    }
+
+    // Applies the per-client limit to a connection that already holds a connection slot
+    private boolean admit(SocketChannel ch) {
+        InetAddress client = remoteAddress(ch);
+        AtomicInteger count = perClient.computeIfAbsent(client, k -> new AtomicInteger());
+        if (count.incrementAndGet() > maxPerClient) {
+            count.decrementAndGet();
+            connections.release();
+            rejected.incrementAndGet();
+            listener.log("Refused connection from " + client.getHostAddress() + ": more than " + maxPerClient + " open");
+            close(ch);
+            return false;
+        }
+        open.incrementAndGet();
+        TransportProfile.Settings t = transport;
+        if (t != null) {
+            try {
+                t.configure(ch);
+            } catch (IOException e) {
+                listener.log("Could not set socket options: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void dispatch(SocketChannel ch, Consumer<SocketChannel> handler) {
+        try {
+            workers.execute(() -> {
+                try {
+                    handler.accept(ch);
+                } finally {
+                    finished(ch);
+                }
+            });
+        } catch (RuntimeException e) { // workers already shut down
+            finished(ch);
+        }
+    }
+
+    private void finished(SocketChannel ch) {
+        InetAddress client = remoteAddress(ch);
+        close(ch);
+        AtomicInteger count = perClient.get(client);
+        if (count != null && count.decrementAndGet() == 0) perClient.remove(client, count);
+        open.decrementAndGet();
+        connections.release();
+        if (selector != null) selector.wakeup();
+    }
+
+    private static InetAddress remoteAddress(SocketChannel ch) {
+        return ((InetSocketAddress) ch.socket().getRemoteSocketAddress()).getAddress();
+    }
+
+    private static void close(SocketChannel ch) {
+        try { ch.close(); } catch (IOException ignored) {}
+    }
+
+    private ExecutorService newWorkers() {
+        if (VIRTUAL_EXECUTOR != null) {
+            try {
+                return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // fall back to platform threads
+            }
+        }
+        // Admitted connections are capped, so this pool never needs more threads than the cap
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConnections, maxConnections,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static Method virtualExecutorFactory() {
+        if (Boolean.getBoolean("sft.connections.platformThreads")) return null;
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
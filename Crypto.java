@@ -1,3 +1,5 @@
+package ml_project.cn;
+
 
 import javax.crypto.*;
 import javax.crypto.spec.GCMParameterSpec;
@@ -12,50 +14,119 @@ public class Crypto {
     public static final int GCM_IV_LENGTH = 12; // bytes
     public static final int GCM_TAG_LENGTH = 16; // bytes (128 bits)
 
+    // Provider lookups are expensive relative to a small transfer, so every thread keeps one
+    // instance of each primitive and re-initialises it with fresh keys/IVs on each use.
+    // The instances never leave this class except through threadAESCipher(), whose result
+    // is only valid until the next call on the same thread.
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<Cipher> RSA_CIPHER = ThreadLocal.withInitial(() -> newCipher(RSA_ALGO));
+    private static final ThreadLocal<Cipher> AES_CIPHER = ThreadLocal.withInitial(() -> newCipher(AES_ALGO));
+    private static final ThreadLocal<Cipher[]> SUITE_CIPHERS = ThreadLocal.withInitial(() -> new Cipher[CipherSuite.values().length]);
+    private static final ThreadLocal<Mac> HMAC_SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<KeyFactory> RSA_KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(transformation + " not available", e);
+        }
+    }
+
+    // Shared entropy source. The default SecureRandom reads the non-blocking system source
+    // (/dev/urandom on Linux); one instance per thread avoids contention on its lock.
+    public static SecureRandom random() {
+        return RANDOM.get();
+    }
+
+    // Taken ready-made from the KeyMaterialPool, like session keys
+    public static byte[] randomIv() {
+        return KeyMaterialPool.take(GCM_IV_LENGTH);
+    }
+
     
     // RSA keypair generation
     public static KeyPair generateRSAKeyPair(int bits) throws NoSuchAlgorithmException {
         KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-        kpg.initialize(bits);
+        kpg.initialize(bits, RANDOM.get());
         return kpg.generateKeyPair();
     }
 
-    // AES key generation
+    // AES key generation: AES_KEY_SIZE random bits from the KeyMaterialPool
     public static SecretKey generateAESKey() throws NoSuchAlgorithmException {
-        KeyGenerator kg = KeyGenerator.getInstance("AES");
-        kg.init(AES_KEY_SIZE);
-        return kg.generateKey();
+        return new SecretKeySpec(KeyMaterialPool.take(AES_KEY_SIZE / 8), "AES");
     }
 
     // RSA encrypt (public)
     public static byte[] rsaEncrypt(byte[] data, PublicKey pub) throws Exception {
-        Cipher c = Cipher.getInstance(RSA_ALGO);
-        c.init(Cipher.ENCRYPT_MODE, pub);
+        Cipher c = RSA_CIPHER.get();
+        c.init(Cipher.ENCRYPT_MODE, pub, RANDOM.get());
         return c.doFinal(data);
     }
 
     // RSA decrypt (private)
     public static byte[] rsaDecrypt(byte[] data, PrivateKey priv) throws Exception {
-        Cipher c = Cipher.getInstance(RSA_ALGO);
+        Cipher c = RSA_CIPHER.get();
         c.init(Cipher.DECRYPT_MODE, priv);
         return c.doFinal(data);
     }
 
-    // Create AES cipher in GCM mode for ENCRYPT/DECRYPT
+    // Create AES cipher in GCM mode for ENCRYPT/DECRYPT (a new instance the caller may keep)
     public static Cipher createAESCipher(int mode, SecretKey key, byte[] iv) throws Exception {
         Cipher cipher = Cipher.getInstance(AES_ALGO);
-        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv); 
-        cipher.init(mode, key, spec);
+        initAESCipher(cipher, mode, key, iv);
+        return cipher;
+    }
+
+    // This thread's AES/GCM cipher, initialised for one message. Do not keep it across calls.
+    public static Cipher threadAESCipher(int mode, SecretKey key, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = AES_CIPHER.get();
+        initAESCipher(cipher, mode, key, iv);
+        return cipher;
+    }
+
+    // This thread's cipher for the suite 'key' belongs to (see CipherSuite), initialised for one
+    // message. Do not keep it across calls.
+    public static Cipher threadCipher(int mode, SecretKey key, byte[] nonce) throws GeneralSecurityException {
+        CipherSuite suite = CipherSuite.of(key);
+        Cipher[] ciphers = SUITE_CIPHERS.get();
+        Cipher cipher = ciphers[suite.ordinal()];
+        if (cipher == null) cipher = ciphers[suite.ordinal()] = newCipher(suite.transformation);
+        cipher.init(mode, key, suite.parameters(nonce));
         return cipher;
     }
 
+    // Re-initialise an existing AES/GCM cipher with a new IV (avoids a provider lookup per segment)
+    public static void initAESCipher(Cipher cipher, int mode, SecretKey key, byte[] iv) throws GeneralSecurityException {
+        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
+        cipher.init(mode, key, spec);
+    }
+
+    // HMAC-SHA256, used to derive resumption and per-transfer keys
+    public static byte[] hmacSha256(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = HMAC_SHA256.get();
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
     public static SecretKey fromBytesToAESKey(byte[] keyBytes) {
         return new SecretKeySpec(keyBytes, "AES");
     }
 
     public static PublicKey publicKeyFromBytes(byte[] pubBytes) throws Exception {
         X509EncodedKeySpec spec = new X509EncodedKeySpec(pubBytes);
-        KeyFactory kf = KeyFactory.getInstance("RSA");
-        return kf.generatePublic(spec);
+        return RSA_KEY_FACTORY.get().generatePublic(spec);
     }
 }
\ No newline at end of file
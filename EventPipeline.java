@@ -0,0 +1,186 @@
+package ml_project.cn;
+
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous TransferListener that sits between the transfer engines and a front-end.
+//
+// log() and progress() only claim a slot in a preallocated lock-free ring and return: they never
+// block, wait for the console or the Swing thread, or allocate. One background thread wakes every
+// refresh interval, drains both rings, writes the messages to a RotatingLog and hands the front-end
+// ('ui') one merged update: all new log lines as a single log() call and the latest progress of each
+// file, so a Swing view gets a few EDT events per second however fast the transfer runs.
+//
+// When a ring is full, progress events are dropped (a later one supersedes them anyway) and log
+// messages are counted and reported as dropped, rather than slowing the transfer down.
+//
+// Configured with system properties (plus those of RotatingLog):
+//   sft.log.refreshMillis  front-end refresh interval (default 100)
+//   sft.log.capacity       events buffered per ring (default 8192)
+public class EventPipeline implements TransferListener, Closeable {
+    private final TransferListener ui;
+    private final RotatingLog sink;
+    private final long refreshNanos;
+    private final Ring logs;
+    private final Ring progress;
+    private final AtomicLong droppedLogs = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger(-1); // latest undelivered pendingChanged, or -1
+    private final Queue<TransferSession> received = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    // 'ui' may be null when only the log output is wanted (headless front-ends)
+    public EventPipeline(String name, TransferListener ui, RotatingLog sink, long refreshMillis, int capacity) {
+        this.ui = ui != null ? ui : message -> {};
+        this.sink = sink;
+        this.refreshNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, refreshMillis));
+        this.logs = new Ring(capacity);
+        this.progress = new Ring(capacity);
+        this.worker = new Thread(this::run, "sft-events-" + name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public static EventPipeline fromSystemProperties(String name, TransferListener ui, String consolePrefix) {
+        return new EventPipeline(name, ui, RotatingLog.fromSystemProperties(consolePrefix),
+                Long.getLong("sft.log.refreshMillis", 100), Integer.getInteger("sft.log.capacity", 8192));
+    }
+
+    @Override public void log(String message) {
+        if (!logs.offer(message, System.currentTimeMillis(), 0)) droppedLogs.incrementAndGet();
+    }
+
+    @Override public void progress(String fileName, long sent, long total) {
+        progress.offer(fileName, sent, total);
+    }
+
+    @Override public void received(TransferSession session) {
+        received.add(session);
+    }
+
+    @Override public void pendingChanged(int pending) {
+        this.pending.set(pending);
+    }
+
+    // Delivers everything still buffered, then stops the background thread
+    @Override public void close() {
+        running = false;
+        LockSupport.unpark(worker);
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sink.close();
+    }
+
+    private void run() {
+        StringBuilder batch = new StringBuilder();
+        Map<String, long[]> latest = new LinkedHashMap<>();
+        while (true) {
+            boolean last = !running;
+            try {
+                drain(batch, latest);
+                deliver(batch, latest);
+            } catch (RuntimeException e) {
+                // A failing front-end must not stop the log output
+                System.err.println("Event delivery failed: " + e);
+            }
+            batch.setLength(0);
+            latest.clear();
+            if (last) return;
+            LockSupport.parkNanos(this, refreshNanos);
+        }
+    }
+
+    private void drain(StringBuilder batch, Map<String, long[]> latest) {
+        while (logs.ready()) {
+            String message = (String) logs.ref();
+            sink.write(logs.first(), message);
+            batch.append(message).append('\n');
+            logs.advance();
+        }
+        long dropped = droppedLogs.getAndSet(0);
+        if (dropped > 0) {
+            String message = dropped + " log message(s) dropped, output could not keep up";
+            sink.write(System.currentTimeMillis(), message);
+            batch.append(message).append('\n');
+        }
+        while (progress.ready()) {
+            long[] p = latest.computeIfAbsent((String) progress.ref(), k -> new long[2]);
+            p[0] = progress.first();
+            p[1] = progress.second();
+            progress.advance();
+        }
+    }
+
+    private void deliver(StringBuilder batch, Map<String, long[]> latest) {
+        sink.flush();
+        if (batch.length() > 0) ui.log(batch.substring(0, batch.length() - 1));
+        for (Map.Entry<String, long[]> e : latest.entrySet()) ui.progress(e.getKey(), e.getValue()[0], e.getValue()[1]);
+        TransferSession session;
+        while ((session = received.poll()) != null) ui.received(session);
+        int p = pending.getAndSet(-1);
+        if (p >= 0) ui.pendingChanged(p);
+    }
+
+    // Bounded multi-producer, single-consumer ring of (reference, long, long) events held in
+    // preallocated arrays. A producer claims a slot by CAS on the tail and publishes it by writing
+    // the slot's sequence number; offer() fails instead of waiting when the consumer is a full ring
+    // behind. Only the worker thread reads.
+    private static final class Ring {
+        private final int mask;
+        private final Object[] refs;
+        private final long[] first;
+        private final long[] second;
+        private final AtomicLongArray published;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head; // written by the consumer only
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            mask = size - 1;
+            refs = new Object[size];
+            first = new long[size];
+            second = new long[size];
+            published = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) published.set(i, -1);
+        }
+
+        boolean offer(Object ref, long a, long b) {
+            long t;
+            do {
+                t = tail.get();
+                if (t - head >= refs.length) return false;
+            } while (!tail.compareAndSet(t, t + 1));
+            int i = (int) t & mask;
+            refs[i] = ref;
+            first[i] = a;
+            second[i] = b;
+            published.lazySet(i, t);
+            return true;
+        }
+
+        boolean ready() {
+            return published.get((int) head & mask) == head;
+        }
+
+        Object ref() { return refs[(int) head & mask]; }
+        long first() { return first[(int) head & mask]; }
+        long second() { return second[(int) head & mask]; }
+
+        // Frees the slot at the head; the write to 'head' is what hands it back to the producers
+        void advance() {
+            refs[(int) head & mask] = null;
+            head = head + 1;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ml_project.cn;
+
+import java.io.*;
+
+// Headless range reader for files a ServerDaemon keeps encrypted at rest (--at-rest). Only the
+// requested bytes are decrypted on the server and sent, so reading the tail of a huge log is fast.
+// The server must serve reads (--serve-reads), and --token is the file's read token, which the
+// uploading client logs ("Read token for NAME: ...").
+//
+//   java ml_project.cn.FetchCli [--host 127.0.0.1] [--port 8080] [--offset N | --tail N] [--length N]
+//                               [--out FILE] --token HEX NAME
+//
+// Sizes accept k/m/g suffixes. Without --out the bytes go to stdout (and the log is not printed).
+public class FetchCli {
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 8080;
+        long offset = 0;
+        long length = -1;
+        File outFile = null;
+        byte[] token = null;
+        String name = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host": host = args[++i]; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--offset": offset = parseSize(args[++i]); break;
+                case "--tail": offset = -parseSize(args[++i]); break;
+                case "--length": length = parseSize(args[++i]); break;
+                case "--out": outFile = new File(args[++i]); break;
+                case "--token": token = parseHex(args[++i]); break;
+                case "--help":
+                    usage();
+                    return;
+                default:
+                    if (args[i].startsWith("--") || name != null) {
+                        System.err.println("Unexpected argument: " + args[i]);
+                        usage();
+                        System.exit(2);
+                    }
+                    name = args[i];
+            }
+        }
+        if (name == null || token == null) {
+            usage();
+            System.exit(2);
+        }
+
+        EventPipeline events = EventPipeline.fromSystemProperties("fetch", null, outFile != null ? "[CLIENT]" : null);
+        TransferClient client = new TransferClient(host, port, events);
+        try (OutputStream out = outFile != null
+                ? new BufferedOutputStream(new FileOutputStream(outFile), 1 << 16)
+                : new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16)) {
+            client.download(name, token, offset, length, out);
+        } catch (Exception ex) {
+            events.close();
+            System.err.println("[CLIENT] Read of " + name + " failed: " + ex.getMessage());
+            System.exit(1);
+        }
+        events.close();
+    }
+
+    private static long parseSize(String s) {
+        s = s.trim().toLowerCase();
+        int shift = 0;
+        if (s.endsWith("k")) shift = 10;
+        else if (s.endsWith("m")) shift = 20;
+        else if (s.endsWith("g")) shift = 30;
+        if (shift > 0) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) << shift;
+    }
+
+    private static byte[] parseHex(String s) {
+        if (s.length() != 2 * SessionTickets.SECRET_LENGTH) throw new IllegalArgumentException("A read token is " + 2 * SessionTickets.SECRET_LENGTH + " hex digits");
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        return b;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: FetchCli [--host H] [--port N] [--offset N | --tail N] [--length N] [--out FILE] --token HEX NAME");
+    }
+}
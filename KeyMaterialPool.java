@@ -0,0 +1,100 @@
+package ml_project.cn;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Pre-generated random key material, so a handshake or a new transfer never waits on the entropy
+// source. AES keys, IVs and nonces are all taken as BLOCK-byte blocks of SecureRandom output (an
+// IV or nonce is the first bytes of one); each block is handed out once.
+//
+// The pool is a lock-free queue bounded by its single producer: a low-priority daemon thread that
+// generates blocks in batches (one SecureRandom call per batch) until the pool is full, and is woken
+// again when takers bring it below half. If a burst empties the pool, take() generates the block on
+// the caller's thread rather than wait, and counts a miss.
+//
+//   sft.keyPool.size   blocks kept ready (default 1024; 0 generates everything inline)
+public final class KeyMaterialPool {
+    public static final int BLOCK = 32; // bytes: one AES-256 key
+    private static final int CAPACITY = Integer.getInteger("sft.keyPool.size", 1024);
+    private static final int BATCH = 64;
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger SIZE = new AtomicInteger();
+    private static final LongAdder TAKEN = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final Thread REFILL;
+
+    static {
+        if (CAPACITY > 0) {
+            REFILL = new Thread(KeyMaterialPool::refill, "sft-key-pool");
+            REFILL.setDaemon(true);
+            REFILL.setPriority(Thread.MIN_PRIORITY);
+            REFILL.start();
+        } else {
+            REFILL = null;
+        }
+    }
+
+    private KeyMaterialPool() {}
+
+    // Starts filling the pool (by loading the class), so the first transfer already finds it full
+    public static void prime() {
+        if (REFILL != null) LockSupport.unpark(REFILL);
+    }
+
+    // A fresh block of BLOCK random bytes, owned by the caller
+    public static byte[] take() {
+        byte[] block = POOL.poll();
+        if (block != null) {
+            TAKEN.increment();
+            if (SIZE.decrementAndGet() < CAPACITY / 2) LockSupport.unpark(REFILL);
+            return block;
+        }
+        MISSES.increment();
+        prime();
+        block = new byte[BLOCK];
+        Crypto.random().nextBytes(block);
+        return block;
+    }
+
+    // 'length' (at most BLOCK) fresh random bytes
+    public static byte[] take(int length) {
+        if (length > BLOCK) throw new IllegalArgumentException(length + " bytes requested, blocks are " + BLOCK);
+        byte[] block = take();
+        return length == BLOCK ? block : Arrays.copyOf(block, length);
+    }
+
+    public static int available() {
+        return SIZE.get();
+    }
+
+    // Blocks served from the pool, and blocks that had to be generated inline because it was empty
+    public static long taken() {
+        return TAKEN.sum();
+    }
+
+    public static long misses() {
+        return MISSES.sum();
+    }
+
+    private static void refill() {
+        SecureRandom random = new SecureRandom();
+        byte[] batch = new byte[BATCH * BLOCK];
+        while (true) {
+            while (SIZE.get() < CAPACITY) {
+                random.nextBytes(batch);
+                int n = Math.min(BATCH, CAPACITY - SIZE.get());
+                for (int i = 0; i < n; i++) POOL.offer(Arrays.copyOfRange(batch, i * BLOCK, (i + 1) * BLOCK));
+                SIZE.addAndGet(n);
+            }
+            Arrays.fill(batch, (byte) 0);
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+}
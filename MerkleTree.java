@@ -0,0 +1,409 @@
+package ml_project.cn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// SHA-256 Merkle tree over the plaintext of a file in BLOCK_SIZE blocks, used to check end to end
+// that the file a server stored is the one the client read.
+//
+// Hashing follows RFC 6962: leaf = SHA-256(0x00 || block), node = SHA-256(0x01 || left || right),
+// and a range of n > 1 leaves splits at the largest power of two below n. An empty file has one
+// empty block. Blocks are hashed in parallel on the common ForkJoin pool (each task reads its
+// blocks with positional reads), and the upper levels of the tree are combined in parallel too.
+//
+// A receiver can also hash the plaintext while it writes it (see Builder), so checking a file it
+// has just stored needs no second pass over it.
+//
+// The leaf hashes can be saved next to the file (<file>.merkle); verifying against them later
+// names the exact blocks that changed, instead of only saying that the root differs.
+public class MerkleTree {
+    public static final int BLOCK_SIZE = 1 << 20;
+    public static final int HASH_LENGTH = 32;
+    public static final String SUFFIX = ".merkle";
+    private static final int MAGIC = 0x5346544d; // "SFTM"
+    private static final int VERSION = 1;
+    // Below this many leaves a subtree is combined on the current thread
+    private static final int SEQUENTIAL_NODES = 1024;
+
+    private static final ThreadLocal<MessageDigest> SHA = ThreadLocal.withInitial(Chunker::sha256);
+    private static final ThreadLocal<ByteBuffer> BLOCK = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BLOCK_SIZE));
+
+    private final long size;
+    private final byte[] leaves; // leaf hashes, HASH_LENGTH bytes each
+    private final byte[] root;
+
+    private MerkleTree(long size, byte[] leaves) {
+        this.size = size;
+        this.leaves = leaves;
+        int count = leaves.length / HASH_LENGTH;
+        this.root = count <= SEQUENTIAL_NODES ? NodeTask.node(leaves, 0, count)
+                : ForkJoinPool.commonPool().invoke(new NodeTask(leaves, 0, count));
+    }
+
+    // Hashes 'file' in parallel and waits for the result
+    public static MerkleTree build(File file) throws IOException {
+        try {
+            return ForkJoinPool.commonPool().invoke(new BuildTask(file));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Starts hashing 'file' in the background, e.g. while it is being encrypted and sent
+    public static Future<MerkleTree> buildAsync(File file) {
+        return ForkJoinPool.commonPool().submit(new BuildTask(file));
+    }
+
+    // Waits for a tree started with buildAsync()
+    public static MerkleTree await(Future<MerkleTree> tree) throws IOException {
+        try {
+            return tree.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Hashing failed: " + cause, cause);
+        }
+    }
+
+    // Tree of an in-memory file, hashed on the calling thread (small files)
+    public static MerkleTree of(byte[] data, int off, int len) {
+        int count = blockCount(len);
+        byte[] leaves = new byte[count * HASH_LENGTH];
+        MessageDigest sha = SHA.get();
+        for (int i = 0; i < count; i++) {
+            int from = i * BLOCK_SIZE;
+            sha.update((byte) 0);
+            sha.update(data, off + from, Math.min(BLOCK_SIZE, len - from));
+            digestInto(sha, leaves, i * HASH_LENGTH);
+        }
+        return new MerkleTree(len, leaves);
+    }
+
+    // Tree of 'size' bytes read in order from 'in' (e.g. a file being decrypted), hashed on the
+    // calling thread
+    public static MerkleTree read(InputStream in, long size) throws IOException {
+        int count = blockCount(size);
+        byte[] leaves = new byte[count * HASH_LENGTH];
+        byte[] block = BLOCK.get().array();
+        MessageDigest sha = SHA.get();
+        for (int i = 0; i < count; i++) {
+            int len = (int) Math.min(BLOCK_SIZE, size - (long) i * BLOCK_SIZE);
+            if (in.readNBytes(block, 0, len) != len) throw new EOFException("Stream ended before " + size + " bytes");
+            sha.update((byte) 0);
+            sha.update(block, 0, len);
+            digestInto(sha, leaves, i * HASH_LENGTH);
+        }
+        if (in.read() >= 0) throw new IOException("Stream is longer than " + size + " bytes");
+        return new MerkleTree(size, leaves);
+    }
+
+    // Positional read of plaintext, e.g. SealedFile.read: the bytes read, or -1 at the end
+    public interface BlockReader {
+        int read(long position, byte[] b, int off, int len) throws IOException;
+    }
+
+    // Leaf hashes of plaintext handed over as it is written, e.g. by segments as they are
+    // authenticated. Blocks may come in any order and from several threads, but a block is only
+    // hashed on the fly if its bytes come in order from its first byte on. One that does not (it is
+    // split between two streams, or partly arrived before a restart), or part of which is written
+    // again (see invalidate), is read back by finish() instead.
+    public static final class Builder {
+        private final long size;
+        private final byte[] leaves;
+        // Guarded by 'this'; each Block by itself
+        private final Block[] open;
+        private final BitSet hashed = new BitSet();
+        private final BitSet readBack = new BitSet();
+
+        public Builder(long size) {
+            this.size = size;
+            int count = blockCount(size);
+            this.leaves = new byte[count * HASH_LENGTH];
+            this.open = new Block[count];
+            if (size == 0) { // nothing will be written: the one empty block
+                MessageDigest sha = SHA.get();
+                sha.update((byte) 0);
+                digestInto(sha, leaves, 0);
+                hashed.set(0);
+            }
+        }
+
+        // Plaintext bytes [position, position + len) as they are written
+        public void update(long position, byte[] b, int off, int len) {
+            while (len > 0) {
+                int index = (int) (position / BLOCK_SIZE);
+                long end = Math.min(size, (long) (index + 1) * BLOCK_SIZE);
+                int n = (int) Math.min(len, end - position);
+                Block block;
+                synchronized (this) {
+                    block = open[index];
+                    if (block == null && !readBack.get(index)) {
+                        if (position % BLOCK_SIZE == 0 && !hashed.get(index)) block = open[index] = new Block(position);
+                        else readBack(index);
+                    }
+                }
+                if (block != null) {
+                    synchronized (block) {
+                        if (block.next != position) {
+                            readBack(index);
+                        } else {
+                            block.sha.update(b, off, n);
+                            block.next += n;
+                            if (block.next == end) {
+                                digestInto(block.sha, leaves, index * HASH_LENGTH);
+                                synchronized (this) {
+                                    open[index] = null;
+                                    if (!readBack.get(index)) hashed.set(index);
+                                }
+                            }
+                        }
+                    }
+                }
+                position += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // Plaintext [from, to) may be written again (e.g. a broken stream's segments are resent)
+        public synchronized void invalidate(long from, long to) {
+            for (int i = (int) (from / BLOCK_SIZE); i < open.length && (long) i * BLOCK_SIZE < to; i++) readBack(i);
+        }
+
+        private synchronized void readBack(int index) {
+            open[index] = null;
+            hashed.clear(index);
+            readBack.set(index);
+        }
+
+        // Blocks finish() will read back
+        public synchronized int pendingBlocks() {
+            return open.length - hashed.cardinality();
+        }
+
+        // The tree, reading every block that was not hashed on the fly through 'reader'. Call once
+        // the plaintext is complete and nothing writes it any more.
+        public MerkleTree finish(BlockReader reader) throws IOException {
+            BitSet missing;
+            synchronized (this) {
+                missing = (BitSet) hashed.clone();
+                missing.flip(0, open.length);
+            }
+            byte[] block = BLOCK.get().array();
+            MessageDigest sha = SHA.get();
+            for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+                long pos = (long) i * BLOCK_SIZE;
+                int len = (int) Math.min(BLOCK_SIZE, size - pos);
+                for (int got = 0, n; got < len; got += n) {
+                    if ((n = reader.read(pos + got, block, got, len - got)) < 0) throw new EOFException("File ended before " + size + " bytes");
+                }
+                sha.update((byte) 0);
+                sha.update(block, 0, len);
+                digestInto(sha, leaves, i * HASH_LENGTH);
+            }
+            return new MerkleTree(size, leaves.clone());
+        }
+
+        private static final class Block {
+            final MessageDigest sha = Chunker.sha256();
+            long next; // position of the next byte expected
+
+            Block(long start) {
+                sha.update((byte) 0);
+                next = start;
+            }
+        }
+    }
+
+    public static int blockCount(long size) {
+        long n = Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (n > Integer.MAX_VALUE / HASH_LENGTH) throw new IllegalArgumentException("File too large: " + size + " bytes");
+        return (int) n;
+    }
+
+    public static File sidecarFor(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    public long size() { return size; }
+    public int blockCount() { return leaves.length / HASH_LENGTH; }
+    public byte[] root() { return root.clone(); }
+
+    public boolean rootEquals(byte[] other) {
+        return MessageDigest.isEqual(root, other);
+    }
+
+    // Blocks whose content differs between this (expected) tree and 'actual', in order. Blocks that
+    // exist in only one of them (the size changed) count as different.
+    public List<Integer> differingBlocks(MerkleTree actual) {
+        List<Integer> blocks = new ArrayList<>();
+        int common = Math.min(blockCount(), actual.blockCount());
+        for (int i = 0; i < common; i++) {
+            int p = i * HASH_LENGTH;
+            if (!Arrays.equals(leaves, p, p + HASH_LENGTH, actual.leaves, p, p + HASH_LENGTH)) blocks.add(i);
+        }
+        for (int i = common; i < Math.max(blockCount(), actual.blockCount()); i++) blocks.add(i);
+        return blocks;
+    }
+
+    // Writes the leaf hashes (and root) to 'file', replacing it atomically
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(BLOCK_SIZE);
+            out.writeLong(size);
+            out.writeInt(blockCount());
+            out.write(leaves);
+            out.write(root);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static MerkleTree load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a Merkle tree file: " + file);
+            if (in.readInt() != BLOCK_SIZE) throw new IOException("Unsupported block size in " + file);
+            long size = in.readLong();
+            int count = in.readInt();
+            if (size < 0 || count != blockCount(size)) throw new IOException("Inconsistent Merkle tree file: " + file);
+            byte[] leaves = new byte[count * HASH_LENGTH];
+            in.readFully(leaves);
+            byte[] root = new byte[HASH_LENGTH];
+            in.readFully(root);
+            MerkleTree tree = new MerkleTree(size, leaves);
+            if (!tree.rootEquals(root)) throw new IOException("Merkle tree file " + file + " is damaged");
+            return tree;
+        }
+    }
+
+    public static String hex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    private static void digestInto(MessageDigest sha, byte[] out, int offset) {
+        try {
+            sha.digest(out, offset, HASH_LENGTH);
+        } catch (java.security.DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Opens the file, hashes all blocks in parallel, then builds the tree
+    private static final class BuildTask extends RecursiveTask<MerkleTree> {
+        private static final long serialVersionUID = 1L;
+        private final File file;
+
+        BuildTask(File file) {
+            this.file = file;
+        }
+
+        @Override protected MerkleTree compute() {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = ch.size();
+                byte[] leaves = new byte[blockCount(size) * HASH_LENGTH];
+                new LeafTask(ch, size, leaves, 0, leaves.length / HASH_LENGTH).invoke();
+                if (ch.size() != size) throw new IOException(file + " changed while it was being hashed");
+                return new MerkleTree(size, leaves);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Hashes blocks [from, to) into 'leaves', splitting down to one block per task
+    private static final class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel ch;
+        private final long size;
+        private final byte[] leaves;
+        private final int from, to;
+
+        LeafTask(FileChannel ch, long size, byte[] leaves, int from, int to) {
+            this.ch = ch;
+            this.size = size;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LeafTask(ch, size, leaves, from, mid), new LeafTask(ch, size, leaves, mid, to));
+                return;
+            }
+            try {
+                long pos = (long) from * BLOCK_SIZE;
+                ByteBuffer block = BLOCK.get();
+                block.clear().limit((int) Math.min(BLOCK_SIZE, size - pos));
+                while (block.hasRemaining()) {
+                    if (ch.read(block, pos + block.position()) < 0) throw new EOFException("File shrank while it was being hashed");
+                }
+                block.flip();
+                MessageDigest sha = SHA.get();
+                sha.update((byte) 0);
+                sha.update(block);
+                digestInto(sha, leaves, from * HASH_LENGTH);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Root of leaves [from, to); large ranges combine their two halves in parallel
+    private static final class NodeTask extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+        private final byte[] leaves;
+        private final int from, to;
+
+        NodeTask(byte[] leaves, int from, int to) {
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override protected byte[] compute() {
+            if (to - from <= SEQUENTIAL_NODES) return node(leaves, from, to);
+            int split = from + Integer.highestOneBit(to - from - 1);
+            NodeTask left = new NodeTask(leaves, from, split);
+            left.fork();
+            byte[] right = new NodeTask(leaves, split, to).compute();
+            return combine(left.join(), right);
+        }
+
+        private static byte[] node(byte[] leaves, int from, int to) {
+            if (to - from == 1) return Arrays.copyOfRange(leaves, from * HASH_LENGTH, to * HASH_LENGTH);
+            int split = from + Integer.highestOneBit(to - from - 1);
+            return combine(node(leaves, from, split), node(leaves, split, to));
+        }
+
+        private static byte[] combine(byte[] left, byte[] right) {
+            MessageDigest sha = SHA.get();
+            sha.update((byte) 1);
+            sha.update(left);
+            sha.update(right);
+            return sha.digest();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ml_project.cn;
+
+// Wire constants shared by client and server.
+// Every connection starts with one opcode byte written by the client.
+//
+// Upload handshake:   OP_UPLOAD -> server public key, cipher suites -> RSA(AES key)
+// Resumed handshake:  OP_RESUME, ticket, nonce -> STATUS_OK + cipher suites (or STATUS_ERROR + public
+//                     key, cipher suites, then as OP_UPLOAD)
+// The server's cipher suites are a count byte + one CipherSuite id each, best first; the client picks
+// the best common one (see CipherSuite.negotiate) and names it in every transfer header.
+// Both continue with: IV, file name, sizes, stream count, codec, dedup flag, suite id -> new session
+//                     ticket, transfer ID
+// then either the whole segment stream -> status (streams == 1), or one range + ack per stream.
+// Extra streams of a parallel upload:
+//                     OP_JOIN, transfer ID -> status, nonce -> HMAC proof (see SessionTickets.joinProof)
+//                     -> status, then one range + ack
+// Deduplicated (streams == 1): per batch of up to DEDUP_BATCH chunks, chunk count + (length, SHA-256)
+//                     each -> bitmap of the chunks the server lacks -> those chunks, each sealed as a
+//                     one-segment stream with the chunk index as counter; a count of 0 ends -> status
+// Continuing an interrupted upload:
+//                     OP_CONTINUE, transfer ID -> status, nonce -> HMAC proof -> status, missing ranges
+//                     -> one range + ack per missing range
+// Integrity check, at the end of every upload and continuation (after the last range + ack of a
+//                     parallel one, on the opening connection): root length (0 = none) + Merkle
+//                     root of the plaintext (see MerkleTree) -> STATUS_OK (the stored file has that
+//                     root; a file stored at rest is read back to check), STATUS_ERROR (it does not, and was deleted) or STATUS_UNVERIFIED (kept
+//                     encrypted; checked if and when it is decrypted), then the stored name (UTF)
+// Stored name:        the file's own name, or <base>-<transfer ID><ext> when an earlier upload holds it
+//                     (files are never replaced); "" while it is only spooled or if it was rejected
+// Multi-file session:  OP_SESSION (RSA handshake) or OP_SESSION_RESUME (ticket, nonce, as OP_RESUME)
+//                     -> new session ticket, then per file: name, size, codec, suite id, IV, segment stream,
+//                     root length + Merkle root (no acks in between, so the client can keep the pipe
+//                     full); an empty name ends -> file count + one status and stored name per file,
+//                     in order (a file whose root does not match gets STATUS_ERROR)
+// Range read of a file stored at rest (see SealedFile):
+//                     OP_READ (RSA handshake) or OP_READ_RESUME -> new session ticket, then name,
+//                     offset (< 0: from the end), length (< 0: to the end), suite id -> status (+ message if
+//                     reads are disabled), nonce -> HMAC proof of the file's read token (see
+//                     SessionTickets.readProof) -> status (+ message if refused), file size, start, length,
+//                     IV, the range as a segment stream
+public final class Protocol {
+    public static final int OP_UPLOAD = 1; // RSA handshake + file header (+ inline data when streams == 1)
+    public static final int OP_JOIN = 2;   // additional stream of a parallel upload: transfer ID, key proof, one range
+    public static final int OP_RESUME = 3; // like OP_UPLOAD, but a session ticket + nonce replace the RSA exchange
+    public static final int OP_CONTINUE = 4; // reconnect to an interrupted upload and send the segments it is missing
+    public static final int OP_SESSION = 5; // RSA handshake, then any number of files on this connection
+    public static final int OP_SESSION_RESUME = 6; // like OP_SESSION, with a session ticket instead of the RSA exchange
+    public static final int OP_READ = 7; // RSA handshake, then one byte range of a file stored at rest
+    public static final int OP_READ_RESUME = 8; // like OP_READ, with a session ticket instead of the RSA exchange
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    public static final int STATUS_UNVERIFIED = 2; // integrity check: no plaintext stored (yet) to compare against
+
+    public static final int MAX_STREAMS = 64;
+    public static final int DEDUP_BATCH = 4096; // chunk fingerprints per request in a deduplicated upload
+    public static final int MAX_NAME_LENGTH = 4096; // bytes of UTF-8
+    // Session files up to this many encrypted bytes are encrypted and buffered whole on both sides
+    public static final int SESSION_SMALL_FILE = 1 << 20;
+
+    private Protocol() {}
+}
@@ -0,0 +1,325 @@
+package ml_project.cn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+// Reassembles a parallel upload: each stream carries a contiguous run of segments, which is written
+// into place in a preallocated target file with positional writes. Arrival order does not matter;
+// overlapping or out-of-range runs are rejected, and the transfer is complete once every segment
+// has been written exactly once.
+//
+// In spool mode the target is the .enc file and the ReceiveEngine copies ciphertext verbatim;
+// compressed segments are shorter than their slot, so they are copied one at a time.
+// In decrypt mode each segment is authenticated as it arrives and its plaintext is written at
+// counter * SEGMENT_SIZE in the target, so no ciphertext ever touches the disk.
+//
+// When hashing, the plaintext also feeds a MerkleTree.Builder as each segment is authenticated, so
+// the end-to-end check needs no second pass over the file. A spooled upload is then authenticated
+// segment by segment too, but still stored as ciphertext.
+//
+// Single-stream uploads are one range covering the whole file. Progress is tracked per segment, so
+// when a stream breaks only its unfinished segments are released; with a checkpoint attached the
+// progress is also saved to disk every few segments, and a reconnecting client is told which
+// ranges are still missing (see Protocol.OP_CONTINUE).
+public class RangeAssembler implements Closeable {
+    // Segments received between progress updates; a broken stream loses at most this many
+    private static final int CHUNK_SEGMENTS = 16;
+
+    private final TransferSession session;
+    private final File target;
+    private final boolean decrypt;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ReceiveEngine engine;
+    private final long totalSegments;
+    private final UploadCheckpoint checkpoint; // null when the upload is not resumable
+    private final MerkleTree.Builder tree;     // null when not hashing
+    private final long checkpointSegments;
+    // Time per CHUNK_SEGMENTS received (spooled or decrypted) and plaintext bytes received
+    private final LatencyHistogram chunkNanos;
+    private final LongAdder bytesReceived;
+
+    // Guarded by 'this'
+    private final BitSet claimed = new BitSet(); // being received by some stream, or done
+    private final BitSet done = new BitSet();    // written to the target
+    private long doneCount = 0;
+    private long sinceCheckpoint = 0;
+    private boolean completed = false;
+    private boolean closed = false;
+    private final Set<Closeable> streams = new HashSet<>();
+    private long lastActivity = System.currentTimeMillis();
+
+    public RangeAssembler(TransferSession session, ReceiveEngine engine, File target, boolean decrypt, boolean hash,
+                          UploadCheckpoint checkpoint, long checkpointSegments, TransferMetrics metrics) throws IOException {
+        if (SegmentedAead.encryptedSize(session.getOriginalSize()) != session.getEncryptedSize()) {
+            throw new IOException("Announced encrypted size does not match the segment layout");
+        }
+        this.session = session;
+        this.engine = engine;
+        this.target = target;
+        this.decrypt = decrypt;
+        this.checkpoint = checkpoint;
+        this.checkpointSegments = checkpointSegments;
+        this.tree = hash ? new MerkleTree.Builder(session.getOriginalSize()) : null;
+        this.chunkNanos = metrics.histogram(decrypt ? "receive.decryptChunkNanos" : "receive.spoolChunkNanos");
+        this.bytesReceived = metrics.counter("bytes.received");
+        this.totalSegments = SegmentedAead.segmentCount(session.getOriginalSize());
+        this.file = new RandomAccessFile(target, "rw");
+        this.file.setLength(decrypt ? session.getOriginalSize() : session.getEncryptedSize());
+        this.channel = file.getChannel();
+    }
+
+    public TransferSession getSession() {
+        return session;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    public boolean isDecrypting() {
+        return decrypt;
+    }
+
+    public long getTotalSegments() {
+        return totalSegments;
+    }
+
+    // Hashes of the plaintext received so far, or null when not hashing; see MerkleTree.Builder
+    public MerkleTree.Builder getTree() {
+        return tree;
+    }
+
+    // Marks segments recorded by a checkpoint from an earlier run as already received
+    public synchronized void restore(BitSet received) {
+        done.or(received);
+        done.clear((int) totalSegments, Math.max((int) totalSegments, done.length()));
+        claimed.or(done);
+        doneCount = done.cardinality();
+    }
+
+    public synchronized long doneSegments() {
+        return doneCount;
+    }
+
+    // Reads segments [first, first + count) from 'connection' and writes them at their final offset.
+    // Returns true if this range completed the transfer. If the stream breaks, the segments it did
+    // not finish are released so that a continuation can send them again.
+    public boolean receiveRange(ReceiveEngine.HeaderInputStream header, ReadableByteChannel source,
+                                long first, long count, Closeable connection) throws IOException {
+        if (first < 0 || count <= 0 || first + count > totalSegments) {
+            throw new IOException("Invalid range [" + first + ", " + (first + count) + ") of " + totalSegments + " segments");
+        }
+        long end = first + count;
+        synchronized (this) {
+            if (closed) throw new IOException("Transfer " + session + " is no longer receiving");
+            int next = claimed.nextSetBit((int) first);
+            if (next != -1 && next < end) {
+                throw new IOException("Range [" + first + ", " + end + ") overlaps a range already received");
+            }
+            claimed.set((int) first, (int) end);
+            streams.add(connection);
+            lastActivity = System.currentTimeMillis();
+        }
+
+        DataInputStream in = new DataInputStream(header);
+        boolean authenticate = decrypt || tree != null;
+        byte[] body = authenticate ? new byte[SegmentedAead.SEGMENT_SIZE + Crypto.GCM_TAG_LENGTH] : null;
+        byte[] plain = authenticate ? new byte[SegmentedAead.SEGMENT_SIZE] : null;
+        long c = first;
+        try {
+            while (c < end) {
+                long n = Math.min(CHUNK_SEGMENTS, end - c);
+                long started = System.nanoTime();
+                if (decrypt) {
+                    decryptSegments(in, c, n, body, plain);
+                } else if (tree != null) {
+                    authenticateSegments(in, c, n, body, plain);
+                } else if (session.getCodec() != Compression.Codec.NONE) {
+                    spoolSegments(in, header, source, c, n);
+                } else {
+                    long pos = SegmentedAead.segmentOffset(c);
+                    long stop = Math.min(session.getEncryptedSize(), SegmentedAead.segmentOffset(c + n));
+                    engine.receive(header, source, channel, pos, stop - pos);
+                }
+                chunkNanos.recordSince(started);
+                bytesReceived.add(Math.min(session.getOriginalSize(), (c + n) * SegmentedAead.SEGMENT_SIZE)
+                        - c * SegmentedAead.SEGMENT_SIZE);
+                c += n;
+                if (markDone(c - n, c)) return true;
+            }
+            return false;
+        } catch (IOException e) {
+            synchronized (this) {
+                claimed.clear((int) c, (int) end);
+            }
+            // Whatever this stream hashed of the released segments may be received again
+            if (tree != null) tree.invalidate(c * SegmentedAead.SEGMENT_SIZE, end * SegmentedAead.SEGMENT_SIZE);
+            throw e;
+        } finally {
+            synchronized (this) {
+                streams.remove(connection);
+                lastActivity = System.currentTimeMillis();
+                notifyAll();
+            }
+        }
+    }
+
+    private void decryptSegments(DataInputStream in, long first, long count, byte[] body, byte[] plain) throws IOException {
+        for (long c = first; c < first + count; c++) {
+            int h = SegmentedAead.readSegment(in, session.getAesKey(), session.getIv(), c, body, plain);
+            if (SegmentedAead.isFinal(h) != (c == totalSegments - 1)) {
+                throw new IOException("Final segment marker out of place at segment " + c);
+            }
+            ByteBuffer bb = ByteBuffer.wrap(plain, 0, SegmentedAead.plainLength(h));
+            long pos = c * SegmentedAead.SEGMENT_SIZE;
+            while (bb.hasRemaining()) {
+                pos += channel.write(bb, pos);
+            }
+            if (tree != null) tree.update(c * SegmentedAead.SEGMENT_SIZE, plain, 0, SegmentedAead.plainLength(h));
+        }
+    }
+
+    // Spools segments like spoolSegments, but authenticates each one on the way to hash its plaintext
+    private void authenticateSegments(DataInputStream in, long first, long count, byte[] body, byte[] plain) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(SegmentedAead.HEADER_LENGTH + body.length);
+        for (long c = first; c < first + count; c++) {
+            int h = in.readInt();
+            int bodyLen = SegmentedAead.bodyLength(h, c);
+            in.readFully(body, 0, bodyLen);
+            int opened = SegmentedAead.openSegment(session.getAesKey(), session.getIv(), c, h, body, bodyLen, plain);
+            if (SegmentedAead.isFinal(opened) != (c == totalSegments - 1)) {
+                throw new IOException("Final segment marker out of place at segment " + c);
+            }
+            frame.clear();
+            frame.putInt(h).put(body, 0, bodyLen).flip();
+            long pos = SegmentedAead.segmentOffset(c);
+            while (frame.hasRemaining()) {
+                pos += channel.write(frame, pos);
+            }
+            tree.update(c * SegmentedAead.SEGMENT_SIZE, plain, 0, SegmentedAead.plainLength(opened));
+        }
+    }
+
+    // Copies variable-length segment frames into their fixed slots, header included
+    private void spoolSegments(DataInputStream in, ReceiveEngine.HeaderInputStream header, ReadableByteChannel source,
+                               long first, long count) throws IOException {
+        ByteBuffer hdr = ByteBuffer.allocate(SegmentedAead.HEADER_LENGTH);
+        for (long c = first; c < first + count; c++) {
+            int h = in.readInt();
+            int bodyLen = SegmentedAead.bodyLength(h, c);
+            long pos = SegmentedAead.segmentOffset(c);
+            hdr.clear();
+            hdr.putInt(h).flip();
+            while (hdr.hasRemaining()) {
+                pos += channel.write(hdr, pos);
+            }
+            engine.receive(header, source, channel, pos, bodyLen);
+        }
+    }
+
+    // Records finished segments; returns true exactly once, for whichever call completes the transfer
+    private boolean markDone(long from, long to) throws IOException {
+        boolean save;
+        synchronized (this) {
+            done.set((int) from, (int) to);
+            doneCount += to - from;
+            sinceCheckpoint += to - from;
+            if (doneCount == totalSegments) {
+                if (completed) return false;
+                completed = true;
+                return true;
+            }
+            save = checkpoint != null && sinceCheckpoint >= checkpointSegments;
+        }
+        if (save) checkpoint();
+        return false;
+    }
+
+    // Forces the target to disk and records everything received so far in the checkpoint file
+    public void checkpoint() throws IOException {
+        if (checkpoint == null) return;
+        BitSet snapshot;
+        synchronized (this) {
+            if (closed || completed) return;
+            snapshot = (BitSet) done.clone();
+            sinceCheckpoint = 0;
+        }
+        // Every segment in the snapshot was written before it was taken, so forcing now covers it
+        channel.force(false);
+        checkpoint.save(snapshot);
+    }
+
+    // Segment runs [first, count] nobody has delivered or is currently delivering
+    public synchronized List<long[]> missingRanges() {
+        List<long[]> runs = new ArrayList<>();
+        int from = claimed.nextClearBit(0);
+        while (from < totalSegments) {
+            int to = claimed.nextSetBit(from);
+            if (to == -1 || to > totalSegments) to = (int) totalSegments;
+            runs.add(new long[] {from, to - from});
+            from = claimed.nextClearBit(to);
+        }
+        return runs;
+    }
+
+    // Closes the connections still feeding this transfer (e.g. half-open ones the client has already
+    // given up on) and waits up to 'timeoutMillis' for their segments to be released
+    public void abortStreams(long timeoutMillis) throws InterruptedException {
+        List<Closeable> open;
+        synchronized (this) {
+            open = new ArrayList<>(streams);
+        }
+        for (Closeable c : open) {
+            try { c.close(); } catch (IOException ignored) {}
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            long left;
+            while (!streams.isEmpty() && (left = deadline - System.currentTimeMillis()) > 0) {
+                wait(left);
+            }
+        }
+    }
+
+    // Milliseconds since the last stream finished, or 0 while any stream is receiving
+    public synchronized long idleMillis() {
+        return streams.isEmpty() ? System.currentTimeMillis() - lastActivity : 0;
+    }
+
+    // Flushes the target to stable storage before it is committed
+    public void force() throws IOException {
+        channel.force(true);
+    }
+
+    // Closes the target. An incomplete upload is checkpointed first so it can be continued later.
+    @Override public void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            synchronized (this) {
+                closed = true;
+            }
+            file.close();
+            if (completed && checkpoint != null) checkpoint.delete();
+        }
+    }
+
+    // Gives up on the upload: closes and deletes the target and any checkpoint
+    public void discard() {
+        synchronized (this) {
+            closed = true;
+        }
+        try { file.close(); } catch (IOException ignored) {}
+        target.delete();
+        if (checkpoint != null) checkpoint.delete();
+    }
+}
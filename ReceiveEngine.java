@@ -0,0 +1,109 @@
+package ml_project.cn;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+// Moves ciphertext from a SocketChannel to a FileChannel without going through heap byte[] copies.
+//
+// TRANSFER_FROM hands the whole range to FileChannel.transferFrom; DIRECT_BUFFER reads into pooled
+// direct buffers and issues large positional writes. Either way, the few bytes that were already
+// pulled into the header stream's buffer while parsing the handshake are written out first.
+//
+// Configured with system properties:
+//   sft.receive.mode        TRANSFER_FROM | DIRECT_BUFFER (default DIRECT_BUFFER)
+//   sft.receive.bufferSize  direct buffer size in bytes (default 256 KB)
+public class ReceiveEngine {
+    public enum Mode { TRANSFER_FROM, DIRECT_BUFFER }
+
+    private final Mode mode;
+    private final DirectBufferPool buffers;
+
+    public ReceiveEngine(Mode mode, int bufferSize, int maxPooledBuffers) {
+        this.mode = mode;
+        this.buffers = new DirectBufferPool(bufferSize, maxPooledBuffers);
+    }
+
+    public static ReceiveEngine fromSystemProperties() {
+        return fromSystemProperties(256 * 1024);
+    }
+
+    // 'bufferSize' unless sft.receive.bufferSize is set (see TransportProfile)
+    public static ReceiveEngine fromSystemProperties(int bufferSize) {
+        Mode mode = Mode.valueOf(System.getProperty("sft.receive.mode", Mode.DIRECT_BUFFER.name()).trim().toUpperCase());
+        bufferSize = Integer.getInteger("sft.receive.bufferSize", bufferSize);
+        return new ReceiveEngine(mode, bufferSize, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getBufferSize() {
+        return buffers.getBufferSize();
+    }
+
+    // Writes exactly 'length' bytes from the connection into 'file' starting at 'position'
+    public long receive(HeaderInputStream header, ReadableByteChannel channel, FileChannel file,
+                        long position, long length) throws IOException {
+        long pos = position;
+        long end = position + length;
+
+        // 1. Bytes the header stream read ahead of the handshake fields
+        ByteBuffer early = header.takeBuffered((int) Math.min(Integer.MAX_VALUE, length));
+        while (early.hasRemaining()) {
+            pos += file.write(early, pos);
+        }
+
+        // 2. Everything else straight from the socket
+        if (mode == Mode.TRANSFER_FROM) {
+            while (pos < end) {
+                long n = file.transferFrom(channel, pos, end - pos);
+                if (n <= 0) throw eof(pos - position, length);
+                pos += n;
+            }
+        } else {
+            ByteBuffer buf = buffers.acquire();
+            try {
+                while (pos < end) {
+                    buf.clear();
+                    if (end - pos < buf.capacity()) buf.limit((int) (end - pos));
+                    if (channel.read(buf) == -1) throw eof(pos - position, length);
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        pos += file.write(buf, pos);
+                    }
+                }
+            } finally {
+                buffers.release(buf);
+            }
+        }
+        return pos - position;
+    }
+
+    private static EOFException eof(long got, long expected) {
+        return new EOFException("Connection closed after " + got + " of " + expected + " bytes");
+    }
+
+    // BufferedInputStream used for the handshake fields that can hand back whatever it read ahead,
+    // so the bulk data can then be pulled directly from the underlying channel.
+    public static class HeaderInputStream extends BufferedInputStream {
+        public HeaderInputStream(InputStream in) {
+            super(in);
+        }
+
+        public HeaderInputStream(InputStream in, int size) {
+            super(in, size);
+        }
+
+        // Returns up to 'max' read-ahead bytes (as a view of the internal buffer) and consumes them
+        public synchronized ByteBuffer takeBuffered(int max) {
+            if (buf == null) return ByteBuffer.allocate(0); // closed
+            int n = Math.max(0, Math.min(max, count - pos));
+            ByteBuffer view = ByteBuffer.wrap(buf, pos, n).slice();
+            pos += n;
+            return view;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ml_project.cn;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// Log output of an EventPipeline: each message goes to the console (prefixed, as before) and, if a
+// file is configured, to a size-bounded log file. When the file would grow past 'maxBytes' it is
+// renamed to <file>.1 (the older ones shift to .2, .3, ...) and at most 'keep' old files are kept,
+// so the log never takes more than (keep + 1) * maxBytes of disk.
+//
+// Only ever used from the pipeline's own thread, so it is not synchronized.
+//
+// Configured with system properties:
+//   sft.log.file      log file path (default: none, console only)
+//   sft.log.maxBytes  size at which the file is rotated (default 16 MB)
+//   sft.log.files     rotated files kept (default 5)
+public class RotatingLog implements Closeable {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private final String consolePrefix; // null: no console output
+    private final File file;            // null: no file output
+    private final long maxBytes;
+    private final int keep;
+    private final StringBuilder console = new StringBuilder();
+    private OutputStream out;
+    private long size;
+    private boolean broken;
+
+    public RotatingLog(String consolePrefix, File file, long maxBytes, int keep) {
+        this.consolePrefix = consolePrefix;
+        this.file = file;
+        this.maxBytes = Math.max(1024, maxBytes);
+        this.keep = Math.max(0, keep);
+    }
+
+    public static RotatingLog fromSystemProperties(String consolePrefix) {
+        String path = System.getProperty("sft.log.file");
+        return new RotatingLog(consolePrefix, path == null || path.isEmpty() ? null : new File(path),
+                Long.getLong("sft.log.maxBytes", 16L << 20), Integer.getInteger("sft.log.files", 5));
+    }
+
+    public void write(long millis, String message) {
+        if (consolePrefix != null) console.append(consolePrefix).append(' ').append(message).append(System.lineSeparator());
+        if (file == null || broken) return;
+        byte[] line = (TIME.format(Instant.ofEpochMilli(millis)) + " " + message + "\n").getBytes(StandardCharsets.UTF_8);
+        try {
+            if (out != null && size + line.length > maxBytes) rotate();
+            if (out == null) open();
+            out.write(line);
+            size += line.length;
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    // Pushes everything written since the last flush to the console and the file
+    public void flush() {
+        if (console.length() > 0) {
+            System.out.print(console);
+            System.out.flush();
+            console.setLength(0);
+        }
+        if (out == null) return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override public void close() {
+        flush();
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {}
+        out = null;
+    }
+
+    private void open() throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        out = new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16);
+        size = file.length();
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        out = null;
+        if (keep == 0) {
+            if (!file.delete()) throw new IOException("Cannot truncate " + file);
+            return;
+        }
+        new File(file.getPath() + "." + keep).delete();
+        for (int i = keep - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.isFile() && !older.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                throw new IOException("Cannot rotate " + older);
+            }
+        }
+        if (!file.renameTo(new File(file.getPath() + ".1"))) throw new IOException("Cannot rotate " + file);
+    }
+
+    // A broken log file must not stop the transfers; report it once and carry on with the console
+    private void failed(IOException e) {
+        System.err.println("Log file " + file + " disabled: " + e.getMessage());
+        broken = true;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,213 @@
+package ml_project.cn;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.List;
+
+// A file kept encrypted at rest in the server's save directory (<name>.sealed): the spooled
+// segment stream exactly as it arrived, followed by a trailer with the file key wrapped by the
+// server's RSA key, the base IV, the sizes and the cipher suite (see CipherSuite):
+//
+//   [segment 0][segment 1]...[segment n-1][wrapped key][IV][original size][encrypted size]
+//   [suite id][wrapped key length][version][magic "SFTS"]
+//
+// Every segment is authenticated on its own and sits in a fixed slot of SEGMENT_FRAME bytes, so the
+// slot table is the offset index: plaintext byte p is in segment p / SEGMENT_SIZE, stored at
+// segment * SEGMENT_FRAME. A range read therefore decrypts only the segments it overlaps, and costs
+// the same at the start or the end of a 50 GB file.
+//
+// Not thread-safe; open one instance per reader.
+public class SealedFile implements Closeable {
+    private static final int MAGIC = 0x53465453; // "SFTS"
+    private static final int VERSION = 1;
+    private static final int FIXED_TRAILER = Crypto.GCM_IV_LENGTH + 8 + 8 + 4 + 4 + 4 + 4;
+    public static final String SUFFIX = ".sealed";
+
+    private final File file;
+    private final FileChannel channel;
+    private final SecretKey key;
+    private final byte[] iv;
+    private final long size;
+    private final long encryptedSize;
+    private final long totalSegments;
+
+    // The last segment decrypted, so sequential reads decrypt each segment once
+    private final byte[] frame = new byte[SegmentedAead.SEGMENT_FRAME];
+    private final byte[] body = new byte[SegmentedAead.SEGMENT_SIZE + Crypto.GCM_TAG_LENGTH];
+    private final byte[] plain = new byte[SegmentedAead.SEGMENT_SIZE];
+    private long cachedSegment = -1;
+    private int cachedLength;
+
+    private SealedFile(File file, FileChannel channel, SecretKey key, byte[] iv, long size, long encryptedSize) {
+        this.file = file;
+        this.channel = channel;
+        this.key = key;
+        this.iv = iv;
+        this.size = size;
+        this.encryptedSize = encryptedSize;
+        this.totalSegments = SegmentedAead.segmentCount(size);
+    }
+
+    // Turns a completely spooled upload into a sealed file at 'dest' (replacing what is there, e.g. the
+    // placeholder of a reserved name): appends the trailer, forces it to disk and moves it into place
+    public static void seal(TransferSession session, PublicKey serverKey, File dest) throws IOException {
+        byte[] wrapped;
+        try {
+            wrapped = Crypto.rsaEncrypt(session.getAesKey().getEncoded(), serverKey);
+        } catch (Exception e) {
+            throw new IOException("Could not wrap the file key: " + e.getMessage(), e);
+        }
+        File spool = session.getEncryptedFile();
+        try (FileChannel ch = FileChannel.open(spool.toPath(), StandardOpenOption.WRITE)) {
+            if (ch.size() != session.getEncryptedSize()) throw new IOException("Spool file " + spool + " is incomplete");
+            ByteBuffer trailer = ByteBuffer.allocate(wrapped.length + FIXED_TRAILER);
+            trailer.put(wrapped).put(session.getIv()).putLong(session.getOriginalSize()).putLong(session.getEncryptedSize())
+                    .putInt(CipherSuite.of(session.getAesKey()).id).putInt(wrapped.length).putInt(VERSION).putInt(MAGIC).flip();
+            long pos = session.getEncryptedSize();
+            while (trailer.hasRemaining()) {
+                pos += ch.write(trailer, pos);
+            }
+            ch.force(true);
+        }
+        try {
+            Files.move(spool.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(spool.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Opens a sealed file; unwrapping its key needs the server's private key at the time it was
+    // sealed, one of 'serverKeys' (see ServerKeyRing)
+    public static SealedFile open(File file, List<PrivateKey> serverKeys) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = ch.size();
+            if (length < FIXED_TRAILER) throw new IOException("Not a sealed file: " + file);
+            ByteBuffer tail = readAt(ch, length - 12, 12);
+            int wrappedLength = tail.getInt();
+            int version = tail.getInt();
+            if (version != VERSION || tail.getInt() != MAGIC || wrappedLength <= 0 || wrappedLength > 4096
+                    || wrappedLength + FIXED_TRAILER > length) {
+                throw new IOException("Not a sealed file: " + file);
+            }
+            ByteBuffer trailer = readAt(ch, length - FIXED_TRAILER - wrappedLength, wrappedLength + FIXED_TRAILER - 12);
+            byte[] wrapped = new byte[wrappedLength];
+            byte[] iv = new byte[Crypto.GCM_IV_LENGTH];
+            trailer.get(wrapped).get(iv);
+            long size = trailer.getLong();
+            long encryptedSize = trailer.getLong();
+            CipherSuite suite = CipherSuite.fromWire(trailer.getInt());
+            if (size < 0 || encryptedSize != SegmentedAead.encryptedSize(size)
+                    || encryptedSize + wrappedLength + FIXED_TRAILER != length) {
+                throw new IOException("Sealed file " + file + " has an inconsistent trailer");
+            }
+            byte[] key;
+            try {
+                key = ServerIdentity.unwrap(wrapped, serverKeys);
+            } catch (Exception e) {
+                throw new IOException("File key of " + file + " cannot be unwrapped (server identity changed?)", e);
+            }
+            return new SealedFile(file, ch, suite.key(key), iv, size, encryptedSize);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    // Token a reader must prove it holds before the server sends any of this file (see SessionTickets.readToken)
+    public byte[] readToken() throws IOException {
+        try {
+            return SessionTickets.readToken(key);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not derive the read token of " + file, e);
+        }
+    }
+
+    // Plaintext size
+    public long getSize() {
+        return size;
+    }
+
+    // Decrypts up to 'len' bytes starting at plaintext offset 'position' into b[off..]; returns the
+    // number of bytes read, or -1 at the end of the file
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if (position < 0) throw new IllegalArgumentException("Negative position " + position);
+        if (position >= size || len == 0) return position >= size ? -1 : 0;
+        int done = 0;
+        while (done < len && position < size) {
+            long segment = position / SegmentedAead.SEGMENT_SIZE;
+            load(segment);
+            int from = (int) (position - segment * SegmentedAead.SEGMENT_SIZE);
+            int n = Math.min(len - done, cachedLength - from);
+            System.arraycopy(plain, from, b, off + done, n);
+            done += n;
+            position += n;
+        }
+        return done;
+    }
+
+    // The whole plaintext as a stream, e.g. to check it against a Merkle root
+    public InputStream openStream() {
+        return new InputStream() {
+            private long position;
+
+            @Override public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override public int read(byte[] b, int off, int len) throws IOException {
+                int n = SealedFile.this.read(position, b, off, len);
+                if (n > 0) position += n;
+                return n;
+            }
+        };
+    }
+
+    // Reads, authenticates and decrypts the segment in slot 'segment'
+    private void load(long segment) throws IOException {
+        if (segment == cachedSegment) return;
+        cachedSegment = -1;
+        long slot = SegmentedAead.segmentOffset(segment);
+        int n = (int) Math.min(SegmentedAead.SEGMENT_FRAME, encryptedSize - slot);
+        ByteBuffer bb = ByteBuffer.wrap(frame, 0, n);
+        long pos = slot;
+        while (bb.hasRemaining()) {
+            int r = channel.read(bb, pos);
+            if (r < 0) throw new EOFException("Sealed file " + file + " is truncated");
+            pos += r;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 0, n));
+        int h = SegmentedAead.readSegment(in, key, iv, segment, body, plain);
+        boolean last = segment == totalSegments - 1;
+        int expected = last ? (int) (size - segment * SegmentedAead.SEGMENT_SIZE) : SegmentedAead.SEGMENT_SIZE;
+        if (SegmentedAead.isFinal(h) != last || SegmentedAead.plainLength(h) != expected) {
+            throw new IOException("Segment " + segment + " of " + file + " does not match the file size");
+        }
+        cachedSegment = segment;
+        cachedLength = expected;
+    }
+
+    private static ByteBuffer readAt(FileChannel ch, long position, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining()) {
+            int r = ch.read(bb, position + bb.position());
+            if (r < 0) throw new EOFException();
+        }
+        bb.flip();
+        return bb;
+    }
+
+    @Override public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,306 @@
+package ml_project.cn;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+// Chunked AEAD stream format (AES-GCM or ChaCha20-Poly1305, see CipherSuite).
+//
+// The plaintext is cut into fixed-size segments, each encrypted as its own AEAD message:
+//
+//   [int header][ciphertext][16-byte tag]   header = plaintext length | FINAL_FLAG on the last segment
+//                                                    (| COMPRESSED_FLAG if the plaintext is deflated)
+//
+// The nonce of segment N is the base IV with N xor-ed into its low 8 bytes, and the header is
+// bound as AAD, so segments cannot be reordered, dropped or have their final marker moved.
+// Decryption only ever buffers one segment, whatever the file size. A compressed segment (see
+// Compression) still decodes to a full SEGMENT_SIZE, so its wire frame is shorter than SEGMENT_FRAME
+// but it keeps its place in the layout.
+//
+// Each segment is a complete AEAD message, so the per-thread cipher from Crypto is re-initialised
+// for every segment instead of each stream owning (and looking up) its own instance.
+public final class SegmentedAead {
+    public static final int SEGMENT_SIZE = 64 * 1024; // plaintext bytes per segment
+    public static final int HEADER_LENGTH = 4; // bytes
+    public static final int SEGMENT_OVERHEAD = HEADER_LENGTH + Crypto.GCM_TAG_LENGTH;
+    public static final int SEGMENT_FRAME = SEGMENT_SIZE + SEGMENT_OVERHEAD; // wire size of a full segment
+    static final int FINAL_FLAG = 0x80000000;
+    static final int COMPRESSED_FLAG = 0x40000000;
+    private static final int LENGTH_MASK = ~(FINAL_FLAG | COMPRESSED_FLAG);
+
+    // Holds the compressed form of one segment between the codec and the cipher
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[SEGMENT_SIZE]);
+
+    private SegmentedAead() {}
+
+    // Number of segments used for a plaintext of the given size (an empty file still has one)
+    public static long segmentCount(long plainSize) {
+        if (plainSize == 0) return 1;
+        return (plainSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+    }
+
+    // Exact number of bytes on the wire for a plaintext of the given size
+    public static long encryptedSize(long plainSize) {
+        return plainSize + segmentCount(plainSize) * SEGMENT_OVERHEAD;
+    }
+
+    // Byte offset of segment 'counter' in the encrypted stream (every segment but the last is full)
+    public static long segmentOffset(long counter) {
+        return counter * SEGMENT_FRAME;
+    }
+
+    // Nonce for segment 'counter': base IV with the counter xor-ed into the last 8 bytes
+    public static byte[] segmentNonce(byte[] baseIv, long counter) {
+        byte[] nonce = baseIv.clone();
+        for (int i = 0; i < 8; i++) {
+            nonce[nonce.length - 1 - i] ^= (byte) (counter >>> (8 * i));
+        }
+        return nonce;
+    }
+
+    private static byte[] headerBytes(int header) {
+        return new byte[] {(byte) (header >>> 24), (byte) (header >>> 16), (byte) (header >>> 8), (byte) header};
+    }
+
+    // Encrypts one segment into 'out' (header + ciphertext + tag) and returns the bytes written
+    public static int encryptSegment(SecretKey key, byte[] baseIv, long counter, boolean last,
+                                     byte[] plain, int len, byte[] out) throws GeneralSecurityException {
+        return encryptSegment(key, baseIv, counter, last, plain, len, out, false);
+    }
+
+    // As above; with 'compress' the segment is deflated first, unless that does not pay off
+    public static int encryptSegment(SecretKey key, byte[] baseIv, long counter, boolean last,
+                                     byte[] plain, int len, byte[] out, boolean compress) throws GeneralSecurityException {
+        int header = len;
+        if (compress) {
+            byte[] packed = SCRATCH.get();
+            int n = Compression.compress(plain, len, packed);
+            if (n >= 0) {
+                plain = packed;
+                len = n;
+                header = n | COMPRESSED_FLAG;
+            }
+        }
+        if (last) header |= FINAL_FLAG;
+        byte[] hdr = headerBytes(header);
+        Cipher cipher = Crypto.threadCipher(Cipher.ENCRYPT_MODE, key, segmentNonce(baseIv, counter));
+        cipher.updateAAD(hdr);
+        System.arraycopy(hdr, 0, out, 0, HEADER_LENGTH);
+        return HEADER_LENGTH + cipher.doFinal(plain, 0, len, out, HEADER_LENGTH);
+    }
+
+    // ByteBuffer form for the send path (see SendEngine): seals the remaining bytes of 'plain' as
+    // segment 'counter' and appends the frame to 'out'. With a 'scratch' buffer (SEGMENT_SIZE bytes,
+    // direct for speed) the segment is deflated first, unless that does not pay off.
+    // Returns the frame length.
+    public static int encryptSegment(SecretKey key, byte[] baseIv, long counter, boolean last,
+                                     ByteBuffer plain, ByteBuffer out, ByteBuffer scratch) throws GeneralSecurityException {
+        int header = plain.remaining();
+        if (scratch != null) {
+            scratch.clear();
+            int n = Compression.compress(plain.duplicate(), scratch);
+            if (n >= 0) {
+                scratch.flip();
+                plain = scratch;
+                header = n | COMPRESSED_FLAG;
+            }
+        }
+        if (last) header |= FINAL_FLAG;
+        byte[] hdr = headerBytes(header);
+        Cipher cipher = Crypto.threadCipher(Cipher.ENCRYPT_MODE, key, segmentNonce(baseIv, counter));
+        cipher.updateAAD(hdr);
+        out.put(hdr);
+        return HEADER_LENGTH + cipher.doFinal(plain, out);
+    }
+
+    // Decrypts one segment body (ciphertext + tag) into 'out' and returns the plaintext length
+    public static int decryptSegment(SecretKey key, byte[] baseIv, long counter, int header,
+                                     byte[] body, int bodyLen, byte[] out) throws IOException {
+        try {
+            Cipher cipher = Crypto.threadCipher(Cipher.DECRYPT_MODE, key, segmentNonce(baseIv, counter));
+            cipher.updateAAD(headerBytes(header));
+            return cipher.doFinal(body, 0, bodyLen, out, 0);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Segment " + counter + " failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Segment " + counter + " could not be decrypted: " + e.getMessage(), e);
+        }
+    }
+
+    // Reads, authenticates and decrypts (and if needed inflates) segment 'counter' from 'in' into
+    // 'out', which must hold SEGMENT_SIZE bytes. Returns the header with the length replaced by the
+    // decoded length, so the caller can use plainLength() and isFinal() on it.
+    public static int readSegment(DataInput in, SecretKey key, byte[] baseIv, long counter,
+                                  byte[] body, byte[] out) throws IOException {
+        int header;
+        try {
+            header = in.readInt();
+        } catch (EOFException e) {
+            throw new EOFException("Encrypted stream truncated before final segment (segment " + counter + ")");
+        }
+        int bodyLen = bodyLength(header, counter);
+        try {
+            in.readFully(body, 0, bodyLen);
+        } catch (EOFException e) {
+            throw new EOFException("Encrypted stream truncated inside segment " + counter);
+        }
+        return openSegment(key, baseIv, counter, header, body, bodyLen, out);
+    }
+
+    // Authenticates and decrypts (and if needed inflates) a segment whose header and body have
+    // already been read; returns the header as readSegment() does
+    public static int openSegment(SecretKey key, byte[] baseIv, long counter, int header,
+                                  byte[] body, int bodyLen, byte[] out) throws IOException {
+        if (!isCompressed(header)) {
+            decryptSegment(key, baseIv, counter, header, body, bodyLen, out);
+            return header;
+        }
+        byte[] packed = SCRATCH.get();
+        int n = decryptSegment(key, baseIv, counter, header, body, bodyLen, packed);
+        int decoded = Compression.decompress(packed, n, out);
+        if (!isFinal(header) && decoded != SEGMENT_SIZE) {
+            throw new IOException("Segment " + counter + " decodes to " + decoded + " bytes");
+        }
+        return isFinal(header) ? (decoded | FINAL_FLAG) : decoded;
+    }
+
+    // Validates a segment header and returns the number of bytes (ciphertext + tag) that follow it
+    public static int bodyLength(int header, long counter) throws IOException {
+        int len = plainLength(header);
+        boolean full = len == SEGMENT_SIZE || isFinal(header) || isCompressed(header);
+        if (len > SEGMENT_SIZE || !full) {
+            throw new IOException("Malformed segment header at segment " + counter);
+        }
+        return len + Crypto.GCM_TAG_LENGTH;
+    }
+
+    public static boolean isFinal(int header) {
+        return (header & FINAL_FLAG) != 0;
+    }
+
+    public static boolean isCompressed(int header) {
+        return (header & COMPRESSED_FLAG) != 0;
+    }
+
+    // Length of the segment's payload: plaintext, or the compressed form if isCompressed()
+    public static int plainLength(int header) {
+        return header & LENGTH_MASK;
+    }
+
+    // OutputStream that encrypts everything written to it into the segmented format.
+    // The last segment is only known on close(), so a full segment is held back until more data arrives.
+    public static class EncryptingOutputStream extends FilterOutputStream {
+        private final SecretKey key;
+        private final byte[] baseIv;
+        private final byte[] plain = new byte[SEGMENT_SIZE];
+        private final byte[] sealed = new byte[SEGMENT_SIZE + SEGMENT_OVERHEAD];
+        private final boolean compress;
+        private int buffered = 0;
+        private long counter = 0;
+        private boolean closed = false;
+
+        public EncryptingOutputStream(OutputStream out, SecretKey key, byte[] baseIv) {
+            this(out, key, baseIv, false);
+        }
+
+        public EncryptingOutputStream(OutputStream out, SecretKey key, byte[] baseIv, boolean compress) {
+            super(out);
+            this.key = key;
+            this.baseIv = baseIv.clone();
+            this.compress = compress;
+        }
+
+        @Override public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            while (len > 0) {
+                if (buffered == SEGMENT_SIZE) writeSegment(false);
+                int n = Math.min(len, SEGMENT_SIZE - buffered);
+                System.arraycopy(b, off, plain, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            try {
+                int n = encryptSegment(key, baseIv, counter, last, plain, buffered, sealed, compress);
+                out.write(sealed, 0, n);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Segment " + counter + " could not be encrypted: " + e.getMessage(), e);
+            }
+            counter++;
+            buffered = 0;
+        }
+
+        // Flushes the underlying stream only; segments are sealed when full or on close
+        @Override public void flush() throws IOException {
+            out.flush();
+        }
+
+        // Seals the final segment. Does not close the underlying stream (the socket is reused).
+        @Override public void close() throws IOException {
+            if (closed) return;
+            writeSegment(true);
+            closed = true;
+            out.flush();
+        }
+    }
+
+    // InputStream that authenticates and decrypts the segmented format one segment at a time.
+    // A tampered segment fails as soon as it is read; a stream ending before the final segment is an error.
+    public static class DecryptingInputStream extends InputStream {
+        private final DataInputStream in;
+        private final SecretKey key;
+        private final byte[] baseIv;
+        private final byte[] body = new byte[SEGMENT_SIZE + Crypto.GCM_TAG_LENGTH];
+        private final byte[] plain = new byte[SEGMENT_SIZE];
+        private int pos = 0;
+        private int limit = 0;
+        private long counter = 0;
+        private boolean done = false;
+
+        public DecryptingInputStream(InputStream in, SecretKey key, byte[] baseIv) {
+            this.in = new DataInputStream(in);
+            this.key = key;
+            this.baseIv = baseIv.clone();
+        }
+
+        @Override public int read() throws IOException {
+            byte[] one = new byte[1];
+            int r = read(one, 0, 1);
+            return r == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (pos == limit) {
+                if (done) return -1;
+                readSegment();
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(plain, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private void readSegment() throws IOException {
+            int header = SegmentedAead.readSegment(in, key, baseIv, counter, body, plain);
+            limit = plainLength(header);
+            pos = 0;
+            counter++;
+            done = isFinal(header);
+        }
+
+        @Override public void close() throws IOException {
+            in.close();
+        }
+    }
+}
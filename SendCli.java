@@ -0,0 +1,201 @@
+package ml_project.cn;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Headless batch sender. Accepts files and directories (walked recursively) on the command line
+// and/or a list file with one path per line ("-" reads the list from stdin), and uploads them
+// with a configurable number of concurrent transfers. Exits non-zero if any upload failed.
+// Files go to the server under their base names, so a batch in which two different files share one
+// (e.g. a/x.bin and b/x.bin) is refused before anything is sent.
+//
+//   java ml_project.cn.SendCli [--host 127.0.0.1] [--port 8080] [--streams 1] [--concurrency 4]
+//                              [--retries 5] [--compress off|auto|always] [--dedup] [--stats] [--no-session]
+//                              [--no-verify] [--cipher auto|SUITE[,SUITE...]] [--transport auto|loopback|lan|wan]
+//                              [--list FILE|-] PATH...
+//
+// Single-stream uploads share one connection and handshake per concurrent worker (a multi-file
+// session, see TransferClient.sendFiles); --no-session opens a connection per file instead.
+// --stats prints the client metrics (handshake and RSA latency, throughput, ...) at the end.
+// Every upload is checked end to end against a Merkle tree of the source (see MerkleTree);
+// --no-verify skips the check. --cipher sets the AEAD suites offered to the server, best first
+// (AES-256-GCM, AES-128-GCM, ChaCha20-Poly1305); 'auto' ranks them by measuring each on this CPU.
+// --transport picks the socket and buffer sizing (see TransportProfile); 'auto' measures each link.
+public class SendCli {
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 8080;
+        int streams = 1;
+        int concurrency = Math.min(4, Runtime.getRuntime().availableProcessors());
+        int retries = -1;
+        Compression.Policy compression = Compression.defaultPolicy();
+        boolean dedup = Boolean.getBoolean("sft.dedup");
+        boolean stats = false;
+        boolean session = true;
+        boolean verify = Boolean.parseBoolean(System.getProperty("sft.integrity", "true"));
+        String cipher = null;
+        TransportProfile transport = TransportProfile.fromSystemProperties();
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host": host = args[++i]; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--streams": streams = Integer.parseInt(args[++i]); break;
+                case "--concurrency": concurrency = Integer.parseInt(args[++i]); break;
+                case "--retries": retries = Integer.parseInt(args[++i]); break;
+                case "--compress": compression = Compression.Policy.valueOf(args[++i].toUpperCase()); break;
+                case "--dedup": dedup = true; break;
+                case "--stats": stats = true; break;
+                case "--no-session": session = false; break;
+                case "--no-verify": verify = false; break;
+                case "--cipher": cipher = args[++i]; break;
+                case "--transport": transport = TransportProfile.parse(args[++i]); break;
+                case "--list": readList(args[++i], files); break;
+                case "--help":
+                    usage();
+                    return;
+                default:
+                    if (args[i].startsWith("--")) {
+                        System.err.println("Unknown option: " + args[i]);
+                        usage();
+                        System.exit(2);
+                    }
+                    collect(Paths.get(args[i]), files);
+            }
+        }
+        if (files.isEmpty()) {
+            usage();
+            System.exit(2);
+        }
+        if (!uniqueNames(files)) System.exit(2);
+
+        EventPipeline events = EventPipeline.fromSystemProperties("client", null, "[CLIENT]");
+        TransferClient client = new TransferClient(host, port, events);
+        if (retries >= 0) client.setRetries(retries);
+        client.setCompression(compression);
+        client.setDeduplicate(dedup);
+        client.setVerify(verify);
+        client.setTransport(transport);
+        if ("auto".equalsIgnoreCase(cipher)) {
+            List<CipherSuite.Calibration> speeds = CipherSuite.calibrate();
+            events.log("Cipher speed on this CPU: " + speeds);
+            client.setCipherSuites(CipherSuite.ranking(speeds));
+        } else if (cipher != null) {
+            client.setCipherSuites(CipherSuite.parseList(cipher));
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        final int perFileStreams = streams;
+        long start = System.nanoTime();
+        if (session && streams == 1 && !dedup) {
+            // One connection and handshake per worker, each streaming its share of the files
+            int groups = Math.max(1, Math.min(concurrency, files.size()));
+            for (int g = 0; g < groups; g++) {
+                List<File> group = new ArrayList<>();
+                for (int i = g; i < files.size(); i += groups) group.add(files.get(i));
+                workers.submit(() -> {
+                    try {
+                        Set<File> rejected = new HashSet<>(client.sendFiles(group));
+                        failed.addAndGet(rejected.size());
+                        for (File f : group) {
+                            if (!rejected.contains(f)) bytes.addAndGet(f.length());
+                            else System.err.println("[CLIENT] Failed " + f);
+                        }
+                    } catch (Exception ex) {
+                        failed.addAndGet(group.size());
+                        System.err.println("[CLIENT] Failed " + group.size() + " file(s): " + ex.getMessage());
+                    }
+                });
+            }
+        } else {
+            for (File f : files) {
+                workers.submit(() -> {
+                    try {
+                        client.sendFile(f, perFileStreams);
+                        bytes.addAndGet(f.length());
+                    } catch (Exception ex) {
+                        failed.incrementAndGet();
+                        System.err.println("[CLIENT] Failed " + f + ": " + ex.getMessage());
+                    }
+                });
+            }
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        events.close();
+
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("[CLIENT] Sent %d of %d file(s), %d bytes in %.2f s (%.1f MB/s)%n",
+                files.size() - failed.get(), files.size(), bytes.get(), secs, bytes.get() / 1e6 / Math.max(secs, 1e-9));
+        if (stats) System.out.print("[CLIENT] " + TransferClient.metrics().toText());
+        if (failed.get() > 0) System.exit(1);
+    }
+
+    private static void collect(Path path, List<File> files) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> walk = Files.walk(path)) {
+                walk.filter(Files::isRegularFile).forEach(p -> files.add(p.toFile()));
+            }
+        } else if (Files.isRegularFile(path)) {
+            files.add(path.toFile());
+        } else {
+            throw new FileNotFoundException(path.toString());
+        }
+    }
+
+    // Drops files listed more than once and reports every base name shared by different files
+    private static boolean uniqueNames(List<File> files) throws IOException {
+        Map<String, Set<Path>> byName = new TreeMap<>();
+        List<File> distinct = new ArrayList<>();
+        for (File f : files) {
+            if (byName.computeIfAbsent(f.getName(), n -> new LinkedHashSet<>()).add(f.toPath().toRealPath())) distinct.add(f);
+        }
+        boolean unique = true;
+        for (Map.Entry<String, Set<Path>> e : byName.entrySet()) {
+            if (e.getValue().size() > 1) {
+                System.err.println("[CLIENT] " + e.getValue().size() + " files are named " + e.getKey() + ": " + e.getValue());
+                unique = false;
+            }
+        }
+        if (!unique) {
+            System.err.println("[CLIENT] Refusing the batch: the server stores files by name only. Rename or send them separately.");
+            return false;
+        }
+        files.clear();
+        files.addAll(distinct);
+        return true;
+    }
+
+    private static void readList(String list, List<File> files) throws IOException {
+        InputStream in = "-".equals(list) ? System.in : new FileInputStream(list);
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = r.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty()) collect(Paths.get(line), files);
+        }
+        if (in != System.in) r.close();
+    }
+
+    private static void usage() {
+        System.out.println("Usage: SendCli [--host H] [--port N] [--streams N] [--concurrency N] [--retries N] [--compress off|auto|always] [--dedup] [--stats] [--no-session] [--no-verify] [--cipher auto|SUITE,...] [--transport auto|loopback|lan|wan] [--list FILE|-] PATH...");
+    }
+}
@@ -0,0 +1,143 @@
+package ml_project.cn;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.function.LongConsumer;
+
+// Moves plaintext from a FileChannel through AES/GCM to a SocketChannel without heap byte[] copies.
+//
+// MAPPED memory-maps the source a window at a time and encrypts straight out of the page cache;
+// DIRECT_BUFFER reads it with large positional reads into a direct buffer instead (for filesystems
+// where mapping is slow or unavailable). The cipher works ByteBuffer to ByteBuffer into one slot
+// per segment of a direct output buffer, and each batch of segments goes out in a single gathering
+// write. The slots keep a fixed stride, so final and compressed segments, which are shorter, are
+// sent without compacting anything.
+//
+// Configured with system properties:
+//   sft.send.mode           MAPPED | DIRECT_BUFFER (default MAPPED)
+//   sft.send.batchSegments  segments encrypted per gathering write (default 16, i.e. 1 MB)
+public class SendEngine {
+    public enum Mode { MAPPED, DIRECT_BUFFER }
+
+    // Bytes mapped at a time (a whole number of segments)
+    private static final long MAP_WINDOW = 1024L * SegmentedAead.SEGMENT_SIZE;
+
+    private final Mode mode;
+    private final int batchSegments;
+    private final DirectBufferPool frames;  // batchSegments slots of SEGMENT_FRAME bytes
+    private final DirectBufferPool plains;  // one batch of plaintext, in DIRECT_BUFFER mode
+    private final DirectBufferPool scratch; // one compressed segment
+
+    public SendEngine(Mode mode, int batchSegments, int maxPooledBuffers) {
+        this.mode = mode;
+        this.batchSegments = Math.max(1, batchSegments);
+        this.frames = new DirectBufferPool(this.batchSegments * SegmentedAead.SEGMENT_FRAME, maxPooledBuffers);
+        this.plains = new DirectBufferPool(this.batchSegments * SegmentedAead.SEGMENT_SIZE, maxPooledBuffers);
+        this.scratch = new DirectBufferPool(SegmentedAead.SEGMENT_SIZE, maxPooledBuffers);
+    }
+
+    public static SendEngine fromSystemProperties() {
+        return fromSystemProperties(Integer.getInteger("sft.send.batchSegments", 16));
+    }
+
+    // Mode from sft.send.mode, batch size from the caller (see TransportProfile)
+    public static SendEngine fromSystemProperties(int batchSegments) {
+        Mode mode = Mode.valueOf(System.getProperty("sft.send.mode", Mode.MAPPED.name()).trim().toUpperCase());
+        return new SendEngine(mode, batchSegments, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getBatchSegments() {
+        return batchSegments;
+    }
+
+    // Encrypts segments [first, first + count) of 'file' (plaintext 'size' bytes long) and writes
+    // the frames to 'socket'; 'progress' receives the plaintext bytes of each batch once it is sent
+    public void send(FileChannel file, long size, GatheringByteChannel socket, SecretKey key, byte[] iv,
+                     boolean compress, long first, long count, LongConsumer progress) throws IOException {
+        long totalSegments = SegmentedAead.segmentCount(size);
+        ByteBuffer out = frames.acquire();
+        ByteBuffer plain = mode == Mode.DIRECT_BUFFER ? plains.acquire() : null;
+        ByteBuffer packed = compress ? scratch.acquire() : null;
+        ByteBuffer[] slots = new ByteBuffer[batchSegments];
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        try {
+            long c = first, end = first + count;
+            while (c < end) {
+                int n = (int) Math.min(batchSegments, end - c);
+                long from = c * SegmentedAead.SEGMENT_SIZE;
+                long to = Math.min(size, (c + n) * SegmentedAead.SEGMENT_SIZE);
+
+                // Plaintext of the batch, as a buffer whose offset 0 is file offset 'base'
+                ByteBuffer source;
+                long base;
+                if (mode == Mode.MAPPED) {
+                    if (window == null || to > windowStart + window.capacity()) {
+                        windowStart = from;
+                        window = file.map(FileChannel.MapMode.READ_ONLY, from, Math.min(size - from, Math.max(MAP_WINDOW, to - from)));
+                    }
+                    source = window;
+                    base = windowStart;
+                } else {
+                    plain.clear().limit((int) (to - from));
+                    long pos = from;
+                    while (plain.hasRemaining()) {
+                        int r = file.read(plain, pos);
+                        if (r < 0) throw new IOException("File shrank while it was being sent");
+                        pos += r;
+                    }
+                    source = plain;
+                    base = from;
+                }
+
+                out.clear();
+                for (int i = 0; i < n; i++, c++) {
+                    long off = c * SegmentedAead.SEGMENT_SIZE;
+                    int len = (int) Math.min(SegmentedAead.SEGMENT_SIZE, size - off);
+                    ByteBuffer segment = source.duplicate();
+                    segment.limit((int) (off - base) + len).position((int) (off - base));
+                    int slot = i * SegmentedAead.SEGMENT_FRAME;
+                    out.limit(slot + SegmentedAead.SEGMENT_FRAME).position(slot);
+                    int frame = SegmentedAead.encryptSegment(key, iv, c, c == totalSegments - 1, segment, out, packed);
+                    ByteBuffer b = out.duplicate();
+                    b.limit(slot + frame).position(slot);
+                    slots[i] = b;
+                }
+                writeFully(socket, slots, n);
+                progress.accept(to - from);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Segment could not be encrypted: " + e.getMessage(), e);
+        } finally {
+            frames.release(out);
+            plains.release(plain);
+            scratch.release(packed);
+        }
+    }
+
+    private static void writeFully(GatheringByteChannel socket, ByteBuffer[] slots, int n) throws IOException {
+        int next = 0;
+        try {
+            while (next < n) {
+                socket.write(slots, next, n - next);
+                while (next < n && !slots[next].hasRemaining()) next++;
+            }
+        } catch (IOException e) {
+            // Channels report a reset or closed connection as a plain IOException; surface it the way
+            // socket streams do, so callers can tell a dropped connection from a bad file
+            SocketException se = new SocketException(e.getMessage() != null ? e.getMessage() : "Connection closed");
+            se.initCause(e);
+            throw se;
+        }
+    }
+}
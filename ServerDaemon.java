@@ -0,0 +1,132 @@
+package ml_project.cn;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Headless receiving server for containers, services and cron-style deployments.
+// Never loads AWT/Swing, so it starts fast and runs without a display.
+//
+//   java ml_project.cn.ServerDaemon [--port 8080] [--dir received] [--identity keys] [--spool | --keep-encrypted | --at-rest]
+//                                   [--serve-reads] [--stats SECONDS] [--stats-json FILE] [--cipher auto|SUITE[,SUITE...]]
+//                                   [--rotate-identity MINUTES] [--transport auto|loopback|lan|wan]
+//
+// By default uploads are decrypted while they arrive. --spool keeps the .enc spool file and
+// decrypts it on the worker pool once complete; --keep-encrypted leaves the .enc files alone.
+// --at-rest keeps every upload encrypted as <name>.sealed; with --serve-reads, FetchCli can read any
+// byte range of one given the file's read token.
+// --stats prints the server metrics every SECONDS (and once on shutdown); with --stats-json they
+// are also written to FILE as JSON. The same metrics are always available over JMX.
+// --cipher sets the AEAD suites clients may use, best first; 'auto' ranks them by measuring each on
+// this CPU at startup (see CipherSuite). --rotate-identity replaces the RSA identity in the background
+// every MINUTES; retired keys are kept so older checkpoints and .sealed files stay readable.
+// --transport sizes socket and receive buffers for a kind of link (see TransportProfile).
+public class ServerDaemon {
+    public static void main(String[] args) throws Exception {
+        int port = 8080;
+        File dir = new File("received");
+        File identity = null;
+        boolean decryptOnReceive = true;
+        boolean autoDecrypt = false;
+        boolean atRest = Boolean.getBoolean("sft.atRest");
+        boolean serveReads = Boolean.getBoolean("sft.read.enabled");
+        int statsSeconds = 0;
+        File statsJson = null;
+        String cipher = null;
+        long rotateMinutes = Long.getLong("sft.identity.rotateMinutes", 0);
+        TransportProfile transport = TransportProfile.fromSystemProperties();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--dir": dir = new File(args[++i]); break;
+                case "--identity": identity = new File(args[++i]); break;
+                case "--spool": decryptOnReceive = false; autoDecrypt = true; break;
+                case "--keep-encrypted": decryptOnReceive = false; autoDecrypt = false; break;
+                case "--at-rest": atRest = true; break;
+                case "--serve-reads": serveReads = true; break;
+                case "--stats": statsSeconds = Integer.parseInt(args[++i]); break;
+                case "--stats-json": statsJson = new File(args[++i]); break;
+                case "--cipher": cipher = args[++i]; break;
+                case "--rotate-identity": rotateMinutes = Long.parseLong(args[++i]); break;
+                case "--transport": transport = TransportProfile.parse(args[++i]); break;
+                case "--help":
+                    usage();
+                    return;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    usage();
+                    System.exit(2);
+            }
+        }
+
+        EventPipeline events = EventPipeline.fromSystemProperties("server", null, "[SERVER]");
+        TransferServer server = new TransferServer(dir, events);
+        if (identity != null) server.setIdentityDir(identity);
+        server.setIdentityRotation(rotateMinutes * 60_000);
+        server.setDecryptOnReceive(decryptOnReceive && !atRest);
+        server.setAutoDecrypt(autoDecrypt && !atRest);
+        server.setStoreAtRest(atRest);
+        server.setServeReads(serveReads);
+        server.setTransport(transport);
+        if ("auto".equalsIgnoreCase(cipher)) server.setCipherSuites(CipherSuite.ranking(CipherSuite.calibrate()));
+        else if (cipher != null) server.setCipherSuites(CipherSuite.parseList(cipher));
+        addProcessGauges(server.getMetrics());
+        server.start(port);
+
+        final File json = statsJson;
+        final boolean dumpOnExit = statsSeconds > 0;
+        if (dumpOnExit) {
+            ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "sft-stats");
+                t.setDaemon(true);
+                return t;
+            });
+            stats.scheduleAtFixedRate(() -> dumpStats(server.getMetrics(), json), statsSeconds, statsSeconds, TimeUnit.SECONDS);
+        }
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.shutdown();
+            events.close();
+            if (dumpOnExit) dumpStats(server.getMetrics(), json);
+            stopped.countDown();
+        }, "sft-shutdown"));
+        stopped.await();
+    }
+
+    // CPU time and heap of the daemon's JVM, so load tests can watch the server's own resource use
+    private static void addProcessGauges(TransferMetrics metrics) {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            metrics.gauge("process.cpuNanos", ((com.sun.management.OperatingSystemMXBean) os)::getProcessCpuTime);
+        }
+        metrics.gauge("process.heapUsedBytes", () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        metrics.gauge("process.heapMaxBytes", () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax());
+    }
+
+    private static void dumpStats(TransferMetrics metrics, File json) {
+        System.out.print("[SERVER] " + metrics.toText());
+        if (json == null) return;
+        // Replaced atomically, so a scraper never reads a half-written file
+        File tmp = new File(json.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), (metrics.toJson() + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), json.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[SERVER] Could not write " + json + ": " + e.getMessage());
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: ServerDaemon [--port N] [--dir PATH] [--identity DIR] [--spool | --keep-encrypted | --at-rest] [--serve-reads] [--stats SECONDS] [--stats-json FILE] [--cipher auto|SUITE,...] [--rotate-identity MINUTES] [--transport auto|loopback|lan|wan]");
+    }
+}
@@ -0,0 +1,169 @@
+package ml_project.cn;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.*;
+import java.security.cert.Certificate;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Long-lived RSA identity of the server, so a restart does not pay for a new 2048-bit key pair
+// and clients keep talking to the same key.
+//
+// If -Dsft.keystore points at a PKCS12/JKS keystore (e.g. created with keytool -genkeypair),
+// the key pair is read from it (sft.keystore.password, sft.keystore.alias). Otherwise the pair is
+// generated on first start and stored as DER files in the identity directory, readable by the
+// owner only.
+//
+// A rotated identity (see ServerKeyRing) moves the old private key to retired/ in the identity
+// directory: checkpoints and .sealed files wrapped with it can only be opened with it.
+public final class ServerIdentity {
+    public static final String PRIVATE_KEY_FILE = "server-rsa.key"; // PKCS#8
+    public static final String PUBLIC_KEY_FILE = "server-rsa.pub";  // X.509
+    public static final String RETIRED_DIR = "retired";
+
+    private ServerIdentity() {}
+
+    public static KeyPair loadOrCreate(File dir, TransferListener listener) throws Exception {
+        KeyPair pair = loadExisting(dir, listener);
+        return pair != null ? pair : create(dir, listener);
+    }
+
+    public static boolean fromKeyStore() {
+        return System.getProperty("sft.keystore") != null;
+    }
+
+    // The stored identity, or null if there is none yet (cheap: no key generation)
+    public static KeyPair loadExisting(File dir, TransferListener listener) throws Exception {
+        String keystore = System.getProperty("sft.keystore");
+        if (keystore != null) {
+            return fromKeyStore(new File(keystore), System.getProperty("sft.keystore.password", ""),
+                    System.getProperty("sft.keystore.alias"), listener);
+        }
+
+        File priv = new File(dir, PRIVATE_KEY_FILE);
+        File pub = new File(dir, PUBLIC_KEY_FILE);
+        if (!priv.isFile()) return null;
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        PrivateKey privateKey = kf.generatePrivate(new PKCS8EncodedKeySpec(Files.readAllBytes(priv.toPath())));
+        PublicKey publicKey = pub.isFile() ? kf.generatePublic(new X509EncodedKeySpec(Files.readAllBytes(pub.toPath()))) : null;
+        if (!matches(publicKey, privateKey)) {
+            // store() writes the private key first: a crash before the public one followed leaves
+            // the new private key next to the old public key, or none. The private key is the identity.
+            if (!(privateKey instanceof RSAPrivateCrtKey)) return null;
+            RSAPrivateCrtKey crt = (RSAPrivateCrtKey) privateKey;
+            publicKey = kf.generatePublic(new RSAPublicKeySpec(crt.getModulus(), crt.getPublicExponent()));
+            write(pub, publicKey.getEncoded());
+            listener.log("Server public key did not match the private key; rewrote it from the private key");
+        }
+        listener.log("Loaded server identity from " + dir.getAbsolutePath());
+        return new KeyPair(publicKey, privateKey);
+    }
+
+    private static boolean matches(PublicKey publicKey, PrivateKey privateKey) {
+        return publicKey instanceof RSAPublicKey && privateKey instanceof RSAPrivateKey
+                && ((RSAPublicKey) publicKey).getModulus().equals(((RSAPrivateKey) privateKey).getModulus());
+    }
+
+    // Generates a new 2048-bit identity and stores it (about a second of CPU)
+    public static KeyPair create(File dir, TransferListener listener) throws Exception {
+        long start = System.nanoTime();
+        KeyPair pair = Crypto.generateRSAKeyPair(2048);
+        store(pair, dir);
+        listener.log(String.format("Generated new server identity in %d ms, saved to %s",
+                (System.nanoTime() - start) / 1_000_000, dir.getAbsolutePath()));
+        return pair;
+    }
+
+    // Replaces the stored identity with a new one; 'old' (the pair in use) goes to retired/ first
+    public static KeyPair rotate(File dir, KeyPair old, TransferListener listener) throws Exception {
+        long start = System.nanoTime();
+        KeyPair pair = Crypto.generateRSAKeyPair(2048);
+        File retired = new File(dir, RETIRED_DIR);
+        retired.mkdirs();
+        write(new File(retired, "server-rsa-" + System.currentTimeMillis() + ".key"), old.getPrivate().getEncoded());
+        store(pair, dir);
+        listener.log(String.format("Rotated server identity in %d ms; the old key is kept in %s",
+                (System.nanoTime() - start) / 1_000_000, retired.getAbsolutePath()));
+        return pair;
+    }
+
+    // Private keys of earlier identities, newest first
+    public static List<PrivateKey> loadRetired(File dir) throws Exception {
+        File[] files = new File(dir, RETIRED_DIR).listFiles((d, name) -> name.endsWith(".key"));
+        List<PrivateKey> keys = new ArrayList<>();
+        if (files == null) return keys;
+        Arrays.sort(files, Comparator.comparing(File::getName, ServerIdentity::byTimestamp).reversed());
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        for (File f : files) keys.add(kf.generatePrivate(new PKCS8EncodedKeySpec(Files.readAllBytes(f.toPath()))));
+        return keys;
+    }
+
+    private static int byTimestamp(String a, String b) {
+        return a.length() != b.length() ? Integer.compare(a.length(), b.length()) : a.compareTo(b);
+    }
+
+    // Unwraps an RSA-wrapped key with whichever of 'keys' (current identity first) wrapped it
+    public static byte[] unwrap(byte[] wrapped, List<PrivateKey> keys) throws Exception {
+        Exception last = new InvalidKeyException("No server key");
+        for (PrivateKey key : keys) {
+            try {
+                return Crypto.rsaDecrypt(wrapped, key);
+            } catch (GeneralSecurityException e) {
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    // Writes each key atomically (temp file + rename) with owner-only permissions where supported;
+    // a pair torn by a crash between the two is repaired on load
+    public static void store(KeyPair pair, File dir) throws IOException {
+        dir.mkdirs();
+        write(new File(dir, PRIVATE_KEY_FILE), pair.getPrivate().getEncoded());
+        write(new File(dir, PUBLIC_KEY_FILE), pair.getPublic().getEncoded());
+    }
+
+    // The temp file is created owner-only before anything is written, so a private key is never
+    // readable by others, not even until the write finishes
+    private static void write(File target, byte[] data) throws IOException {
+        File tmp = new File(target.getParentFile(), target.getName() + ".tmp");
+        Files.deleteIfExists(tmp.toPath()); // left over from an interrupted write, with unknown permissions
+        try {
+            Files.createFile(tmp.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ignored) {
+            // non-POSIX file system
+            Files.createFile(tmp.toPath());
+        }
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(data);
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), target.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static KeyPair fromKeyStore(File file, String password, String alias, TransferListener listener) throws Exception {
+        char[] pw = password.toCharArray();
+        KeyStore ks = KeyStore.getInstance(file, pw);
+        if (alias == null) {
+            alias = ks.aliases().nextElement();
+        }
+        Key key = ks.getKey(alias, pw);
+        Certificate cert = ks.getCertificate(alias);
+        if (!(key instanceof PrivateKey) || cert == null) {
+            throw new KeyStoreException("Keystore entry '" + alias + "' is not an RSA key pair");
+        }
+        listener.log("Loaded server identity '" + alias + "' from keystore " + file.getAbsolutePath());
+        return new KeyPair(cert.getPublicKey(), (PrivateKey) key);
+    }
+}
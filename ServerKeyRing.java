@@ -0,0 +1,117 @@
+package ml_project.cn;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+// The server's RSA identity as the transfer path sees it. Key pairs are only ever generated on a
+// low-priority background thread: a server without a stored identity starts accepting connections
+// at once, and handshakes wait for the first pair instead of start(). With a rotation interval
+// (not for keystore identities) a new pair is generated in the background
+// and swapped in atomically; the retired private keys stay available to unwrap the keys of older
+// checkpoints and .sealed files (see ServerIdentity).
+public final class ServerKeyRing implements Closeable {
+    private final File dir;
+    private final TransferListener listener;
+    private final long rotateMillis;
+    private final CompletableFuture<KeyPair> first = new CompletableFuture<>();
+    private final List<PrivateKey> retired = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sft-identity");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private volatile KeyPair current;
+    private volatile long rotations;
+
+    public ServerKeyRing(File dir, TransferListener listener, long rotateMillis) {
+        this.dir = dir;
+        this.listener = listener;
+        this.rotateMillis = rotateMillis;
+    }
+
+    // Loads the stored identity on this thread (cheap), or starts generating one in the background
+    public void start() throws Exception {
+        retired.addAll(ServerIdentity.loadRetired(dir));
+        KeyPair existing = ServerIdentity.loadExisting(dir, listener);
+        if (existing != null) {
+            current = existing;
+            first.complete(existing);
+        } else {
+            listener.log("Generating the server identity in the background; handshakes wait for it.");
+            background.execute(() -> {
+                try {
+                    current = ServerIdentity.create(dir, listener);
+                    first.complete(current);
+                } catch (Exception e) {
+                    listener.log("Could not create the server identity: " + e.getMessage());
+                    first.completeExceptionally(e);
+                }
+            });
+        }
+        if (rotateMillis > 0) {
+            if (ServerIdentity.fromKeyStore()) {
+                listener.log("Server identity comes from a keystore; it is not rotated.");
+            } else {
+                background.scheduleWithFixedDelay(this::rotate, rotateMillis, rotateMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // Completes once the first key pair is available
+    public CompletableFuture<KeyPair> ready() {
+        return first;
+    }
+
+    // The key pair for a new handshake; waits only while the first one is being generated
+    public KeyPair current() throws IOException {
+        KeyPair pair = current;
+        if (pair != null) return pair;
+        try {
+            return first.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server identity");
+        } catch (ExecutionException e) {
+            throw new IOException("Server identity unavailable: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Current private key first, then the retired ones, newest first
+    public List<PrivateKey> privateKeys() throws IOException {
+        List<PrivateKey> keys = new ArrayList<>(retired.size() + 1);
+        keys.add(current().getPrivate());
+        keys.addAll(retired);
+        return keys;
+    }
+
+    public long rotations() {
+        return rotations;
+    }
+
+    // Runs on the background thread; a handshake that already sent the old public key keeps using the
+    // pair it started with
+    private void rotate() {
+        KeyPair old = current;
+        if (old == null) return;
+        try {
+            KeyPair next = ServerIdentity.rotate(dir, old, listener);
+            retired.add(0, old.getPrivate());
+            current = next;
+            rotations++;
+        } catch (Exception e) {
+            listener.log("Server identity rotation failed: " + e.getMessage());
+        }
+    }
+
+    @Override public void close() {
+        background.shutdownNow();
+    }
+}
@@ -0,0 +1,100 @@
+package ml_project.cn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free registry of in-flight and received-but-not-decrypted transfers, keyed by transfer ID.
+// Claiming is a CAS on the session state, so any number of threads can pick work concurrently
+// without two of them ever decrypting the same transfer.
+public class SessionRegistry {
+    private final ConcurrentHashMap<Long, TransferSession> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<TransferSession> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    public long nextId() {
+        return ids.incrementAndGet();
+    }
+
+    // Keeps nextId() above an ID restored from an earlier run
+    public void reserveId(long id) {
+        ids.accumulateAndGet(id, Math::max);
+    }
+
+    public void register(TransferSession session) {
+        sessions.put(session.getId(), session);
+    }
+
+    // Marks a fully spooled transfer as ready for decryption (arrival order is kept)
+    public void markReceived(TransferSession session) {
+        if (session.transition(TransferSession.State.RECEIVING, TransferSession.State.RECEIVED)) {
+            ready.add(session);
+        }
+    }
+
+    public TransferSession get(long id) {
+        return sessions.get(id);
+    }
+
+    // Claims one specific transfer for decryption, or returns null if it is not ready
+    public TransferSession claim(long id) {
+        TransferSession s = sessions.get(id);
+        if (s != null && s.transition(TransferSession.State.RECEIVED, TransferSession.State.DECRYPTING)) {
+            ready.remove(s);
+            return s;
+        }
+        return null;
+    }
+
+    // Claims the oldest ready transfer, or returns null if none is waiting
+    public TransferSession claimNext() {
+        TransferSession s;
+        while ((s = ready.poll()) != null) {
+            if (s.transition(TransferSession.State.RECEIVED, TransferSession.State.DECRYPTING)) return s;
+        }
+        return null;
+    }
+
+    // Claims up to 'max' ready transfers in arrival order
+    public List<TransferSession> claimBatch(int max) {
+        List<TransferSession> batch = new ArrayList<>();
+        TransferSession s;
+        while (batch.size() < max && (s = claimNext()) != null) {
+            batch.add(s);
+        }
+        return batch;
+    }
+
+    public List<TransferSession> claimAll() {
+        return claimBatch(Integer.MAX_VALUE);
+    }
+
+    public void remove(TransferSession session) {
+        sessions.remove(session.getId(), session);
+        ready.remove(session);
+    }
+
+    public int pendingCount() {
+        int n = 0;
+        for (TransferSession s : sessions.values()) {
+            if (s.getState() == TransferSession.State.RECEIVED) n++;
+        }
+        return n;
+    }
+
+    public int activeCount() {
+        return sessions.size();
+    }
+
+    public Collection<TransferSession> sessions() {
+        return sessions.values();
+    }
+
+    public void clear() {
+        sessions.clear();
+        ready.clear();
+    }
+}
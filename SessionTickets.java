@@ -0,0 +1,117 @@
+package ml_project.cn;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+// Stateless session resumption.
+//
+// After every upload the server hands the client a ticket: its own resumption secret, derived
+// from the transfer key, sealed under a server-only ticket key together with an expiry time.
+// On the next connection the client presents the ticket and a fresh nonce instead of doing the
+// RSA exchange; both sides then derive the new transfer key as HMAC(secret, nonce). The server
+// keeps no per-client state, and a restart (new ticket key) simply forces a full handshake.
+public class SessionTickets {
+    public static final int SECRET_LENGTH = 32;
+    public static final int NONCE_LENGTH = 16;
+    public static final int PROOF_LENGTH = 32; // HMAC-SHA256
+    private static final byte[] TICKET_AAD = "sft-ticket-v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESUMPTION_LABEL = "sft resumption".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_LABEL = "sft transfer".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTINUE_LABEL = "sft continue".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JOIN_LABEL = "sft join".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] READ_TOKEN_LABEL = "sft read token".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] READ_LABEL = "sft read".getBytes(StandardCharsets.US_ASCII);
+
+    private final SecretKey ticketKey;
+    private final long lifetimeMillis;
+
+    public SessionTickets(long lifetimeMillis) throws GeneralSecurityException {
+        this.ticketKey = Crypto.generateAESKey();
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    public static SessionTickets fromSystemProperties() throws GeneralSecurityException {
+        return new SessionTickets(Long.getLong("sft.ticketLifetimeSeconds", 3600) * 1000);
+    }
+
+    // Secret both sides can derive from a transfer key; it is what the ticket carries
+    public static byte[] resumptionSecret(SecretKey transferKey) throws GeneralSecurityException {
+        return Crypto.hmacSha256(transferKey.getEncoded(), RESUMPTION_LABEL);
+    }
+
+    // Key for a resumed transfer: HMAC(secret, label || client nonce)
+    public static SecretKey transferKey(byte[] secret, byte[] clientNonce) throws GeneralSecurityException {
+        byte[] input = Arrays.copyOf(TRANSFER_LABEL, TRANSFER_LABEL.length + clientNonce.length);
+        System.arraycopy(clientNonce, 0, input, TRANSFER_LABEL.length, clientNonce.length);
+        return Crypto.fromBytesToAESKey(Crypto.hmacSha256(secret, input));
+    }
+
+    // Proves knowledge of an upload's transfer key when reconnecting to it: HMAC(key, label || id || server nonce)
+    public static byte[] continueProof(SecretKey transferKey, long transferId, byte[] serverNonce) throws GeneralSecurityException {
+        return proof(CONTINUE_LABEL, transferKey, transferId, serverNonce);
+    }
+
+    // The same for an extra stream joining a parallel upload, under its own label
+    public static byte[] joinProof(SecretKey transferKey, long transferId, byte[] serverNonce) throws GeneralSecurityException {
+        return proof(JOIN_LABEL, transferKey, transferId, serverNonce);
+    }
+
+    // Token that allows range reads of a file stored at rest (see SealedFile). It is derived from the
+    // file's own key, so only the uploader (and the server, which can unwrap that key) knows it
+    public static byte[] readToken(SecretKey fileKey) throws GeneralSecurityException {
+        return Crypto.hmacSha256(fileKey.getEncoded(), READ_TOKEN_LABEL);
+    }
+
+    // Proves knowledge of a read token without sending it: HMAC(token, label || file name || server nonce)
+    public static byte[] readProof(byte[] readToken, String fileName, byte[] serverNonce) throws GeneralSecurityException {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer input = ByteBuffer.allocate(READ_LABEL.length + 4 + name.length + serverNonce.length);
+        input.put(READ_LABEL).putInt(name.length).put(name).put(serverNonce);
+        return Crypto.hmacSha256(readToken, input.array());
+    }
+
+    private static byte[] proof(byte[] label, SecretKey transferKey, long transferId, byte[] serverNonce) throws GeneralSecurityException {
+        ByteBuffer input = ByteBuffer.allocate(label.length + 8 + serverNonce.length);
+        input.put(label).putLong(transferId).put(serverNonce);
+        return Crypto.hmacSha256(transferKey.getEncoded(), input.array());
+    }
+
+    // ticket = iv || AES-GCM(ticketKey, iv, expiry || secret)
+    public byte[] issue(byte[] secret) throws GeneralSecurityException {
+        byte[] iv = Crypto.randomIv();
+        ByteBuffer plain = ByteBuffer.allocate(8 + SECRET_LENGTH);
+        plain.putLong(System.currentTimeMillis() + lifetimeMillis).put(secret);
+        Cipher c = Crypto.threadAESCipher(Cipher.ENCRYPT_MODE, ticketKey, iv);
+        c.updateAAD(TICKET_AAD);
+        byte[] sealed = c.doFinal(plain.array());
+        byte[] ticket = Arrays.copyOf(iv, iv.length + sealed.length);
+        System.arraycopy(sealed, 0, ticket, iv.length, sealed.length);
+        return ticket;
+    }
+
+    // Returns the resumption secret, or throws if the ticket is forged, from another server run, or expired
+    public byte[] open(byte[] ticket) throws IOException {
+        if (ticket.length != Crypto.GCM_IV_LENGTH + 8 + SECRET_LENGTH + Crypto.GCM_TAG_LENGTH) {
+            throw new IOException("Malformed session ticket");
+        }
+        ByteBuffer plain;
+        try {
+            Cipher c = Crypto.threadAESCipher(Cipher.DECRYPT_MODE, ticketKey, Arrays.copyOf(ticket, Crypto.GCM_IV_LENGTH));
+            c.updateAAD(TICKET_AAD);
+            plain = ByteBuffer.wrap(c.doFinal(ticket, Crypto.GCM_IV_LENGTH, ticket.length - Crypto.GCM_IV_LENGTH));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Session ticket rejected", e);
+        }
+        if (plain.getLong() < System.currentTimeMillis()) {
+            throw new IOException("Session ticket expired");
+        }
+        byte[] secret = new byte[SECRET_LENGTH];
+        plain.get(secret);
+        return secret;
+    }
+}
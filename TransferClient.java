@@ -0,0 +1,903 @@
+package ml_project.cn;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// UI-independent sending side: handshake, encryption and upload of one file per call, or of many
+// files over one connection (sendFiles), and range reads of files stored at rest (download).
+// Used by the Swing 'client' and the headless SendCli; it never touches AWT.
+public class TransferClient {
+    // Latest session ticket per server ("host:port"), shared by every client in the process
+    private static final ConcurrentHashMap<String, Ticket> TICKETS = new ConcurrentHashMap<>();
+    // Instrumentation for every client in the process (JMX ml_project.cn:type=TransferClient)
+    private static final TransferMetrics METRICS = new TransferMetrics("TransferClient", "all");
+    private static final LatencyHistogram HANDSHAKE_NANOS = METRICS.histogram("handshake.latencyNanos");
+    private static final LatencyHistogram RSA_ENCRYPT_NANOS = METRICS.histogram("handshake.rsaEncryptNanos");
+    private static final LatencyHistogram THROUGHPUT = METRICS.histogram("transfer.bytesPerSecond");
+    private static final LongAdder BYTES_SENT = METRICS.counter("bytes.sent");
+    private static final LatencyHistogram RTT_NANOS = METRICS.histogram("transport.rttNanos");
+    // Latest estimate of the link to each server ("host:port"), which TransportProfile.AUTO sizes for
+    private static final ConcurrentHashMap<String, TransportProfile.Link> LINKS = new ConcurrentHashMap<>();
+    // Sends shorter than this never leave TCP slow start, so they say little about throughput
+    private static final long MIN_THROUGHPUT_SAMPLE = 8L << 20;
+    // Settings of the latest connection any client sized, for the transport.* gauges
+    private static volatile TransportProfile.Settings lastTransport = TransportProfile.AUTO.settings();
+    private static volatile TransportProfile.Link lastLink;
+    private static volatile int lastSendBuffer;
+    // Session files encrypted ahead of the one being sent
+    private static final int SESSION_AHEAD = 32;
+
+    private final String host;
+    private final int port;
+    private final TransferListener listener;
+    // Reconnection attempts after an upload is interrupted (-Dsft.upload.retries, 0 disables resuming)
+    private volatile int retries = Integer.getInteger("sft.upload.retries", 5);
+    // Compression ahead of encryption (see Compression); AUTO samples each file first
+    private volatile Compression.Policy compression = Compression.defaultPolicy();
+    // Content-defined chunk deduplication against the server's chunk store (-Dsft.dedup)
+    private volatile boolean dedup = Boolean.getBoolean("sft.dedup");
+    // End-to-end check: send the Merkle root of each file for the server to compare (-Dsft.integrity)
+    private volatile boolean verify = Boolean.parseBoolean(System.getProperty("sft.integrity", "true"));
+    // AEAD suites offered to the server, best first (see CipherSuite); null means CipherSuite.preferred()
+    private volatile List<CipherSuite> cipherSuites;
+    // Socket options, buffer sizes and write batching (-Dsft.transport, see TransportProfile)
+    private volatile TransportProfile transport = TransportProfile.fromSystemProperties();
+    private volatile TransportProfile.Settings settings;
+    // On loopback the round trip only measures the two processes (a cold JVM takes milliseconds), so
+    // the link keeps its nominal RTT there
+    private volatile boolean loopback;
+    // Mapped / direct-buffer encryption onto the socket channel (sft.send.* properties), one engine
+    // per batch size since the transport settings choose it per connection
+    private final ConcurrentHashMap<Integer, SendEngine> sendEngines = new ConcurrentHashMap<>();
+
+    static {
+        METRICS.gauge("keyPool.available", KeyMaterialPool::available);
+        METRICS.gauge("keyPool.misses", KeyMaterialPool::misses);
+        METRICS.gauge("transport.rttMicros", () -> lastLink != null ? lastLink.rttNanos / 1000 : 0);
+        METRICS.gauge("transport.bytesPerSecond", () -> lastLink != null ? (long) lastLink.bytesPerSecond : 0);
+        METRICS.gauge("transport.sendBuffer", () -> lastSendBuffer);
+        METRICS.gauge("transport.streamBuffer", () -> lastTransport.streamBuffer);
+        METRICS.gauge("transport.batchSegments", () -> lastTransport.batchSegments);
+    }
+
+    public TransferClient(String host, int port, TransferListener listener) {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+        this.settings = transport.settings();
+        METRICS.registerMBean();
+        // Session keys and IVs are taken ready-made; fill the pool before the first transfer needs it
+        KeyMaterialPool.prime();
+    }
+
+    public static TransferMetrics metrics() {
+        return METRICS;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public void setCompression(Compression.Policy compression) {
+        this.compression = compression;
+    }
+
+    public void setDeduplicate(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    // Suites this client accepts, best first; the server's ranking is taken into account too (see
+    // CipherSuite.negotiate). Null restores the process default.
+    public void setCipherSuites(List<CipherSuite> cipherSuites) {
+        if (cipherSuites != null && cipherSuites.isEmpty()) throw new IllegalArgumentException("No cipher suite given");
+        this.cipherSuites = cipherSuites == null ? null : new ArrayList<>(cipherSuites);
+    }
+
+    // Applies to new connections
+    public void setTransport(TransportProfile transport) {
+        this.transport = transport;
+        this.settings = transport.settings();
+    }
+
+    // Uploads one file; 'streams' > 1 splits it across that many parallel connections.
+    // If the connection drops once the server has assigned a transfer ID, the client reconnects
+    // and sends only the segments the server is still missing.
+    // With deduplication enabled the file is sent on one stream, and only the chunks the server does
+    // not already have are encrypted and uploaded.
+    // Meanwhile the file's Merkle tree is built on the ForkJoin pool; its root goes last, and the
+    // upload fails if the server's copy does not match it.
+    public void sendFile(File file, int streams) throws Exception {
+        long started = System.nanoTime();
+        Future<MerkleTree> tree = verify ? MerkleTree.buildAsync(file) : null;
+        try {
+            sendFile(file, streams, tree, 0);
+        } catch (Exception ex) {
+            METRICS.counter("transfers.failed").increment();
+            throw ex;
+        }
+        METRICS.counter("transfers.completed").increment();
+        long nanos = System.nanoTime() - started;
+        THROUGHPUT.record(nanos > 0 ? (long) (file.length() * 1e9 / nanos) : 0);
+    }
+
+    private void sendFile(File file, int streams, Future<MerkleTree> tree, int attempt) throws Exception {
+        long originalSize = file.length();
+        long modified = file.lastModified(); // a continuation may only re-encrypt what this attempt read
+        boolean dedup = this.dedup;
+        // Never open more streams than there are segments to spread over them
+        streams = dedup ? 1 : (int) Math.min(Math.max(1, streams), SegmentedAead.segmentCount(originalSize));
+        long transferId = -1;
+        SecretKey aesKey = null;
+        byte[] iv = null;
+        boolean compress = Compression.choose(file, compression) == Compression.Codec.DEFLATE;
+
+        try (SocketChannel channel = connect();
+             DataOutputStream out = output(channel);
+             DataInputStream in = input(channel)) {
+
+            log("Connected to " + host + ":" + port);
+            long handshakeStart = System.nanoTime();
+            Agreement agreed = handshake(channel, in, out, Protocol.OP_UPLOAD, Protocol.OP_RESUME);
+            aesKey = agreed.key;
+            HANDSHAKE_NANOS.recordSince(handshakeStart);
+            iv = Crypto.randomIv();
+
+            // Send IV
+            out.writeInt(iv.length);
+            out.write(iv);
+
+            // Filename
+            byte[] fnameBytes = file.getName().getBytes("UTF-8");
+            out.writeInt(fnameBytes.length);
+            out.write(fnameBytes);
+
+            long encryptedSize = SegmentedAead.encryptedSize(originalSize); // per-segment header + tag
+
+            out.writeLong(originalSize);
+            out.writeLong(encryptedSize);
+            out.writeInt(streams);
+            out.writeByte((compress ? Compression.Codec.DEFLATE : Compression.Codec.NONE).ordinal());
+            out.writeBoolean(dedup);
+            out.writeByte(agreed.suite.id);
+            out.flush();
+
+            readTicket(in, agreed.master);
+            transferId = in.readLong();
+
+            if (dedup) {
+                log("Sending file: " + file.getName() + " (" + originalSize + " bytes" + (compress ? ", compressed" : "")
+                        + ") deduplicated, transfer #" + transferId);
+                sendChunks(file, in, out, aesKey, iv, compress);
+                if (in.readUnsignedByte() != Protocol.STATUS_OK) throw new IOException("Server rejected the upload");
+                log("Upload complete.");
+                checkIntegrity(file, tree, aesKey, in, out);
+                return;
+            }
+
+            if (streams > 1) {
+                log("Sending file: " + file.getName() + " (" + originalSize + " bytes" + (compress ? ", compressed" : "")
+                        + ") over " + streams + " streams, transfer #" + transferId);
+                sendParallel(file, transferId, aesKey, iv, compress, streams, channel, in, out);
+                log("Upload complete.");
+                checkIntegrity(file, tree, aesKey, in, out);
+                return;
+            }
+
+            log("Sending file: " + file.getName() + " (" + originalSize + " bytes" + (compress ? ", compressed" : "")
+                    + "), transfer #" + transferId);
+
+            // Stream file encrypted as independently authenticated AEAD segments
+            sendSegments(file, channel, aesKey, iv, compress, 0, SegmentedAead.segmentCount(originalSize), new AtomicLong());
+            if (in.readUnsignedByte() != Protocol.STATUS_OK) throw new IOException("Server rejected the upload");
+            listener.progress(file.getName(), originalSize, originalSize);
+            log("Upload complete.");
+            checkIntegrity(file, tree, aesKey, in, out);
+            return;
+        } catch (IOException | ExecutionException ex) {
+            IOException lost = connectionLost(ex);
+            if (transferId < 0 || retries <= 0 || lost == null) throw ex;
+            log("Upload of " + file.getName() + " interrupted (" + describe(lost) + ").");
+            if (!dedup) {
+                if (continueUpload(file, originalSize, modified, transferId, aesKey, iv, compress, tree, lost)) return;
+                // The file changed meanwhile: a new transfer gets a new key and IV
+                if (attempt >= retries) throw new IOException("Gave up on " + file.getName() + " after " + retries + " attempts", lost);
+                sendFile(file, streams, verify ? MerkleTree.buildAsync(file) : null, attempt + 1);
+                return;
+            }
+            // Chunks that reached the server are already in its store, so starting over only resends the rest
+            if (attempt >= retries) throw new IOException("Gave up on " + file.getName() + " after " + retries + " attempts", lost);
+            Thread.sleep(backoffMillis(attempt + 1));
+            sendFile(file, streams, tree, attempt + 1);
+        }
+    }
+
+    // Uploads many files over one connection with a single handshake (see Protocol.OP_SESSION), which
+    // is what makes lots of small files fast. Returns the files that could not be read or that the
+    // server rejected. If the connection drops, the whole list is sent again in a new session; files
+    // the server had already committed are stored again under new names (see Protocol).
+    public List<File> sendFiles(List<File> files) throws Exception {
+        if (files.isEmpty()) return new ArrayList<>();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return sendSession(files);
+            } catch (IOException ex) {
+                IOException lost = connectionLost(ex);
+                if (lost == null || attempt >= retries) throw ex;
+                log("Session of " + files.size() + " file(s) interrupted (" + describe(lost) + "); sending it again.");
+                Thread.sleep(backoffMillis(attempt + 1));
+            }
+        }
+    }
+
+    // One session: files are read and encrypted up to SESSION_AHEAD ahead on a small pool while the
+    // earlier ones are written to the socket, and the server's statuses are only read at the end
+    private List<File> sendSession(List<File> files) throws Exception {
+        long started = System.nanoTime();
+        List<File> rejected = new ArrayList<>();
+        List<File> sent = new ArrayList<>();
+        long bytes = 0;
+        ExecutorService encryptors = Executors.newFixedThreadPool(Math.min(4, Runtime.getRuntime().availableProcessors()));
+        try (SocketChannel channel = connect();
+             DataOutputStream out = output(channel);
+             DataInputStream in = input(channel)) {
+
+            log("Connected to " + host + ":" + port + " for a session of " + files.size() + " file(s)");
+            long handshakeStart = System.nanoTime();
+            Agreement agreed = handshake(channel, in, out, Protocol.OP_SESSION, Protocol.OP_SESSION_RESUME);
+            SecretKey aesKey = agreed.key;
+            HANDSHAKE_NANOS.recordSince(handshakeStart);
+
+            ArrayDeque<Future<SessionFile>> ahead = new ArrayDeque<>();
+            Iterator<File> next = files.iterator();
+            while (next.hasNext() || !ahead.isEmpty()) {
+                while (next.hasNext() && ahead.size() < SESSION_AHEAD) {
+                    File f = next.next();
+                    ahead.add(encryptors.submit(() -> prepare(f, aesKey)));
+                }
+                SessionFile sf = ahead.remove().get();
+                if (sf.error != null) {
+                    log("Skipping " + sf.file + ": " + sf.error.getMessage());
+                    rejected.add(sf.file);
+                    METRICS.counter("transfers.failed").increment();
+                    continue;
+                }
+                byte[] name = sf.file.getName().getBytes("UTF-8");
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(sf.size);
+                out.writeByte((sf.compress ? Compression.Codec.DEFLATE : Compression.Codec.NONE).ordinal());
+                out.writeByte(agreed.suite.id);
+                out.write(sf.iv);
+                if (sf.frames != null) {
+                    out.write(sf.frames, 0, sf.length);
+                    BYTES_SENT.add(sf.size);
+                    listener.progress(sf.file.getName(), sf.size, sf.size);
+                } else {
+                    out.flush();
+                    sendSegments(sf.file, channel, aesKey, sf.iv, sf.compress, 0, SegmentedAead.segmentCount(sf.size), new AtomicLong());
+                }
+                writeRoot(out, sf.tree);
+                sent.add(sf.file);
+                bytes += sf.size;
+            }
+            out.writeInt(0);
+            out.flush();
+            // The ticket is read only now: after a resumed handshake the server waits for the client's
+            // first bytes (to time the round trip) before it sends the ticket
+            readTicket(in, agreed.master);
+
+            int count = in.readInt();
+            if (count != sent.size()) throw new IOException("Server confirmed " + count + " of " + sent.size() + " file(s)");
+            for (File f : sent) {
+                int status = in.readUnsignedByte();
+                reportStoredName(f, in.readUTF(), aesKey);
+                if (status == Protocol.STATUS_OK) {
+                    METRICS.counter("transfers.completed").increment();
+                } else {
+                    rejected.add(f);
+                    METRICS.counter("transfers.failed").increment();
+                }
+            }
+        } finally {
+            encryptors.shutdownNow();
+        }
+        long nanos = System.nanoTime() - started;
+        THROUGHPUT.record(nanos > 0 ? (long) (bytes * 1e9 / nanos) : 0);
+        log(String.format("Session complete: %d of %d file(s), %d bytes in %.1f ms", files.size() - rejected.size(),
+                files.size(), bytes, nanos / 1e6));
+        return rejected;
+    }
+
+    // Header fields of one session file, plus its sealed segments when it is small enough to be
+    // encrypted ahead in memory; larger files are streamed by the sending thread (see SendEngine)
+    private SessionFile prepare(File file, SecretKey aesKey) {
+        try {
+            if (!file.isFile()) throw new FileNotFoundException(file.getPath() + " (not a file)");
+            long size = file.length();
+            boolean compress = Compression.choose(file, compression) == Compression.Codec.DEFLATE;
+            byte[] iv = Crypto.randomIv();
+            if (SegmentedAead.encryptedSize(size) > Protocol.SESSION_SMALL_FILE) {
+                return new SessionFile(file, size, iv, compress, null, 0, verify ? MerkleTree.buildAsync(file) : null, null);
+            }
+            byte[] plain = Files.readAllBytes(file.toPath());
+            if (plain.length != size) throw new IOException("File changed while it was being read");
+            Future<MerkleTree> tree = verify ? CompletableFuture.completedFuture(MerkleTree.of(plain, 0, plain.length)) : null;
+            ByteBuffer frames = ByteBuffer.allocate((int) SegmentedAead.encryptedSize(size));
+            ByteBuffer scratch = compress ? ByteBuffer.allocate(SegmentedAead.SEGMENT_SIZE) : null;
+            long segments = SegmentedAead.segmentCount(size);
+            for (long c = 0; c < segments; c++) {
+                int off = (int) (c * SegmentedAead.SEGMENT_SIZE);
+                int len = (int) Math.min(SegmentedAead.SEGMENT_SIZE, size - off);
+                SegmentedAead.encryptSegment(aesKey, iv, c, c == segments - 1, ByteBuffer.wrap(plain, off, len), frames, scratch);
+            }
+            return new SessionFile(file, size, iv, compress, frames.array(), frames.position(), tree, null);
+        } catch (Exception e) {
+            return new SessionFile(file, 0, null, false, null, 0, null, e);
+        }
+    }
+
+    private static final class SessionFile {
+        final File file;
+        final long size;
+        final byte[] iv;
+        final boolean compress;
+        final byte[] frames; // sealed segments, or null if the file is streamed
+        final int length;
+        final Future<MerkleTree> tree; // null if not verified
+        final Exception error;
+
+        SessionFile(File file, long size, byte[] iv, boolean compress, byte[] frames, int length,
+                    Future<MerkleTree> tree, Exception error) {
+            this.file = file;
+            this.size = size;
+            this.iv = iv;
+            this.compress = compress;
+            this.frames = frames;
+            this.length = length;
+            this.tree = tree;
+            this.error = error;
+        }
+    }
+
+    // Downloads bytes [offset, offset + length) of a file the server keeps encrypted at rest (see
+    // SealedFile) into 'target'. A negative offset counts back from the end and a negative length
+    // reads to the end, so (-(1 << 20), -1) is the last megabyte. 'readToken' is the file's token,
+    // logged when it was uploaded (see SessionTickets.readToken). Returns the number of bytes written.
+    public long download(String name, byte[] readToken, long offset, long length, OutputStream target) throws Exception {
+        long started = System.nanoTime();
+        try (SocketChannel channel = connect();
+             DataOutputStream out = output(channel);
+             DataInputStream in = input(channel)) {
+
+            Agreement agreed = handshake(channel, in, out, Protocol.OP_READ, Protocol.OP_READ_RESUME);
+            SecretKey aesKey = agreed.key;
+            // The request goes before the ticket is read: after a resumed handshake the server waits
+            // for the client's next bytes to time the round trip
+            byte[] nameBytes = name.getBytes("UTF-8");
+            out.writeInt(nameBytes.length);
+            out.write(nameBytes);
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.writeByte(agreed.suite.id);
+            out.flush();
+            readTicket(in, agreed.master);
+            HANDSHAKE_NANOS.recordSince(started);
+            if (in.readUnsignedByte() != Protocol.STATUS_OK) throw new IOException("Server refused the read: " + in.readUTF());
+            byte[] nonce = new byte[SessionTickets.NONCE_LENGTH];
+            in.readFully(nonce);
+            out.write(SessionTickets.readProof(readToken, name, nonce));
+            out.flush();
+            if (in.readUnsignedByte() != Protocol.STATUS_OK) throw new IOException("Server refused the read: " + in.readUTF());
+            long size = in.readLong();
+            long start = in.readLong();
+            long count = in.readLong();
+            if (start < 0 || count < 0 || start + count > size) throw new IOException("Server sent an invalid range");
+            byte[] iv = new byte[Crypto.GCM_IV_LENGTH];
+            in.readFully(iv);
+
+            byte[] body = new byte[SegmentedAead.SEGMENT_SIZE + Crypto.GCM_TAG_LENGTH];
+            byte[] plain = new byte[SegmentedAead.SEGMENT_SIZE];
+            long segments = SegmentedAead.segmentCount(count);
+            long got = 0;
+            for (long c = 0; c < segments; c++) {
+                int h = SegmentedAead.readSegment(in, aesKey, iv, c, body, plain);
+                int n = SegmentedAead.plainLength(h);
+                if (SegmentedAead.isFinal(h) != (c == segments - 1) || got + n > count) {
+                    throw new IOException("Range stream does not match the announced length");
+                }
+                target.write(plain, 0, n);
+                got += n;
+                listener.progress(name, got, count);
+            }
+            if (got != count) throw new IOException("Range ended after " + got + " of " + count + " bytes");
+            METRICS.counter("bytes.downloaded").add(count);
+            log(String.format("Read bytes [%d, %d) of '%s' (%d bytes) in %.1f ms", start, start + count, name, size,
+                    (System.nanoTime() - started) / 1e6));
+            return count;
+        }
+    }
+
+    // Deduplicated upload: fingerprints go first, a batch at a time, and only the chunks the server
+    // asks for are read again, sealed (one segment each, counter = chunk index) and sent
+    private void sendChunks(File file, DataInputStream in, DataOutputStream out, SecretKey aesKey, byte[] iv,
+                            boolean compress) throws Exception {
+        long originalSize = file.length();
+        long[] offsets = new long[Protocol.DEDUP_BATCH];
+        int[] lengths = new int[Protocol.DEDUP_BATCH];
+        byte[] hashes = new byte[Protocol.DEDUP_BATCH * Chunker.HASH_LENGTH];
+        byte[] plain = new byte[Chunker.MAX_SIZE];
+        byte[] sealed = new byte[SegmentedAead.SEGMENT_FRAME];
+        long chunks = 0, newChunks = 0, done = 0, sentBytes = 0;
+
+        try (FileInputStream fis = new FileInputStream(file);
+             RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            Chunker chunker = new Chunker(fis);
+            boolean more = true;
+            while (more) {
+                int n = 0;
+                while (n < Protocol.DEDUP_BATCH && (more = chunker.next())) {
+                    offsets[n] = chunker.offset();
+                    lengths[n] = chunker.length();
+                    System.arraycopy(chunker.hash(), 0, hashes, n * Chunker.HASH_LENGTH, Chunker.HASH_LENGTH);
+                    n++;
+                }
+                if (n == 0) break;
+                out.writeInt(n);
+                for (int i = 0; i < n; i++) {
+                    out.writeInt(lengths[i]);
+                    out.write(hashes, i * Chunker.HASH_LENGTH, Chunker.HASH_LENGTH);
+                }
+                out.flush();
+
+                int bitmapLen = in.readInt();
+                if (bitmapLen < 0 || bitmapLen > (n + 7) / 8) throw new IOException("Invalid chunk bitmap length " + bitmapLen);
+                byte[] bitmap = new byte[bitmapLen];
+                in.readFully(bitmap);
+                BitSet missing = BitSet.valueOf(bitmap);
+                for (int i = 0; i < n; i++) {
+                    if (missing.get(i)) {
+                        raf.seek(offsets[i]);
+                        raf.readFully(plain, 0, lengths[i]);
+                        int len = SegmentedAead.encryptSegment(aesKey, iv, chunks + i, true, plain, lengths[i], sealed, compress);
+                        out.write(sealed, 0, len);
+                        sentBytes += lengths[i];
+                        newChunks++;
+                    }
+                    done += lengths[i];
+                    listener.progress(file.getName(), done, originalSize);
+                }
+                chunks += n;
+            }
+        }
+        out.writeInt(0);
+        out.flush();
+        BYTES_SENT.add(sentBytes);
+        METRICS.counter("dedup.bytesSkipped").add(originalSize - sentBytes);
+        log(String.format("Deduplicated %s: %d of %d chunk(s) sent, %d of %d bytes", file.getName(),
+                newChunks, chunks, sentBytes, originalSize));
+    }
+
+    // Reconnects to an interrupted upload (with exponential backoff) and sends the missing ranges.
+    // Returns false, having sent nothing, if the file is no longer the one the upload started with.
+    private boolean continueUpload(File file, long originalSize, long modified, long transferId, SecretKey aesKey, byte[] iv,
+                                   boolean compress, Future<MerkleTree> tree, IOException cause) throws Exception {
+        long totalSegments = SegmentedAead.segmentCount(originalSize);
+        for (int attempt = 1; attempt <= retries; attempt++) {
+            Thread.sleep(backoffMillis(attempt));
+            if (!unchanged(file, originalSize, modified, tree)) {
+                log(file.getName() + " changed since transfer #" + transferId + " started; it is sent again as a new transfer.");
+                return false;
+            }
+            try (SocketChannel channel = connect();
+                 DataOutputStream out = output(channel);
+                 DataInputStream in = input(channel)) {
+                out.writeByte(Protocol.OP_CONTINUE);
+                out.writeLong(transferId);
+                out.flush();
+                if (in.readUnsignedByte() != Protocol.STATUS_OK) {
+                    throw new IOException("Server no longer has transfer #" + transferId + "; it must be sent again", cause);
+                }
+                byte[] nonce = new byte[SessionTickets.NONCE_LENGTH];
+                in.readFully(nonce);
+                out.write(SessionTickets.continueProof(aesKey, transferId, nonce));
+                out.flush();
+                if (in.readUnsignedByte() != Protocol.STATUS_OK) {
+                    throw new IOException("Server refused to continue transfer #" + transferId, cause);
+                }
+
+                int runs = in.readInt();
+                long[][] missing = new long[runs][];
+                long missingBytes = 0;
+                for (int i = 0; i < runs; i++) {
+                    missing[i] = new long[] {in.readLong(), in.readLong()};
+                    missingBytes += plainBytes(originalSize, missing[i][0], missing[i][1], totalSegments);
+                }
+                METRICS.counter("transfers.continued").increment();
+                log("Continuing transfer #" + transferId + " (attempt " + attempt + "): "
+                        + missingBytes + " of " + originalSize + " bytes left to send.");
+                AtomicLong sent = new AtomicLong(originalSize - missingBytes);
+                for (long[] run : missing) {
+                    sendRange(file, channel, in, out, aesKey, iv, compress, run[0], run[1], sent);
+                }
+                log("Upload complete.");
+                checkIntegrity(file, tree, aesKey, in, out);
+                return true;
+            } catch (IOException ex) {
+                if (connectionLost(ex) == null) throw ex;
+                cause = ex;
+                log("Continuing transfer #" + transferId + " failed (" + describe(ex) + ").");
+            }
+        }
+        throw new IOException("Gave up on transfer #" + transferId + " after " + retries + " reconnection attempts", cause);
+    }
+
+    // A continuation encrypts segments again under the first attempt's key and IV, so it must be the
+    // same plaintext, or GCM nonces would be reused on different data. Size and mtime are always
+    // compared; with verification on, the file is also hashed again against the root from the start.
+    private static boolean unchanged(File file, long size, long modified, Future<MerkleTree> tree) throws Exception {
+        if (file.length() != size || file.lastModified() != modified) return false;
+        return tree == null || MerkleTree.build(file).rootEquals(tree.get().root());
+    }
+
+    private static long backoffMillis(int attempt) {
+        return Math.min(30_000L, 500L << Math.min(attempt, 10));
+    }
+
+    // Plaintext bytes in segments [first, first + count)
+    private static long plainBytes(long originalSize, long first, long count, long totalSegments) {
+        long end = first + count == totalSegments ? originalSize : (first + count) * SegmentedAead.SEGMENT_SIZE;
+        return end - first * SegmentedAead.SEGMENT_SIZE;
+    }
+
+    private static String describe(IOException e) {
+        return e.getMessage() != null ? e.getMessage() : "connection closed";
+    }
+
+    // The network failure behind 'ex', or null if it is not worth reconnecting for
+    private static IOException connectionLost(Exception ex) {
+        Throwable t = ex instanceof ExecutionException ? ex.getCause() : ex;
+        if (t instanceof EOFException || t instanceof SocketException) return (IOException) t;
+        return null;
+    }
+
+    // Resumes from a cached ticket when possible, otherwise (or if the server refuses it) does the RSA
+    // exchange; either way the server then lists its cipher suites and the best common one is chosen.
+    // By then the round trip has been measured, and the connection is sized for it.
+    private Agreement handshake(SocketChannel channel, DataInputStream in, DataOutputStream out, int fullOp, int resumeOp) throws Exception {
+        SecretKey master = agreeKey(in, out, fullOp, resumeOp);
+        List<CipherSuite> offered = cipherSuites != null ? cipherSuites : CipherSuite.preferred();
+        CipherSuite suite = CipherSuite.negotiate(offered, CipherSuite.readList(in));
+        log("Using cipher suite " + suite + ".");
+        METRICS.counter("cipher." + suite.name().toLowerCase()).increment();
+        retune(channel);
+        return new Agreement(master, suite);
+    }
+
+    // Settings for the link as measured so far; AUTO can still grow the send buffer now
+    private void retune(SocketChannel channel) throws IOException {
+        TransportProfile.Link link = LINKS.get(serverKey());
+        TransportProfile.Settings s = transport.settings(link);
+        s.resize(channel);
+        settings = s;
+        lastTransport = s;
+        lastLink = link;
+        lastSendBuffer = channel.getOption(StandardSocketOptions.SO_SNDBUF);
+        log("Transport " + s + (s.link != link ? "; measured " + link : "")
+                + " (send buffer now " + TransportProfile.size(lastSendBuffer) + ").");
+    }
+
+    // Times the server's first reply, without consuming it, as the handshake's RTT sample
+    private void awaitReply(DataInputStream in) throws IOException {
+        long sent = System.nanoTime();
+        in.mark(1);
+        if (in.read() < 0) throw new EOFException("Connection closed during the handshake");
+        in.reset();
+        long rtt = System.nanoTime() - sent;
+        RTT_NANOS.record(rtt);
+        if (!loopback) LINKS.computeIfPresent(serverKey(), (k, l) -> l.withRtt(Math.min(l.rttNanos, rtt)));
+    }
+
+    private SecretKey agreeKey(DataInputStream in, DataOutputStream out, int fullOp, int resumeOp) throws Exception {
+        Ticket cached = TICKETS.get(serverKey());
+        if (cached == null) {
+            out.writeByte(fullOp);
+            out.flush();
+            awaitReply(in);
+            METRICS.counter("handshake.full").increment();
+            return rsaHandshake(in, out);
+        }
+
+        byte[] nonce = KeyMaterialPool.take(SessionTickets.NONCE_LENGTH);
+        out.writeByte(resumeOp);
+        out.writeInt(cached.ticket.length);
+        out.write(cached.ticket);
+        out.write(nonce);
+        out.flush();
+        awaitReply(in);
+        if (in.readUnsignedByte() == Protocol.STATUS_OK) {
+            log("Resumed session with ticket (RSA exchange skipped).");
+            METRICS.counter("handshake.resumed").increment();
+            return SessionTickets.transferKey(cached.secret, nonce);
+        }
+        // The server continues with a full handshake on this connection
+        TICKETS.remove(serverKey(), cached);
+        log("Session ticket refused, doing full handshake.");
+        METRICS.counter("handshake.full").increment();
+        return rsaHandshake(in, out);
+    }
+
+    private SecretKey rsaHandshake(DataInputStream in, DataOutputStream out) throws Exception {
+        // Read server RSA public key
+        int pubLen = in.readInt();
+        byte[] pubBytes = new byte[pubLen];
+        in.readFully(pubBytes);
+        PublicKey serverPub = Crypto.publicKeyFromBytes(pubBytes);
+        log("Received server public key (" + pubLen + " bytes).");
+        log("Recieved ASE Encrypted key");
+        // Generate AES key
+        SecretKey aesKey = Crypto.generateAESKey();
+        byte[] aesKeyBytes = aesKey.getEncoded();
+        long started = System.nanoTime();
+        byte[] encAesKey = Crypto.rsaEncrypt(aesKeyBytes, serverPub);
+        RSA_ENCRYPT_NANOS.recordSince(started);
+
+        // Send encrypted AES key
+        out.writeInt(encAesKey.length);
+        out.write(encAesKey);
+        return aesKey;
+    }
+
+    // Key agreed in the handshake (tickets are derived from it), the suite chosen for the transfer and
+    // that suite's key, which encrypts the data
+    private static final class Agreement {
+        final SecretKey master;
+        final CipherSuite suite;
+        final SecretKey key;
+
+        Agreement(SecretKey master, CipherSuite suite) throws GeneralSecurityException {
+            this.master = master;
+            this.suite = suite;
+            this.key = suite.transferKey(master);
+        }
+    }
+
+    // Every upload ends the header exchange with a fresh ticket for the next connection
+    private void readTicket(DataInputStream in, SecretKey aesKey) throws Exception {
+        int len = in.readInt();
+        if (len < 0 || len > 1024) throw new IOException("Invalid ticket length " + len);
+        byte[] ticket = new byte[len];
+        in.readFully(ticket);
+        TICKETS.put(serverKey(), new Ticket(ticket, SessionTickets.resumptionSecret(aesKey)));
+    }
+
+    private String serverKey() {
+        return host + ":" + port;
+    }
+
+    private static final class Ticket {
+        final byte[] ticket;
+        final byte[] secret;
+
+        Ticket(byte[] ticket, byte[] secret) {
+            this.ticket = ticket;
+            this.secret = secret;
+        }
+    }
+
+    // Splits the segments into 'streams' contiguous ranges; range 0 reuses the handshake connection,
+    // the others join the transfer on their own sockets. Each range is encrypted on its own thread.
+    private void sendParallel(File file, long transferId, SecretKey aesKey, byte[] iv, boolean compress, int streams,
+                              SocketChannel channel, DataInputStream in, DataOutputStream out) throws Exception {
+        long totalSegments = SegmentedAead.segmentCount(file.length());
+        long perStream = (totalSegments + streams - 1) / streams;
+        AtomicLong sent = new AtomicLong();
+        ExecutorService workers = Executors.newFixedThreadPool(streams);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                final long first = i * perStream;
+                final long count = Math.min(perStream, totalSegments - first);
+                if (count <= 0) break;
+                final boolean primary = i == 0;
+                results.add(workers.submit(() -> {
+                    if (primary) {
+                        sendRange(file, channel, in, out, aesKey, iv, compress, first, count, sent);
+                        return null;
+                    }
+                    try (SocketChannel s = connect();
+                         DataOutputStream sOut = output(s);
+                         DataInputStream sIn = input(s)) {
+                        sOut.writeByte(Protocol.OP_JOIN);
+                        sOut.writeLong(transferId);
+                        sOut.flush();
+                        if (sIn.readUnsignedByte() != Protocol.STATUS_OK) throw new IOException("Server no longer has transfer #" + transferId);
+                        byte[] nonce = new byte[SessionTickets.NONCE_LENGTH];
+                        sIn.readFully(nonce);
+                        sOut.write(SessionTickets.joinProof(aesKey, transferId, nonce));
+                        sOut.flush();
+                        if (sIn.readUnsignedByte() != Protocol.STATUS_OK) throw new IOException("Server refused a stream of transfer #" + transferId);
+                        sendRange(file, s, sIn, sOut, aesKey, iv, compress, first, count, sent);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : results) f.get();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    // Last step of an upload: the server compares the root with the plaintext it stored
+    private void checkIntegrity(File file, Future<MerkleTree> tree, SecretKey aesKey, DataInputStream in, DataOutputStream out) throws IOException {
+        writeRoot(out, tree);
+        out.flush();
+        int verdict = in.readUnsignedByte();
+        reportStoredName(file, in.readUTF(), aesKey);
+        if (verdict == Protocol.STATUS_ERROR) {
+            METRICS.counter("integrity.failed").increment();
+            throw new IOException("Server's copy of " + file.getName() + " does not match the source (Merkle roots differ)");
+        }
+        if (verdict == Protocol.STATUS_OK) {
+            METRICS.counter("integrity.verified").increment();
+            log("Server verified " + file.getName() + " end to end.");
+        } else if (tree != null) {
+            log("Server keeps " + file.getName() + " encrypted; it will be verified when decrypted.");
+        }
+    }
+
+    // The server stores a file under another name when an earlier upload already holds its own. The
+    // read token is what FetchCli needs if the server keeps the file at rest
+    private void reportStoredName(File file, String stored, SecretKey aesKey) throws IOException {
+        if (stored.isEmpty()) return;
+        if (!stored.equals(file.getName())) {
+            log(file.getName() + " already exists on the server; stored as " + stored);
+        }
+        try {
+            log("Read token for " + stored + ": " + MerkleTree.hex(SessionTickets.readToken(aesKey)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not derive the read token of " + stored, e);
+        }
+    }
+
+    private static void writeRoot(DataOutputStream out, Future<MerkleTree> tree) throws IOException {
+        if (tree == null) {
+            out.writeInt(0);
+            return;
+        }
+        byte[] root = MerkleTree.await(tree).root();
+        out.writeInt(root.length);
+        out.write(root);
+    }
+
+    // Sends segments [first, first + count) as one range and waits for the server's ack
+    private void sendRange(File file, SocketChannel channel, DataInputStream in, DataOutputStream out, SecretKey aesKey,
+                           byte[] iv, boolean compress, long first, long count, AtomicLong sent) throws Exception {
+        out.writeLong(first);
+        out.writeLong(count);
+        out.flush();
+        sendSegments(file, channel, aesKey, iv, compress, first, count, sent);
+        if (in.readUnsignedByte() != Protocol.STATUS_OK) {
+            throw new IOException("Server rejected range starting at segment " + first);
+        }
+    }
+
+    // Encrypts segments [first, first + count) straight from the file onto the channel, bypassing
+    // the buffered stream (which must be flushed first)
+    private void sendSegments(File file, SocketChannel channel, SecretKey aesKey, byte[] iv, boolean compress,
+                              long first, long count, AtomicLong sent) throws IOException {
+        long originalSize = file.length();
+        SendEngine engine = sendEngines.computeIfAbsent(settings.batchSegments, SendEngine::fromSystemProperties);
+        long started = System.nanoTime();
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            engine.send(source, originalSize, channel, aesKey, iv, compress, first, count,
+                    n -> {
+                        BYTES_SENT.add(n);
+                        listener.progress(file.getName(), sent.addAndGet(n), originalSize);
+                    });
+        }
+        long bytes = plainBytes(originalSize, first, count, SegmentedAead.segmentCount(originalSize));
+        long nanos = System.nanoTime() - started;
+        if (bytes >= MIN_THROUGHPUT_SAMPLE && nanos > 0) {
+            double rate = bytes * 1e9 / nanos;
+            LINKS.computeIfPresent(serverKey(), (k, l) -> l.withThroughput(rate));
+        }
+    }
+
+    // Blocking channel, so bulk data can be written to it directly (see SendEngine). Its options come
+    // from the latest estimate of the link, and the time to connect is a first RTT sample.
+    private SocketChannel connect() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        TransportProfile.Settings planned = transport.settings(
+                LINKS.computeIfAbsent(serverKey(), k -> TransportProfile.Link.guess(address.getAddress())));
+        SocketChannel channel = SocketChannel.open();
+        try {
+            planned.configure(channel);
+            long started = System.nanoTime();
+            channel.connect(address);
+            long rtt = System.nanoTime() - started;
+            RTT_NANOS.record(rtt);
+            loopback = address.getAddress().isLoopbackAddress();
+            if (!loopback) LINKS.computeIfPresent(serverKey(), (k, l) -> l.withRtt(rtt));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        settings = planned;
+        return channel;
+    }
+
+    // Buffered streams over the channel. Channels report a reset or broken connection as a plain
+    // IOException; these rethrow it as a SocketException (as SendEngine does for the bulk data), so
+    // connectionLost() can tell a dropped connection from a bad file.
+    private DataOutputStream output(SocketChannel channel) throws IOException {
+        OutputStream raw = channel.socket().getOutputStream();
+        return new DataOutputStream(new BufferedOutputStream(new FilterOutputStream(raw) {
+            @Override public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    raw.write(b, off, len);
+                } catch (IOException e) {
+                    throw asLost(e);
+                }
+            }
+
+            @Override public void flush() throws IOException {
+                try {
+                    raw.flush();
+                } catch (IOException e) {
+                    throw asLost(e);
+                }
+            }
+        }, settings.streamBuffer));
+    }
+
+    private DataInputStream input(SocketChannel channel) throws IOException {
+        InputStream raw = channel.socket().getInputStream();
+        return new DataInputStream(new BufferedInputStream(new FilterInputStream(raw) {
+            @Override public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return raw.read(b, off, len);
+                } catch (IOException e) {
+                    throw asLost(e);
+                }
+            }
+        }, settings.streamBuffer));
+    }
+
+    private static IOException asLost(IOException e) {
+        if (e instanceof SocketException || e instanceof EOFException) return e;
+        SocketException se = new SocketException(describe(e));
+        se.initCause(e);
+        return se;
+    }
+
+    private void log(String s) {
+        listener.log(s);
+    }
+}
@@ -0,0 +1,22 @@
+package ml_project.cn;
+
+// Callbacks from the transfer engine to whatever front-end is driving it (Swing view, daemon, CLI).
+// Called from transfer threads; implementations must hand off to their own thread if needed
+// (EventPipeline does that for the bundled front-ends).
+public interface TransferListener {
+    void log(String message);
+
+    // Bytes of 'fileName' sent so far out of 'total'
+    default void progress(String fileName, long sent, long total) {}
+
+    // A transfer has fully arrived (spooled, or decrypted and committed in decrypt-on-receive mode)
+    default void received(TransferSession session) {}
+
+    // Number of received transfers waiting for decryption changed
+    default void pendingChanged(int pending) {}
+
+    // Plain console listener used by the headless front-ends
+    static TransferListener console(String prefix) {
+        return message -> System.out.println(prefix + " " + message);
+    }
+}
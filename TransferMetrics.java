@@ -0,0 +1,174 @@
+package ml_project.cn;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Named counters, gauges and histograms for one server or client, readable three ways: as JMX
+// attributes (registered as ml_project.cn:type=<type>,name=<name>), as a plain-text dump for logs,
+// and as a JSON object for scrapers and dashboards.
+//
+// Metrics are created on first use and then cached by the caller, so the hot paths only touch a
+// LongAdder or a LatencyHistogram. Histogram names ending in "Nanos" are shown in microseconds in
+// the text dump; every histogram appears in JMX and JSON as <name>.count/.total/.mean/.p50/.p90/
+// .p99/.p999/.max.
+public class TransferMetrics implements DynamicMBean {
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final String type;
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private ObjectName registered;
+
+    public TransferMetrics(String type, String name) {
+        this.type = type;
+        this.name = name;
+    }
+
+    public LongAdder counter(String metric) {
+        return counters.computeIfAbsent(metric, k -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String metric) {
+        return histograms.computeIfAbsent(metric, k -> new LatencyHistogram());
+    }
+
+    // Value read whenever the metrics are dumped (queue depths, open connections, ...)
+    public void gauge(String metric, LongSupplier value) {
+        gauges.put(metric, value);
+    }
+
+    public long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    // Registers with the platform MBean server unless -Dsft.metrics.jmx=false; failures are not fatal
+    public synchronized void registerMBean() {
+        if (registered != null || !Boolean.parseBoolean(System.getProperty("sft.metrics.jmx", "true"))) return;
+        try {
+            ObjectName on = new ObjectName("ml_project.cn:type=" + type + ",name=" + ObjectName.quote(name));
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            if (mbs.isRegistered(on)) mbs.unregisterMBean(on);
+            mbs.registerMBean(this, on);
+            registered = on;
+        } catch (JMException e) {
+            // Metrics are still available through the dumps
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (registered == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException ignored) {}
+        registered = null;
+    }
+
+    // Flattened view: counters and gauges as-is, histograms expanded to count/mean/percentiles/max
+    public Map<String, Number> values() {
+        Map<String, Number> v = new ConcurrentSkipListMap<>();
+        v.put("uptimeMillis", uptimeMillis());
+        counters.forEach((k, c) -> v.put(k, c.sum()));
+        gauges.forEach((k, g) -> v.put(k, g.getAsLong()));
+        histograms.forEach((k, h) -> {
+            LatencyHistogram.Snapshot s = h.snapshot();
+            v.put(k + ".count", s.count());
+            v.put(k + ".total", s.sum());
+            v.put(k + ".mean", s.mean());
+            for (int i = 0; i < PERCENTILES.length; i++) v.put(k + "." + PERCENTILE_NAMES[i], s.percentile(PERCENTILES[i]));
+            v.put(k + ".max", s.max());
+        });
+        return v;
+    }
+
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(type).append(' ').append(name).append(", up ").append(uptimeMillis() / 1000).append(" s\n");
+        counters.forEach((k, c) -> sb.append(String.format(Locale.ROOT, "  %-32s %d%n", k, c.sum())));
+        gauges.forEach((k, g) -> sb.append(String.format(Locale.ROOT, "  %-32s %d%n", k, g.getAsLong())));
+        histograms.forEach((k, h) -> {
+            LatencyHistogram.Snapshot s = h.snapshot();
+            boolean nanos = k.endsWith("Nanos");
+            String label = nanos ? k.substring(0, k.length() - 5) + " (us)" : k;
+            sb.append(String.format(Locale.ROOT, "  %-32s n=%d total=%s mean=%s", label, s.count(),
+                    scaled(s.sum(), nanos), scaled(s.mean(), nanos)));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                sb.append(' ').append(PERCENTILE_NAMES[i]).append('=').append(scaled(s.percentile(PERCENTILES[i]), nanos));
+            }
+            sb.append(" max=").append(scaled(s.max(), nanos)).append('\n');
+        });
+        return sb.toString();
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"type\":\"").append(type).append("\",\"name\":\"")
+                .append(name.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        for (Map.Entry<String, Number> e : values().entrySet()) {
+            sb.append(",\"").append(e.getKey()).append("\":");
+            Number n = e.getValue();
+            sb.append(n instanceof Double ? String.format(Locale.ROOT, "%.1f", n.doubleValue()) : n.toString());
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String scaled(double value, boolean nanos) {
+        return nanos ? String.format(Locale.ROOT, "%.1f", value / 1000) : String.format(Locale.ROOT, "%.0f", value);
+    }
+
+    // DynamicMBean: the metric set grows at run time, so attributes are listed on demand
+
+    @Override public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number n = values().get(attribute);
+        if (n == null) throw new AttributeNotFoundException(attribute);
+        return n instanceof Double ? (Object) n.doubleValue() : (Object) n.longValue();
+    }
+
+    @Override public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> v = values();
+        AttributeList list = new AttributeList();
+        for (String a : attributes) {
+            Number n = v.get(a);
+            if (n != null) list.add(new Attribute(a, n instanceof Double ? (Object) n.doubleValue() : (Object) n.longValue()));
+        }
+        return list;
+    }
+
+    @Override public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("dumpText".equals(actionName)) return toText();
+        if ("dumpJson".equals(actionName)) return toJson();
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attrs = new ArrayList<>();
+        for (Map.Entry<String, Number> e : values().entrySet()) {
+            String t = e.getValue() instanceof Double ? "double" : "long";
+            attrs.add(new MBeanAttributeInfo(e.getKey(), t, e.getKey(), true, false, false));
+        }
+        MBeanOperationInfo[] ops = {
+                new MBeanOperationInfo("dumpText", "All metrics as text", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO),
+                new MBeanOperationInfo("dumpJson", "All metrics as JSON", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO),
+        };
+        return new MBeanInfo(getClass().getName(), "Secure file transfer metrics",
+                attrs.toArray(new MBeanAttributeInfo[0]), null, ops, null);
+    }
+}
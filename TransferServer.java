@@ -0,0 +1,1364 @@
+package ml_project.cn;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+// UI-independent receiving side: accepts connections, runs the handshake, spools or decrypts
+// uploads and manages the pending-session registry. The Swing 'server' and the headless
+// ServerDaemon are both thin front-ends over this class; it never touches AWT.
+public class TransferServer {
+    private final File saveDir;
+    private final TransferListener listener;
+    private volatile boolean running = false;
+    // Accept loop, connection threads and admission limits; recreated on every start (see ConnectionEngine)
+    private ConnectionEngine connections;
+    // Bounded worker pool for decryption: one worker per core
+    private final ThreadPoolExecutor decryptPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    // Persistent RSA identity, generated and rotated off the transfer path (see ServerKeyRing), and
+    // the resumption ticket issuer
+    private ServerKeyRing identity;
+    // Generate a new identity this often (0 = never); older checkpoints and .sealed files stay readable
+    private long identityRotateMillis = Long.getLong("sft.identity.rotateMinutes", 0) * 60_000;
+    private File identityDir = new File(System.getProperty("sft.identityDir", "keys"));
+    private SessionTickets tickets;
+    // Socket-to-disk spooling (FileChannel + direct buffers), configured via sft.receive.* properties
+    // and the transport profile; created by start()
+    private volatile ReceiveEngine receiveEngine;
+    // Socket options and buffer sizes (-Dsft.transport, see TransportProfile)
+    private volatile TransportProfile transport = TransportProfile.fromSystemProperties();
+    private volatile TransportProfile.Settings transportSettings = transport.settings();
+
+    // Received transfers wait here, keyed by transfer ID, until they are decrypted
+    private final SessionRegistry sessions = new SessionRegistry();
+    // Parallel uploads still waiting for some of their ranges
+    private final ConcurrentHashMap<Long, RangeAssembler> assemblers = new ConcurrentHashMap<>();
+    // The last few completed uploads, so a client whose final ack was lost can still be told it is done
+    // and under which name
+    private final Map<Long, TransferSession> recentlyCompleted = Collections.synchronizedMap(new LinkedHashMap<Long, TransferSession>() {
+        @Override protected boolean removeEldestEntry(Map.Entry<Long, TransferSession> eldest) {
+            return size() > 1024;
+        }
+    });
+    // Unattended mode: decrypt while receiving and skip the .enc spool file (-Dsft.decryptOnReceive=true)
+    private volatile boolean decryptOnReceive = Boolean.getBoolean("sft.decryptOnReceive");
+    // Decrypt spooled transfers on the worker pool as soon as they are complete
+    private volatile boolean autoDecrypt = false;
+    // Keep spooled transfers encrypted as <name>.sealed, readable by range (see SealedFile, -Dsft.atRest)
+    private volatile boolean storeAtRest = Boolean.getBoolean("sft.atRest");
+    // Answer range reads of sealed files (off by default, -Dsft.read.enabled); a reader must still prove
+    // it holds the file's read token (see SessionTickets.readToken)
+    private volatile boolean serveReads = Boolean.getBoolean("sft.read.enabled");
+    // Interrupted uploads are kept (and checkpointed every N segments) this long for the client to continue;
+    // 0 discards them as soon as a stream breaks
+    private final long resumeKeepMillis = Long.getLong("sft.resume.keepSeconds", 24 * 3600) * 1000;
+    private final long checkpointSegments = Long.getLong("sft.resume.checkpointSegments", 256);
+    // Chunks of deduplicated uploads under <saveDir>/chunks, opened on first use; guarded by 'this'
+    private ChunkStore chunkStore;
+    // Small files of multi-file sessions are buffered whole and written out here while the connection
+    // reads on; buffered data waiting for it is capped at sft.session.bufferBytes (default 64 MB)
+    private final ThreadPoolExecutor sessionPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private final Semaphore sessionBuffers = new Semaphore(Math.max(2 * Protocol.SESSION_SMALL_FILE,
+            Integer.getInteger("sft.session.bufferBytes", 64 << 20)));
+    // AEAD suites accepted from clients, best first (see CipherSuite); defaults to CipherSuite.preferred()
+    private volatile List<CipherSuite> cipherSuites;
+    // Save the Merkle tree of every verified file as <file>.merkle, for later re-verification (VerifyCli)
+    private final boolean integritySidecars = Boolean.parseBoolean(System.getProperty("sft.integrity.sidecar", "true"));
+
+    // Instrumentation, exposed over JMX while running (see TransferMetrics)
+    private final TransferMetrics metrics;
+    private final LatencyHistogram handshakeNanos;
+    private final LatencyHistogram rsaDecryptNanos;
+    private final LatencyHistogram decryptFileNanos;
+    private final LatencyHistogram throughput;
+    private final LatencyHistogram readNanos;
+    private final LatencyHistogram verifyNanos;
+    private final LatencyHistogram rttNanos;
+    private final LongAdder bytesRead;
+    private final LongAdder verified, corrupt;
+    private final LongAdder fullHandshakes, resumedHandshakes, completed, failed, interrupted, handlerErrors;
+
+    public TransferServer(File saveDir, TransferListener listener) {
+        this.saveDir = saveDir;
+        this.listener = listener;
+        saveDir.mkdirs();
+
+        metrics = new TransferMetrics("TransferServer", saveDir.getAbsolutePath());
+        handshakeNanos = metrics.histogram("handshake.latencyNanos");
+        rsaDecryptNanos = metrics.histogram("handshake.rsaDecryptNanos");
+        decryptFileNanos = metrics.histogram("decrypt.fileNanos");
+        throughput = metrics.histogram("transfer.bytesPerSecond");
+        readNanos = metrics.histogram("read.latencyNanos");
+        verifyNanos = metrics.histogram("integrity.verifyNanos");
+        rttNanos = metrics.histogram("transport.rttNanos");
+        verified = metrics.counter("integrity.verified");
+        corrupt = metrics.counter("integrity.failed");
+        bytesRead = metrics.counter("bytes.read");
+        fullHandshakes = metrics.counter("handshake.full");
+        resumedHandshakes = metrics.counter("handshake.resumed");
+        completed = metrics.counter("transfers.completed");
+        failed = metrics.counter("transfers.failed");
+        interrupted = metrics.counter("transfers.interrupted");
+        handlerErrors = metrics.counter("connections.errors");
+        metrics.counter("bytes.received");
+        metrics.gauge("sessions.receiving", assemblers::size);
+        metrics.gauge("sessions.pending", sessions::pendingCount);
+        metrics.gauge("decrypt.queued", () -> decryptPool.getQueue().size());
+        metrics.gauge("session.writesQueued", () -> sessionPool.getQueue().size());
+        metrics.gauge("connections.open", () -> connections != null ? connections.openConnections() : 0);
+        metrics.gauge("connections.rejected", () -> connections != null ? connections.rejectedConnections() : 0);
+        metrics.gauge("transfers.active", () -> connections != null ? connections.activeTransfers() : 0);
+        metrics.gauge("transfers.queued", () -> connections != null ? connections.queuedTransfers() : 0);
+        metrics.gauge("keyPool.available", KeyMaterialPool::available);
+        metrics.gauge("keyPool.misses", KeyMaterialPool::misses);
+        metrics.gauge("identity.rotations", () -> identity != null ? identity.rotations() : 0);
+        metrics.gauge("transport.receiveBuffer", () -> connections != null ? connections.receiveBufferSize() : 0);
+        metrics.gauge("transport.streamBuffer", () -> transportSettings.streamBuffer);
+        metrics.gauge("transport.readBuffer", () -> receiveEngine != null ? receiveEngine.getBufferSize() : 0);
+        KeyMaterialPool.prime();
+    }
+
+    public void start(int port) throws Exception {
+        transportSettings = transport.settings();
+        receiveEngine = ReceiveEngine.fromSystemProperties(transportSettings.readBuffer);
+        if (identity == null) {
+            identity = new ServerKeyRing(identityDir, listener, identityRotateMillis);
+            identity.start();
+        }
+        tickets = SessionTickets.fromSystemProperties();
+        if (cipherSuites == null) cipherSuites = CipherSuite.preferred();
+        // Right away when the identity was loaded; checkpoints cannot be opened without it
+        if (resumeKeepMillis > 0) identity.ready().thenRun(this::restoreCheckpoints);
+        connections = ConnectionEngine.fromSystemProperties();
+        connections.setTransport(transportSettings);
+        connections.start(new InetSocketAddress(port), this::handleClient, listener);
+        running = true;
+        metrics.registerMBean();
+        log("Server started on port " + connections.getLocalPort() + " (receive mode " + receiveEngine.getMode() + ", "
+                + receiveEngine.getBufferSize() + " byte buffers; connections " + connections + ")");
+        log("Cipher suites: " + CipherSuite.describe(cipherSuites));
+        log("Transport " + transportSettings + " (accepted connections start with "
+                + TransportProfile.size(connections.receiveBufferSize()) + " socket receive buffers)");
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void setIdentityDir(File identityDir) {
+        this.identityDir = identityDir;
+    }
+
+    // Takes effect on the first start()
+    public void setIdentityRotation(long millis) {
+        this.identityRotateMillis = millis;
+    }
+
+    public File getSaveDir() {
+        return saveDir;
+    }
+
+    public boolean isDecryptOnReceive() {
+        return decryptOnReceive;
+    }
+
+    public void setDecryptOnReceive(boolean decryptOnReceive) {
+        this.decryptOnReceive = decryptOnReceive;
+        log("Decrypt on receive " + (decryptOnReceive ? "enabled" : "disabled") + " for new transfers.");
+    }
+
+    public void setAutoDecrypt(boolean autoDecrypt) {
+        this.autoDecrypt = autoDecrypt;
+    }
+
+    public void setStoreAtRest(boolean storeAtRest) {
+        this.storeAtRest = storeAtRest;
+    }
+
+    public void setServeReads(boolean serveReads) {
+        this.serveReads = serveReads;
+    }
+
+    // Takes effect on the next start(). AUTO leaves the socket buffers to the kernel here: the receive
+    // window is fixed when a connection is accepted, before anything about its link is known, and
+    // the client sizes its own side once it has measured the round trip.
+    public void setTransport(TransportProfile transport) {
+        this.transport = transport;
+    }
+
+    // Suites clients may choose from, in this server's order of preference; applies to new connections
+    public void setCipherSuites(List<CipherSuite> cipherSuites) {
+        if (cipherSuites.isEmpty()) throw new IllegalArgumentException("No cipher suite given");
+        this.cipherSuites = new ArrayList<>(cipherSuites);
+    }
+
+    public int pendingCount() {
+        return sessions.pendingCount();
+    }
+
+    public int getPort() {
+        return connections != null ? connections.getLocalPort() : -1;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void handleClient(SocketChannel ch) {
+        log("Accepted connection: " + ch.socket().getRemoteSocketAddress());
+        try (Socket s = ch.socket();
+             ReceiveEngine.HeaderInputStream header = new ReceiveEngine.HeaderInputStream(s.getInputStream(), transportSettings.streamBuffer);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), transportSettings.streamBuffer));
+             DataInputStream in = new DataInputStream(header)) {
+
+            // Bulk data bypasses the header stream and is read from the channel directly
+            ReadableByteChannel source = s.getChannel() != null ? s.getChannel() : Channels.newChannel(s.getInputStream());
+            // Transfer slots are also counted per client (sft.transfers.perClient)
+            InetAddress client = s.getInetAddress();
+            int op = in.readUnsignedByte();
+            switch (op) {
+                case Protocol.OP_UPLOAD: handleUpload(in, out, header, source, s, client, false); break;
+                case Protocol.OP_RESUME: handleUpload(in, out, header, source, s, client, true); break;
+                case Protocol.OP_JOIN: handleJoin(in, out, header, source, s); break;
+                case Protocol.OP_CONTINUE: handleContinue(in, out, header, source, s, client); break;
+                case Protocol.OP_SESSION: handleSession(in, out, header, source, s, client, false); break;
+                case Protocol.OP_SESSION_RESUME: handleSession(in, out, header, source, s, client, true); break;
+                case Protocol.OP_READ: handleRead(in, out, client, false); break;
+                case Protocol.OP_READ_RESUME: handleRead(in, out, client, true); break;
+                default: throw new IOException("Unknown opcode " + op);
+            }
+        } catch (Exception ex) {
+            handlerErrors.increment();
+            log("Client handler error: " + ex);
+        }
+    }
+
+    private void handleUpload(DataInputStream in, DataOutputStream out, ReceiveEngine.HeaderInputStream header,
+                              ReadableByteChannel source, Closeable connection, InetAddress client, boolean resume) throws Exception {
+        TransferSession session = null;
+        ConnectionEngine engine = connections; // the one that accepted us, even if the server restarts
+        boolean admitted = false;
+        boolean assembling = false;
+        boolean received = false;
+        expireInterrupted();
+        try {
+            // 1-2. Agree on the transfer key: resumed from a ticket, or RSA key exchange
+            SecretKey aesKey = agreeKey(in, out, resume);
+
+            // 3. Receive IV
+            int ivLen = in.readInt();
+            if (ivLen != Crypto.GCM_IV_LENGTH) throw new IOException("Invalid IV length " + ivLen);
+            byte[] iv = new byte[ivLen];
+            in.readFully(iv);
+
+            // 4. Receive File Metadata
+            String fileName = checkFileName(readFileName(in, in.readInt()));
+
+            long originalSize = in.readLong();
+            long encryptedSize = in.readLong();
+            checkSizes(fileName, originalSize, encryptedSize);
+            int streams = in.readInt();
+            if (streams < 1 || streams > Protocol.MAX_STREAMS) throw new IOException("Invalid stream count " + streams);
+            Compression.Codec codec = Compression.fromWire(in.readUnsignedByte());
+            boolean dedup = in.readBoolean();
+            if (dedup && streams != 1) throw new IOException("Deduplicated uploads use a single stream");
+            CipherSuite suite = readSuite(in);
+
+            // Wait for a transfer slot (sft.transfers.max); the client blocks on its socket meanwhile.
+            // A parallel upload holds one slot while its opening connection is receiving.
+            engine.acquireTransfer(client);
+            admitted = true;
+
+            // Fresh ticket for the client's next connection; read by the client whenever convenient
+            byte[] ticket = tickets.issue(SessionTickets.resumptionSecret(aesKey));
+            out.writeInt(ticket.length);
+            out.write(ticket);
+            out.flush();
+
+            // Spool name carries the transfer ID so concurrent uploads of the same file do not collide
+            long id = sessions.nextId();
+            File encFile = new File(saveDir, id + "_" + fileName + ".enc");
+            session = new TransferSession(id, suite.transferKey(aesKey), iv, fileName, originalSize, encryptedSize, encFile, codec);
+            sessions.register(session);
+            // Deduplicated uploads are rebuilt from plaintext chunks, so they are always decrypted on arrival
+            boolean decryptNow = decryptOnReceive || dedup;
+            
+            log(String.format("Receiving %s file %s (Original size: %d, Encrypted size: %d, Streams: %d, Codec: %s, Cipher: %s%s)",
+                    decryptNow ? "and DECRYPTING" : "ENCRYPTED", session, originalSize, encryptedSize, streams, codec, suite,
+                    dedup ? ", deduplicated" : ""));
+
+            if (dedup) {
+                out.writeLong(id);
+                out.flush();
+                receiveDeduplicated(session, in, out);
+                received = true;
+                return;
+            }
+
+            // 5. Every upload is assembled segment by segment (plaintext into the .part file in decrypt
+            // mode, ciphertext into the .enc spool otherwise), so an interrupted one can be continued
+            File target = decryptNow ? partFile(session) : encFile;
+            UploadCheckpoint checkpoint = resumeKeepMillis > 0
+                    ? new UploadCheckpoint(UploadCheckpoint.fileFor(saveDir, session), session, target, decryptNow, identity.current().getPublic())
+                    : null;
+            RangeAssembler assembler = new RangeAssembler(session, receiveEngine, target, decryptNow, decryptNow || storeAtRest,
+                    checkpoint, checkpointSegments, metrics);
+            assemblers.put(id, assembler);
+            assembling = true;
+            out.writeLong(id);
+            out.flush();
+
+            if (streams > 1) {
+                // Parallel upload: the handshake is done once here, ranges arrive on this and the joining connections
+                receiveRange(assembler, in, out, header, source, connection);
+            } else {
+                // Single stream: the whole segment stream follows the header, without range framing
+                receiveSegments(assembler, out, header, source, connection, 0, assembler.getTotalSegments());
+            }
+            received = true;
+
+        } catch (Exception ex) {
+            // Once assembling, receiveSegments decides whether the upload is kept for a continuation
+            if (session != null && !assembling) discardSession(session);
+            throw ex;
+        } finally {
+            if (admitted) engine.releaseTransfer(client);
+            // Outside the transfer slot: a parallel upload's other streams may still need one
+            if (received) {
+                checkIntegrity(in, out, session);
+            } else if (session != null) {
+                verifyOrDefer(session, null); // commits a file finished without a root to check it against
+            }
+        }
+    }
+
+    // Multi-file session (see Protocol.OP_SESSION): one handshake, then files back to back until an
+    // empty name. Small files are buffered and written out (decrypted or spooled) on the session pool
+    // while the connection reads the next one; larger ones are received in place. The client gets
+    // one status per file once all of them are on disk.
+    private void handleSession(DataInputStream in, DataOutputStream out, ReceiveEngine.HeaderInputStream header,
+                               ReadableByteChannel source, Closeable connection, InetAddress client, boolean resume) throws Exception {
+        ConnectionEngine engine = connections;
+        SecretKey aesKey = agreeKey(in, out, resume);
+        engine.acquireTransfer(client);
+        try {
+            byte[] ticket = tickets.issue(SessionTickets.resumptionSecret(aesKey));
+            out.writeInt(ticket.length);
+            out.write(ticket);
+            out.flush();
+
+            long started = System.nanoTime();
+            long bytes = 0;
+            // Per file, the name it was stored under ("" while spooled), or null if it failed
+            List<Future<String>> results = new ArrayList<>();
+            int nameLen;
+            while ((nameLen = in.readInt()) != 0) {
+                String fileName = checkFileName(readFileName(in, nameLen));
+                long originalSize = in.readLong();
+                if (originalSize < 0) throw new IOException("Invalid size " + originalSize + " for " + fileName);
+                Compression.Codec codec = Compression.fromWire(in.readUnsignedByte());
+                CipherSuite suite = readSuite(in);
+                byte[] iv = new byte[Crypto.GCM_IV_LENGTH];
+                in.readFully(iv);
+
+                long id = sessions.nextId();
+                long encryptedSize = SegmentedAead.encryptedSize(originalSize);
+                TransferSession session = new TransferSession(id, suite.transferKey(aesKey), iv, fileName, originalSize, encryptedSize,
+                        new File(saveDir, id + "_" + fileName + ".enc"), codec);
+                sessions.register(session);
+                // Read once: the target and the assembler must agree even if the mode changes meanwhile
+                boolean decryptNow = decryptOnReceive;
+                File target = decryptNow ? partFile(session) : session.getEncryptedFile();
+                bytes += originalSize;
+
+                if (encryptedSize > Protocol.SESSION_SMALL_FILE) {
+                    // Large file: received in place, like a single-stream upload
+                    assembleSessionFile(session, target, decryptNow, header, source, connection);
+                    byte[] root = readRoot(in);
+                    results.add(CompletableFuture.completedFuture(storedName(session, root)));
+                    continue;
+                }
+                int capacity = (int) encryptedSize;
+                sessionBuffers.acquire(capacity);
+                byte[] data = new byte[capacity];
+                int len;
+                byte[] root;
+                try {
+                    len = readFrames(in, SegmentedAead.segmentCount(originalSize), data);
+                    root = readRoot(in);
+                } catch (IOException e) {
+                    sessionBuffers.release(capacity);
+                    discardSession(session);
+                    throw e;
+                }
+                results.add(sessionPool.submit(() -> {
+                    try {
+                        ByteArrayInputStream raw = new ByteArrayInputStream(data, 0, len);
+                        ReceiveEngine.HeaderInputStream buffered = new ReceiveEngine.HeaderInputStream(raw);
+                        assembleSessionFile(session, target, decryptNow, buffered, Channels.newChannel(raw), buffered);
+                        return storedName(session, root);
+                    } catch (IOException e) {
+                        log("Session file " + session + " failed: " + e.getMessage());
+                        return null;
+                    } finally {
+                        sessionBuffers.release(capacity);
+                    }
+                }));
+            }
+
+            int ok = 0;
+            out.writeInt(results.size());
+            for (Future<String> result : results) {
+                String stored = result.get();
+                if (stored != null) ok++;
+                out.writeByte(stored != null ? Protocol.STATUS_OK : Protocol.STATUS_ERROR);
+                out.writeUTF(stored != null ? stored : "");
+            }
+            out.flush();
+            log(String.format("Session complete: %d of %d file(s), %d bytes in %.1f ms", ok, results.size(), bytes,
+                    (System.nanoTime() - started) / 1e6));
+        } finally {
+            engine.releaseTransfer(client);
+        }
+    }
+
+    // Integrity check (and commit) of a received session file: the name it is stored under, or null
+    // if it does not match 'root'
+    private String storedName(TransferSession session, byte[] root) {
+        if (verifyOrDefer(session, root) == Protocol.STATUS_ERROR) return null;
+        String stored = session.getStoredName();
+        return stored != null ? stored : "";
+    }
+
+    // Reads the 'segments' frames of one session file into 'data'; returns the number of bytes read
+    private static int readFrames(DataInputStream in, long segments, byte[] data) throws IOException {
+        int pos = 0;
+        for (long c = 0; c < segments; c++) {
+            int h = in.readInt();
+            int bodyLen = SegmentedAead.bodyLength(h, c);
+            if (pos + SegmentedAead.HEADER_LENGTH + bodyLen > data.length) {
+                throw new IOException("Segment " + c + " is longer than its file");
+            }
+            data[pos] = (byte) (h >>> 24);
+            data[pos + 1] = (byte) (h >>> 16);
+            data[pos + 2] = (byte) (h >>> 8);
+            data[pos + 3] = (byte) h;
+            in.readFully(data, pos + SegmentedAead.HEADER_LENGTH, bodyLen);
+            pos += SegmentedAead.HEADER_LENGTH + bodyLen;
+        }
+        return pos;
+    }
+
+    // Receives one whole session file from 'header'/'source' into 'target' (plaintext if 'decrypt') and
+    // finishes it (see finishAssembly). Session files are not resumable: a failure discards the file,
+    // and the client sends it again in a new session.
+    private void assembleSessionFile(TransferSession session, File target, boolean decrypt, ReceiveEngine.HeaderInputStream header,
+                                     ReadableByteChannel source, Closeable connection) throws IOException {
+        RangeAssembler assembler;
+        try {
+            assembler = new RangeAssembler(session, receiveEngine, target, decrypt, decrypt || storeAtRest, null, 0, metrics);
+        } catch (IOException e) {
+            discardSession(session);
+            throw e;
+        }
+        try {
+            assembler.receiveRange(header, source, 0, assembler.getTotalSegments(), connection);
+        } catch (IOException e) {
+            assembler.discard();
+            discardSession(session);
+            throw e;
+        }
+        finishAssembly(assembler);
+    }
+
+    private SecretKey agreeKey(DataInputStream in, DataOutputStream out, boolean resume) throws Exception {
+        long handshakeStart = System.nanoTime();
+        SecretKey aesKey = resume ? resumeHandshake(in, out) : null;
+        if (aesKey == null) {
+            aesKey = rsaHandshake(in, out);
+            fullHandshakes.increment();
+        } else {
+            resumedHandshakes.increment();
+        }
+        handshakeNanos.recordSince(handshakeStart);
+        return aesKey;
+    }
+
+    // Full handshake: send the RSA public key and unwrap the client's AES key
+    private SecretKey rsaHandshake(DataInputStream in, DataOutputStream out) throws Exception {
+        // 1. Send RSA public key (of the pair current now, even if the identity rotates meanwhile)
+        KeyPair pair = identity.current();
+        byte[] pub = pair.getPublic().getEncoded();
+        out.writeInt(pub.length);
+        out.write(pub);
+        CipherSuite.writeList(out, cipherSuites);
+        out.flush();
+        awaitReply(in);
+        log("Sent RSA public key to client (" + pub.length + " bytes).");
+
+        // 2. Receive and Decrypt AES key (RSA)
+        int encKeyLen = in.readInt();
+        byte[] encAesKey = new byte[encKeyLen];
+        in.readFully(encAesKey);
+        long started = System.nanoTime();
+        byte[] aesKeyBytes = Crypto.rsaDecrypt(encAesKey, pair.getPrivate());
+        rsaDecryptNanos.recordSince(started);
+        
+        SecretKey aesKey = Crypto.fromBytesToAESKey(aesKeyBytes);
+        log("Received and decrypted AES session key.");
+        return aesKey;
+    }
+
+    // Resumed handshake: returns null (after telling the client) if the ticket is not acceptable
+    private SecretKey resumeHandshake(DataInputStream in, DataOutputStream out) throws Exception {
+        int ticketLen = in.readInt();
+        if (ticketLen < 0 || ticketLen > 1024) throw new IOException("Invalid ticket length " + ticketLen);
+        byte[] ticket = new byte[ticketLen];
+        in.readFully(ticket);
+        byte[] nonce = new byte[SessionTickets.NONCE_LENGTH];
+        in.readFully(nonce);
+        try {
+            SecretKey aesKey = SessionTickets.transferKey(tickets.open(ticket), nonce);
+            out.writeByte(Protocol.STATUS_OK);
+            CipherSuite.writeList(out, cipherSuites);
+            out.flush();
+            awaitReply(in);
+            log("Resumed session from ticket (RSA exchange skipped).");
+            return aesKey;
+        } catch (IOException e) {
+            log(e.getMessage() + "; falling back to full handshake.");
+            out.writeByte(Protocol.STATUS_ERROR);
+            return null;
+        }
+    }
+
+    // Times the client's answer to a handshake message, without consuming it. An upper bound on the
+    // round trip: it includes the client's turnaround, an RSA encryption after a full handshake.
+    private void awaitReply(DataInputStream in) throws IOException {
+        long sent = System.nanoTime();
+        in.mark(1);
+        if (in.read() < 0) throw new EOFException("Connection closed during the handshake");
+        in.reset();
+        rttNanos.recordSince(sent);
+    }
+
+    // Suite named in a transfer header; it must be one this server offered
+    private CipherSuite readSuite(DataInputStream in) throws IOException {
+        CipherSuite suite = CipherSuite.fromWire(in.readUnsignedByte());
+        if (!cipherSuites.contains(suite)) throw new IOException("Cipher suite " + suite + " is not accepted by this server");
+        return suite;
+    }
+
+    // UTF-8 file name of 'len' bytes from a transfer header
+    private static String readFileName(DataInputStream in, int len) throws IOException {
+        if (len <= 0 || len > Protocol.MAX_NAME_LENGTH) throw new IOException("Invalid file name length " + len);
+        byte[] name = new byte[len];
+        in.readFully(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    // Plain names only: every file the server creates is named after the client's name, and none of
+    // them may end up outside the save directory
+    static String checkFileName(String name) throws IOException {
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('/') >= 0
+                || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+            throw new IOException("Invalid file name '" + name + "'");
+        }
+        return name;
+    }
+
+    // Sizes from a transfer header: the segment layout is sized from them before any data arrives
+    static void checkSizes(String name, long originalSize, long encryptedSize) throws IOException {
+        // (the last comparison catches sizes so large that the encrypted one overflows)
+        if (originalSize < 0 || encryptedSize != SegmentedAead.encryptedSize(originalSize) || encryptedSize < originalSize) {
+            throw new IOException("Invalid sizes " + originalSize + "/" + encryptedSize + " for " + name);
+        }
+    }
+
+    private File partFile(TransferSession session) {
+        return new File(saveDir, session.getId() + "_" + session.getFileName() + ".part");
+    }
+
+    // Atomically publishes an authenticated plaintext file under its final name
+    private File commitDecrypted(TransferSession session, File part) throws IOException {
+        File decryptedFile = new File(saveDir, decryptedName(claimName(session, TransferServer::decryptedName)));
+        moveOver(part, decryptedFile);
+        session.setPlaintextFile(decryptedFile);
+        session.transition(TransferSession.State.RECEIVING, TransferSession.State.DONE);
+        sessions.remove(session);
+        log("Decrypted on receive " + session + ": " + decryptedFile.getAbsolutePath() + " (" + session.getOriginalSize() + " bytes)");
+        listener.received(session);
+        return decryptedFile;
+    }
+
+    private static String decryptedName(String name) {
+        return "DECRYPTED_" + name;
+    }
+
+    // Reserves the name a finished upload is committed under by creating an empty placeholder, so no
+    // other upload can take it meanwhile: the file's own name, or <base>-<transfer ID><ext> (then -2,
+    // -3, ...) when an earlier file holds it. 'stored' maps a name to its file in the save directory.
+    private String claimName(TransferSession session, UnaryOperator<String> stored) throws IOException {
+        String name = session.getFileName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int n = 1; ; n++) {
+            String candidate = n == 1 ? name : base + "-" + session.getId() + (n == 2 ? "" : "-" + (n - 1)) + ext;
+            try {
+                Files.createFile(new File(saveDir, stored.apply(candidate)).toPath());
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            if (n > 1) log(stored.apply(name) + " already exists; storing " + session + " as " + stored.apply(candidate));
+            session.setStoredName(candidate);
+            return candidate;
+        }
+    }
+
+    // Moves a finished file over the placeholder claimName() created for it
+    private static void moveOver(File from, File placeholder) throws IOException {
+        try {
+            Files.move(from.toPath(), placeholder.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), placeholder.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            placeholder.delete();
+            throw e;
+        }
+    }
+
+    // Deduplicated upload: each batch of fingerprints is answered with the chunks the store lacks, and
+    // the file is rebuilt in order from stored and newly received chunks. A new chunk is only stored
+    // once its plaintext matches its fingerprint, since every later upload will trust it.
+    private void receiveDeduplicated(TransferSession session, DataInputStream in, DataOutputStream out) throws IOException {
+        ChunkStore store = chunkStore();
+        File part = partFile(session);
+        int[] lengths = new int[Protocol.DEDUP_BATCH];
+        byte[] hashes = new byte[Protocol.DEDUP_BATCH * Chunker.HASH_LENGTH];
+        long[] locations = new long[Protocol.DEDUP_BATCH];
+        int[] repeatOf = new int[Protocol.DEDUP_BATCH];
+        byte[] hash = new byte[Chunker.HASH_LENGTH];
+        byte[] body = new byte[SegmentedAead.SEGMENT_SIZE + Crypto.GCM_TAG_LENGTH];
+        byte[] plain = new byte[SegmentedAead.SEGMENT_SIZE];
+        MessageDigest sha = Chunker.sha256();
+        long chunks = 0, newChunks = 0, newBytes = 0, pos = 0;
+        boolean complete = false;
+
+        try (FileChannel target = FileChannel.open(part.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int n;
+            while ((n = in.readInt()) != 0) {
+                if (n < 0 || n > Protocol.DEDUP_BATCH) throw new IOException("Invalid chunk batch of " + n);
+                long batchBytes = 0;
+                for (int i = 0; i < n; i++) {
+                    lengths[i] = in.readInt();
+                    in.readFully(hashes, i * Chunker.HASH_LENGTH, Chunker.HASH_LENGTH);
+                    if (lengths[i] <= 0 || lengths[i] > Chunker.MAX_SIZE) throw new IOException("Invalid chunk length " + lengths[i]);
+                    batchBytes += lengths[i];
+                }
+                if (pos + batchBytes > session.getOriginalSize()) {
+                    throw new IOException("Chunks add up to more than the announced " + session.getOriginalSize() + " bytes");
+                }
+
+                // Ask for each chunk the store lacks, once even if the batch repeats it
+                store.findAll(hashes, n, locations);
+                BitSet missing = new BitSet(n);
+                Map<ByteBuffer, Integer> requested = new HashMap<>();
+                for (int i = 0; i < n; i++) {
+                    repeatOf[i] = -1;
+                    if (locations[i] != 0) {
+                        if (ChunkStore.length(locations[i]) != lengths[i]) throw new IOException("Chunk " + (chunks + i) + " has the wrong length");
+                        continue;
+                    }
+                    Integer first = requested.putIfAbsent(ByteBuffer.wrap(hashes, i * Chunker.HASH_LENGTH, Chunker.HASH_LENGTH), i);
+                    if (first == null) {
+                        missing.set(i);
+                    } else {
+                        repeatOf[i] = first;
+                    }
+                }
+                byte[] bitmap = missing.toByteArray();
+                out.writeInt(bitmap.length);
+                out.write(bitmap);
+                out.flush();
+
+                for (int i = 0; i < n; i++) {
+                    if (missing.get(i)) {
+                        int h = SegmentedAead.readSegment(in, session.getAesKey(), session.getIv(), chunks + i, body, plain);
+                        int len = SegmentedAead.plainLength(h);
+                        System.arraycopy(hashes, i * Chunker.HASH_LENGTH, hash, 0, Chunker.HASH_LENGTH);
+                        sha.update(plain, 0, len);
+                        if (!SegmentedAead.isFinal(h) || len != lengths[i] || !MessageDigest.isEqual(sha.digest(), hash)) {
+                            throw new IOException("Chunk " + (chunks + i) + " does not match its fingerprint");
+                        }
+                        locations[i] = store.put(hash, plain, len);
+                        ByteBuffer bb = ByteBuffer.wrap(plain, 0, len);
+                        long p = pos;
+                        while (bb.hasRemaining()) {
+                            p += target.write(bb, p);
+                        }
+                        newChunks++;
+                        newBytes += len;
+                    } else {
+                        if (repeatOf[i] >= 0) locations[i] = locations[repeatOf[i]];
+                        store.copyTo(locations[i], target, pos);
+                    }
+                    pos += lengths[i];
+                }
+                chunks += n;
+            }
+            if (pos != session.getOriginalSize()) {
+                throw new IOException("Received " + pos + " bytes of chunks but " + session.getOriginalSize() + " were announced");
+            }
+            target.force(true);
+            complete = true;
+        } finally {
+            // Chunks stored so far stay useful even if this upload failed: a retry will not resend them
+            try {
+                store.sync();
+            } catch (IOException e) {
+                log("Could not sync the chunk store: " + e.getMessage());
+            }
+            if (!complete) part.delete();
+        }
+        log(String.format("Deduplicated %s: %d of %d chunk(s) new, %d of %d bytes received (store: %d chunks)",
+                session, newChunks, chunks, newBytes, session.getOriginalSize(), store.size()));
+        metrics.counter("bytes.received").add(newBytes);
+        metrics.counter("dedup.bytesReused").add(session.getOriginalSize() - newBytes);
+        session.setPlaintextFile(part); // committed by the integrity check that follows
+        recordCompleted(session);
+        out.writeByte(Protocol.STATUS_OK);
+        out.flush();
+    }
+
+    private synchronized ChunkStore chunkStore() throws IOException {
+        if (chunkStore == null) {
+            chunkStore = new ChunkStore(new File(saveDir, "chunks"));
+            log("Opened chunk store " + chunkStore.getDir().getAbsolutePath() + " (" + chunkStore.size() + " chunks).");
+        }
+        return chunkStore;
+    }
+
+    // Additional stream of a parallel upload; the key was already exchanged on the first connection
+    private void handleJoin(DataInputStream in, DataOutputStream out, ReceiveEngine.HeaderInputStream header,
+                            ReadableByteChannel source, Closeable connection) throws Exception {
+        long id = in.readLong();
+        RangeAssembler assembler = assemblers.get(id);
+        if (assembler == null) {
+            out.writeByte(Protocol.STATUS_ERROR);
+            out.flush();
+            throw new IOException("Unknown parallel transfer #" + id);
+        }
+        // Transfer IDs are sequential; only a client holding the transfer key may add a stream
+        if (!checkProof(in, out, id, assembler.getSession().getAesKey(), true)) {
+            throw new IOException("Refused to join transfer #" + id + ": invalid proof");
+        }
+        out.writeByte(Protocol.STATUS_OK);
+        out.flush();
+        receiveRange(assembler, in, out, header, source, connection);
+    }
+
+    // Challenge for OP_JOIN / OP_CONTINUE: sends STATUS_OK and a fresh nonce, and checks the client's
+    // HMAC over it under the transfer key. A wrong proof is answered with STATUS_ERROR.
+    private boolean checkProof(DataInputStream in, DataOutputStream out, long id, SecretKey key, boolean join) throws Exception {
+        byte[] nonce = KeyMaterialPool.take(SessionTickets.NONCE_LENGTH);
+        out.writeByte(Protocol.STATUS_OK);
+        out.write(nonce);
+        out.flush();
+
+        byte[] proof = new byte[SessionTickets.PROOF_LENGTH];
+        in.readFully(proof);
+        byte[] expected = join ? SessionTickets.joinProof(key, id, nonce) : SessionTickets.continueProof(key, id, nonce);
+        if (MessageDigest.isEqual(proof, expected)) return true;
+        out.writeByte(Protocol.STATUS_ERROR);
+        out.flush();
+        return false;
+    }
+
+    // Range read of a file stored at rest (see Protocol.OP_READ): only the segments overlapping the
+    // range are decrypted, and the bytes go back re-sealed under this connection's key. The handshake
+    // does not say who the peer is, so it must first prove it holds the file's read token; a missing
+    // file and a wrong proof get the same answer
+    private void handleRead(DataInputStream in, DataOutputStream out, InetAddress client, boolean resume) throws Exception {
+        ConnectionEngine engine = connections;
+        SecretKey aesKey = agreeKey(in, out, resume);
+        byte[] ticket = tickets.issue(SessionTickets.resumptionSecret(aesKey));
+        out.writeInt(ticket.length);
+        out.write(ticket);
+        out.flush();
+
+        String fileName = readFileName(in, in.readInt());
+        long offset = in.readLong();
+        long length = in.readLong();
+        SecretKey rangeKey = readSuite(in).transferKey(aesKey);
+        if (!serveReads) {
+            out.writeByte(Protocol.STATUS_ERROR);
+            out.writeUTF("Range reads are disabled on this server");
+            out.flush();
+            log("Refused range read of '" + fileName + "': reads are disabled");
+            return;
+        }
+        byte[] nonce = KeyMaterialPool.take(SessionTickets.NONCE_LENGTH);
+        out.writeByte(Protocol.STATUS_OK);
+        out.write(nonce);
+        out.flush();
+        byte[] proof = new byte[SessionTickets.PROOF_LENGTH];
+        in.readFully(proof);
+
+        long started = System.nanoTime();
+        engine.acquireTransfer(client);
+        try {
+            SealedFile sealed = null;
+            try {
+                checkFileName(fileName);
+                File file = new File(saveDir, fileName + SealedFile.SUFFIX);
+                if (!file.isFile()) throw new FileNotFoundException("no such file");
+                sealed = SealedFile.open(file, identity.privateKeys());
+                if (!MessageDigest.isEqual(proof, SessionTickets.readProof(sealed.readToken(), fileName, nonce))) {
+                    throw new IOException("wrong read token");
+                }
+            } catch (IOException e) {
+                if (sealed != null) sealed.close();
+                out.writeByte(Protocol.STATUS_ERROR);
+                out.writeUTF("Not allowed to read '" + fileName + "'");
+                out.flush();
+                log("Refused range read of '" + fileName + "': " + e.getMessage());
+                return;
+            }
+            try (SealedFile file = sealed) {
+                long size = file.getSize();
+                // A negative offset counts back from the end, a negative length reads to the end
+                long start = offset < 0 ? Math.max(0, size + offset) : Math.min(offset, size);
+                long count = length < 0 ? size - start : Math.min(length, size - start);
+                byte[] iv = Crypto.randomIv();
+                out.writeByte(Protocol.STATUS_OK);
+                out.writeLong(size);
+                out.writeLong(start);
+                out.writeLong(count);
+                out.write(iv);
+
+                byte[] plain = new byte[SegmentedAead.SEGMENT_SIZE];
+                byte[] frame = new byte[SegmentedAead.SEGMENT_FRAME];
+                long segments = SegmentedAead.segmentCount(count);
+                long pos = start;
+                for (long c = 0; c < segments; c++) {
+                    int n = (int) Math.min(SegmentedAead.SEGMENT_SIZE, start + count - pos);
+                    if (n > 0 && file.read(pos, plain, 0, n) != n) throw new EOFException("Short read from " + fileName);
+                    pos += n;
+                    out.write(frame, 0, SegmentedAead.encryptSegment(rangeKey, iv, c, c == segments - 1, plain, n, frame));
+                }
+                out.flush();
+                readNanos.recordSince(started);
+                bytesRead.add(count);
+                log(String.format("Sent bytes [%d, %d) of '%s' (%d bytes) in %.1f ms", start, start + count, fileName, size,
+                        (System.nanoTime() - started) / 1e6));
+            }
+        } finally {
+            engine.releaseTransfer(client);
+        }
+    }
+
+    // Reconnection to an interrupted upload: the client proves it holds the transfer key, learns which
+    // ranges are missing and sends each of them as on a joined stream
+    private void handleContinue(DataInputStream in, DataOutputStream out, ReceiveEngine.HeaderInputStream header,
+                                ReadableByteChannel source, Closeable connection, InetAddress client) throws Exception {
+        long id = in.readLong();
+        RangeAssembler assembler = assemblers.get(id);
+        TransferSession done = assembler == null ? recentlyCompleted.get(id) : null;
+        SecretKey key = assembler != null ? assembler.getSession().getAesKey() : done != null ? done.getAesKey() : null;
+        if (key == null) {
+            out.writeByte(Protocol.STATUS_ERROR);
+            out.flush();
+            throw new IOException("No interrupted transfer #" + id + " to continue");
+        }
+        if (!checkProof(in, out, id, key, false)) {
+            throw new IOException("Refused to continue transfer #" + id + ": invalid proof");
+        }
+        if (assembler == null) {
+            // Completed after all; only the client's last ack went missing
+            out.writeByte(Protocol.STATUS_OK);
+            out.writeInt(0);
+            out.flush();
+            log("Transfer #" + id + " was already complete; told the reconnecting client.");
+            checkIntegrity(in, out, done);
+            return;
+        }
+        TransferSession session = assembler.getSession();
+
+        // Streams the client has already given up on may still look alive here; closing them
+        // releases whatever segments they had not finished
+        assembler.abortStreams(10_000);
+        List<long[]> missing = assembler.missingRanges();
+        out.writeByte(Protocol.STATUS_OK);
+        out.writeInt(missing.size());
+        for (long[] run : missing) {
+            out.writeLong(run[0]);
+            out.writeLong(run[1]);
+        }
+        out.flush();
+        log("Continuing " + session + ": " + assembler.doneSegments() + " of " + assembler.getTotalSegments()
+                + " segments already received, " + missing.size() + " range(s) to go");
+
+        ConnectionEngine engine = connections;
+        engine.acquireTransfer(client);
+        try {
+            for (int i = 0; i < missing.size(); i++) {
+                receiveRange(assembler, in, out, header, source, connection);
+            }
+        } finally {
+            engine.releaseTransfer(client);
+        }
+        checkIntegrity(in, out, session);
+    }
+
+    private void receiveRange(RangeAssembler assembler, DataInputStream in, DataOutputStream out,
+                              ReceiveEngine.HeaderInputStream header, ReadableByteChannel source,
+                              Closeable connection) throws IOException {
+        long first = in.readLong();
+        long count = in.readLong();
+        receiveSegments(assembler, out, header, source, connection, first, count);
+    }
+
+    // Receives segments [first, first + count) on this connection and acknowledges them
+    private void receiveSegments(RangeAssembler assembler, DataOutputStream out, ReceiveEngine.HeaderInputStream header,
+                                 ReadableByteChannel source, Closeable connection, long first, long count) throws IOException {
+        TransferSession session = assembler.getSession();
+        try {
+            boolean complete = assembler.receiveRange(header, source, first, count, connection);
+            if (complete && assemblers.remove(session.getId(), assembler)) {
+                finishAssembly(assembler);
+            }
+            out.writeByte(Protocol.STATUS_OK);
+            out.flush();
+        } catch (IOException ex) {
+            if (resumeKeepMillis > 0 && connectionLost(ex) && assemblers.get(session.getId()) == assembler) {
+                // Keep what has arrived; the client can reconnect with OP_CONTINUE
+                try {
+                    assembler.checkpoint();
+                } catch (IOException e) {
+                    log("Could not checkpoint " + session + ": " + e.getMessage());
+                }
+                interrupted.increment();
+                log("Transfer " + session + " interrupted with " + assembler.doneSegments() + " of "
+                        + assembler.getTotalSegments() + " segments received; waiting for the client to continue.");
+            } else if (assemblers.remove(session.getId(), assembler)) {
+                // Corrupt or rejected data invalidates the whole transfer
+                assembler.discard();
+                discardSession(session);
+            }
+            throw ex;
+        }
+    }
+
+    // A dropped or reset connection (as opposed to bad data) leaves the upload resumable
+    private static boolean connectionLost(IOException e) {
+        return e instanceof EOFException || e instanceof SocketException || e instanceof ClosedChannelException;
+    }
+
+    // Drops interrupted uploads that nobody came back for within sft.resume.keepSeconds
+    private void expireInterrupted() {
+        for (RangeAssembler assembler : assemblers.values()) {
+            if (assembler.idleMillis() > resumeKeepMillis && assemblers.remove(assembler.getSession().getId(), assembler)) {
+                log("Interrupted transfer " + assembler.getSession() + " expired.");
+                assembler.discard();
+                discardSession(assembler.getSession());
+            }
+        }
+    }
+
+    // Picks up uploads interrupted in an earlier run, so their clients can continue them
+    private void restoreCheckpoints() {
+        File[] files = saveDir.listFiles((dir, name) -> name.endsWith(UploadCheckpoint.SUFFIX));
+        if (files == null) return;
+        for (File f : files) {
+            try {
+                BitSet done = new BitSet();
+                UploadCheckpoint checkpoint = UploadCheckpoint.load(f, identity.privateKeys(), identity.current().getPublic(), done);
+                TransferSession session = checkpoint.getSession();
+                if (!checkpoint.getTarget().isFile()) throw new IOException(checkpoint.getTarget().getName() + " is missing");
+                RangeAssembler assembler = new RangeAssembler(session, receiveEngine, checkpoint.getTarget(), checkpoint.isDecrypting(),
+                        checkpoint.isDecrypting() || storeAtRest, checkpoint, checkpointSegments, metrics);
+                assembler.restore(done);
+                sessions.reserveId(session.getId());
+                sessions.register(session);
+                assemblers.put(session.getId(), assembler);
+                log("Restored interrupted transfer " + session + " (" + assembler.doneSegments() + " of "
+                        + assembler.getTotalSegments() + " segments received).");
+            } catch (IOException e) {
+                log("Discarding checkpoint " + f.getName() + ": " + e.getMessage());
+                f.delete();
+            }
+        }
+    }
+
+    // Called once by whichever stream delivered the last missing range
+    private void finishAssembly(RangeAssembler assembler) throws IOException {
+        TransferSession session = assembler.getSession();
+        try {
+            if (assembler.isDecrypting()) {
+                assembler.force();
+                assembler.close();
+                // Committed once the client's Merkle root has been checked against it (see verifyOrDefer)
+                session.setReceivedTree(assembler.getTree());
+                session.setPlaintextFile(assembler.getTarget());
+            } else if (storeAtRest) {
+                assembler.close();
+                // Sealed under a temporary name; committed once reading it back matches the client's
+                // Merkle root (see verifyOrDefer)
+                File sealed = new File(saveDir, session.getId() + "_" + sealedName(session.getFileName()) + ".part");
+                SealedFile.seal(session, identity.current().getPublic(), sealed);
+                session.setReceivedTree(assembler.getTree());
+                session.setSealedFile(sealed);
+            } else {
+                assembler.close();
+                log("Encrypted file saved to: " + session.getEncryptedFile().getAbsolutePath() + " (" + session.getEncryptedSize() + " bytes, reassembled)");
+                markReceived(session);
+            }
+            recentlyCompleted.put(session.getId(), session);
+            recordCompleted(session);
+        } catch (IOException ex) {
+            assembler.discard();
+            discardSession(session);
+            throw ex;
+        }
+    }
+
+    private File commitSealed(TransferSession session, File part) throws IOException {
+        File sealed = new File(saveDir, sealedName(claimName(session, TransferServer::sealedName)));
+        moveOver(part, sealed);
+        session.setSealedFile(sealed);
+        session.transition(TransferSession.State.RECEIVING, TransferSession.State.DONE);
+        sessions.remove(session);
+        log("Stored encrypted at rest " + session + ": " + sealed.getAbsolutePath());
+        listener.received(session);
+        return sealed;
+    }
+
+    private static String sealedName(String name) {
+        return name + SealedFile.SUFFIX;
+    }
+
+    // Per-transfer throughput, from the first header byte to the committed file
+    private void recordCompleted(TransferSession session) {
+        completed.increment();
+        long nanos = System.nanoTime() - session.getStartNanos();
+        throughput.record(nanos > 0 ? (long) (session.getOriginalSize() * 1e9 / nanos) : 0);
+    }
+
+    private void markReceived(TransferSession session) {
+        sessions.markReceived(session);
+        listener.received(session);
+        if (autoDecrypt && sessions.claim(session.getId()) != null) {
+            decryptPool.submit(() -> decryptPendingFile(session));
+        }
+        pendingChanged();
+    }
+
+    private void discardSession(TransferSession session) {
+        failed.increment();
+        session.fail();
+        sessions.remove(session);
+        session.getEncryptedFile().delete();
+    }
+
+    // Decrypts the oldest pending transfer on the worker pool
+    public void decryptNext() {
+        TransferSession session = sessions.claimNext();
+        if (session == null) {
+            log("Error: No pending file data or key to decrypt.");
+            return;
+        }
+        decryptPool.submit(() -> decryptPendingFile(session));
+    }
+
+    // Decrypts up to 'max' pending transfers (oldest first) in parallel on the worker pool
+    public int decryptBatch(int max) {
+        List<TransferSession> batch = sessions.claimBatch(max);
+        for (TransferSession session : batch) {
+            decryptPool.submit(() -> decryptPendingFile(session));
+        }
+        return batch.size();
+    }
+
+    // Decrypts every pending transfer in parallel, bounded by the worker pool size
+    public void decryptAll() {
+        List<TransferSession> batch = sessions.claimAll();
+        if (batch.isEmpty()) {
+            log("Error: No pending file data or key to decrypt.");
+            return;
+        }
+        log("Decrypting " + batch.size() + " pending file(s) on " + Runtime.getRuntime().availableProcessors() + " worker(s).");
+        for (TransferSession session : batch) {
+            decryptPool.submit(() -> decryptPendingFile(session));
+        }
+    }
+
+    private void decryptPendingFile(TransferSession session) {
+        File encryptedFile = session.getEncryptedFile();
+        File part = partFile(session); // committed under a DECRYPTED_ name once complete
+
+        pendingChanged();
+        log("Initiating decryption of " + encryptedFile.getName());
+        long started = System.nanoTime();
+
+        try {
+            long total = 0;
+            MerkleTree.Builder hashed = new MerkleTree.Builder(session.getOriginalSize());
+            // Segments are authenticated one at a time, so memory use does not depend on the file size.
+            // Each one is read from its slot in the spool: compressed segments are shorter than a slot.
+            // The plaintext is hashed on the way for the integrity check.
+            try (RandomAccessFile spool = new RandomAccessFile(encryptedFile, "r");
+                 FileOutputStream fos = new FileOutputStream(part)) {
+                byte[] body = new byte[SegmentedAead.SEGMENT_SIZE + Crypto.GCM_TAG_LENGTH];
+                byte[] plain = new byte[SegmentedAead.SEGMENT_SIZE];
+                long segments = SegmentedAead.segmentCount(session.getOriginalSize());
+                for (long c = 0; c < segments; c++) {
+                    spool.seek(SegmentedAead.segmentOffset(c));
+                    int h = SegmentedAead.readSegment(spool, session.getAesKey(), session.getIv(), c, body, plain);
+                    if (SegmentedAead.isFinal(h) != (c == segments - 1)) {
+                        throw new IOException("Final segment marker out of place at segment " + c);
+                    }
+                    fos.write(plain, 0, SegmentedAead.plainLength(h));
+                    hashed.update(total, plain, 0, SegmentedAead.plainLength(h));
+                    total += SegmentedAead.plainLength(h);
+                }
+                // On disk before it takes its final name, as on the receive path
+                fos.getFD().sync();
+            }
+            if (total != session.getOriginalSize()) {
+                throw new IOException("Decrypted " + total + " bytes but " + session.getOriginalSize() + " were announced");
+            }
+            File decryptedFile;
+            MerkleTree tree = null;
+            synchronized (session) {
+                // A root that is already in is checked before the file takes a name; one that
+                // arrives later finds the committed file (see verifyOrDefer)
+                session.setReceivedTree(hashed);
+                byte[] root = session.getExpectedRoot();
+                if (root != null && (tree = verifyPlaintext(session, part, false, root)) == null) {
+                    throw new IOException("Decrypted file does not match the sender's Merkle root");
+                }
+                decryptedFile = new File(saveDir, decryptedName(claimName(session, TransferServer::decryptedName)));
+                moveOver(part, decryptedFile); // drops the claimed name if it fails
+                session.setPlaintextFile(decryptedFile);
+            }
+            // Committed and authenticated from here on: a failure below never takes the file away again
+            if (tree != null) saveSidecar(tree, decryptedFile);
+
+            log("Decryption successful! Plaintext file saved to: " + decryptedFile.getAbsolutePath() + " (" + total + " bytes)");
+            session.transition(TransferSession.State.DECRYPTING, TransferSession.State.DONE);
+            decryptFileNanos.recordSince(started);
+            // Clean up: delete the encrypted temporary file
+            if (encryptedFile.delete()) {
+                log("Cleaned up temporary encrypted file.");
+            }
+
+        } catch (Exception ex) {
+            session.fail();
+            failed.increment();
+            log("Decryption FAILED for " + session + "! (Integrity check failed or Stream error) Error: " + ex.getMessage());
+            part.delete(); // gone already once committed
+        } finally {
+            sessions.remove(session);
+            pendingChanged();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (connections != null) connections.stop();
+        log("Server stopped.");
+        for (RangeAssembler assembler : assemblers.values()) {
+            try { assembler.close(); } catch (IOException ignored) {}
+        }
+        assemblers.clear();
+        synchronized (this) {
+            if (chunkStore != null) {
+                try { chunkStore.close(); } catch (IOException ignored) {}
+                chunkStore = null;
+            }
+        }
+        sessions.clear();
+        pendingChanged();
+    }
+
+    // Stops accepting and releases the worker pools; the instance cannot be restarted afterwards
+    public void shutdown() {
+        if (running) stop();
+        if (connections != null) connections.shutdownNow();
+        if (identity != null) identity.close();
+        decryptPool.shutdown();
+        sessionPool.shutdown();
+        metrics.unregisterMBean();
+    }
+
+    // End of an upload (see Protocol): compares the client's Merkle root with the stored plaintext,
+    // or keeps it for when a spooled file is decrypted, and tells the client which it was and the
+    // name the file is stored under
+    private void checkIntegrity(DataInputStream in, DataOutputStream out, TransferSession session) throws IOException {
+        byte[] root;
+        try {
+            root = readRoot(in);
+        } catch (IOException e) {
+            // No root is coming: commit the file unchecked, as for a client that sends none
+            if (session != null) verifyOrDefer(session, null);
+            throw e;
+        }
+        int verdict = session != null ? verifyOrDefer(session, root) : Protocol.STATUS_UNVERIFIED;
+        String stored = session != null && verdict != Protocol.STATUS_ERROR ? session.getStoredName() : null;
+        out.writeByte(verdict);
+        out.writeUTF(stored != null ? stored : "");
+        out.flush();
+    }
+
+    private static byte[] readRoot(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len == 0) return null;
+        if (len != MerkleTree.HASH_LENGTH) throw new IOException("Invalid Merkle root length " + len);
+        byte[] root = new byte[len];
+        in.readFully(root);
+        return root;
+    }
+
+    // Settles a finished upload once the client's Merkle root (null: none) is in. A file decrypted on
+    // arrival is still its .part file, and a file stored at rest its temporary sealed file, and only
+    // takes a name if it matches, so a file that fails the check never lands next to the others. One
+    // committed already (its decryption finished first, or its root was lost with a connection) is
+    // checked in place; a spooled one keeps the root for its decryption.
+    private int verifyOrDefer(TransferSession session, byte[] root) {
+        synchronized (session) {
+            File sealed = session.getSealedFile();
+            File file = sealed != null ? sealed : session.getPlaintextFile();
+            if (file == null) {
+                session.setExpectedRoot(root);
+                return Protocol.STATUS_UNVERIFIED;
+            }
+            boolean committed = session.getState() != TransferSession.State.RECEIVING;
+            MerkleTree tree = null;
+            if (root != null && (tree = verifyPlaintext(session, file, sealed != null, root)) == null) {
+                file.delete();
+                session.setPlaintextFile(null);
+                session.setSealedFile(null);
+                session.setStoredName(null);
+                if (!committed) discardSession(session);
+                log("Deleted " + file.getName() + ".");
+                return Protocol.STATUS_ERROR;
+            }
+            if (!committed) {
+                try {
+                    file = sealed != null ? commitSealed(session, file) : commitDecrypted(session, file);
+                } catch (IOException e) {
+                    log("Could not commit " + session + ": " + e.getMessage());
+                    file.delete();
+                    discardSession(session);
+                    return Protocol.STATUS_ERROR;
+                }
+            }
+            // No sidecar for a sealed file: its leaf hashes would reveal which blocks match a guess
+            if (tree != null && sealed == null) saveSidecar(tree, file);
+            return root != null ? Protocol.STATUS_OK : Protocol.STATUS_UNVERIFIED;
+        }
+    }
+
+    // Merkle tree of the stored plaintext, compared with the client's root; returns the tree if they
+    // match, else null. The tree was mostly hashed as the file was written (see MerkleTree.Builder):
+    // only blocks that were not are read back, from the file or by decrypting the sealed file. A file
+    // written without hashing (deduplicated uploads) is hashed again in full.
+    private MerkleTree verifyPlaintext(TransferSession session, File plain, boolean sealed, byte[] root) {
+        long started = System.nanoTime();
+        MerkleTree tree;
+        try {
+            MerkleTree.Builder received = session.getReceivedTree();
+            if (received != null) {
+                tree = finishTree(received, plain, sealed);
+            } else {
+                tree = sealed ? sealedTree(plain) : MerkleTree.build(plain);
+            }
+        } catch (IOException e) {
+            corrupt.increment();
+            log("Integrity check of " + session + " failed: " + e.getMessage());
+            return null;
+        }
+        verifyNanos.recordSince(started);
+        if (!tree.rootEquals(root)) {
+            corrupt.increment();
+            log("Integrity check FAILED for " + session + ": " + plain.getName() + " does not match the sender's Merkle root.");
+            return null;
+        }
+        verified.increment();
+        log(String.format("Verified %s: %d block(s), root %s (%.1f ms)", session, tree.blockCount(),
+                MerkleTree.hex(root).substring(0, 16), (System.nanoTime() - started) / 1e6));
+        return tree;
+    }
+
+    private MerkleTree finishTree(MerkleTree.Builder received, File file, boolean sealed) throws IOException {
+        if (received.pendingBlocks() > 0) log("Reading back " + received.pendingBlocks() + " block(s) of " + file.getName() + " to verify it");
+        if (sealed) {
+            try (SealedFile sf = SealedFile.open(file, identity.privateKeys())) {
+                return received.finish(sf::read);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return received.finish((position, b, off, len) -> {
+                raf.seek(position);
+                return raf.read(b, off, len);
+            });
+        }
+    }
+
+    private MerkleTree sealedTree(File file) throws IOException {
+        try (SealedFile sealed = SealedFile.open(file, identity.privateKeys()); InputStream in = sealed.openStream()) {
+            return MerkleTree.read(in, sealed.getSize());
+        }
+    }
+
+    private void saveSidecar(MerkleTree tree, File file) {
+        if (!integritySidecars) return;
+        try {
+            tree.save(MerkleTree.sidecarFor(file));
+        } catch (IOException e) {
+            log("Could not save the Merkle tree of " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void pendingChanged() {
+        listener.pendingChanged(sessions.pendingCount());
+    }
+
+    private void log(String s) {
+        listener.log(s);
+    }
+}
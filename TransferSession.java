@@ -0,0 +1,75 @@
+package ml_project.cn;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+// State of one received transfer, from the first header byte until its decryption finishes
+public class TransferSession {
+    public enum State { RECEIVING, RECEIVED, DECRYPTING, DONE, FAILED }
+
+    private final long id;
+    private final SecretKey aesKey;
+    private final byte[] iv;
+    private final String fileName;
+    private final long originalSize;
+    private final long encryptedSize;
+    private final File encryptedFile;
+    private final Compression.Codec codec;
+    private final AtomicReference<State> state = new AtomicReference<>(State.RECEIVING);
+    private final long startNanos = System.nanoTime(); // for throughput metrics
+    // Integrity check (see MerkleTree): whichever of the two arrives second triggers the comparison
+    private byte[] expectedRoot;  // guarded by this
+    private File plaintextFile;   // guarded by this; the .part file until it is committed
+    private File sealedFile;      // guarded by this; stored at rest instead (see SealedFile), likewise
+    private MerkleTree.Builder received; // guarded by this; plaintext hashed as it was written, if it was
+    // Name the file was committed under: its own, or a variant when an earlier upload holds that one
+    private String storedName;    // guarded by this
+
+    public TransferSession(long id, SecretKey aesKey, byte[] iv, String fileName,
+                           long originalSize, long encryptedSize, File encryptedFile, Compression.Codec codec) {
+        this.id = id;
+        this.aesKey = aesKey;
+        this.iv = iv;
+        this.fileName = fileName;
+        this.originalSize = originalSize;
+        this.encryptedSize = encryptedSize;
+        this.encryptedFile = encryptedFile;
+        this.codec = codec;
+    }
+
+    public long getId() { return id; }
+    public SecretKey getAesKey() { return aesKey; }
+    public byte[] getIv() { return iv; }
+    public String getFileName() { return fileName; }
+    public long getOriginalSize() { return originalSize; }
+    public long getEncryptedSize() { return encryptedSize; }
+    public File getEncryptedFile() { return encryptedFile; }
+    public Compression.Codec getCodec() { return codec; }
+    public State getState() { return state.get(); }
+    public long getStartNanos() { return startNanos; }
+
+    synchronized byte[] getExpectedRoot() { return expectedRoot; }
+    synchronized void setExpectedRoot(byte[] root) { expectedRoot = root; }
+    synchronized File getPlaintextFile() { return plaintextFile; }
+    synchronized void setPlaintextFile(File file) { plaintextFile = file; }
+    synchronized File getSealedFile() { return sealedFile; }
+    synchronized void setSealedFile(File file) { sealedFile = file; }
+    synchronized MerkleTree.Builder getReceivedTree() { return received; }
+    synchronized void setReceivedTree(MerkleTree.Builder tree) { received = tree; }
+    synchronized String getStoredName() { return storedName; }
+    synchronized void setStoredName(String name) { storedName = name; }
+
+    // Atomic state change; only one thread can win a given transition
+    boolean transition(State from, State to) {
+        return state.compareAndSet(from, to);
+    }
+
+    void fail() {
+        state.set(State.FAILED);
+    }
+
+    @Override public String toString() {
+        return "#" + id + " '" + fileName + "'";
+    }
+}
@@ -0,0 +1,215 @@
+package ml_project.cn;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SocketChannel;
+
+// Socket and buffer sizing for transfer connections. To keep a link busy a sender needs one
+// bandwidth-delay product (BDP = throughput x round-trip time) in flight, so the socket buffers must
+// hold about two of them, and handing data to the socket in batches of a good fraction of one keeps
+// the pipe full with few system calls.
+//
+// LOOPBACK, LAN and WAN size everything for a nominal link (see the constants). AUTO, the default,
+// sizes each connection for the link it measures: the round-trip time from the TCP connect and the
+// first reply of the handshake, the throughput from the previous transfers to the same server or,
+// until there is one, a guess from the kind of address (loopback, private network, anything else).
+//
+// Socket buffers are only set when two BDPs are more than TCP autotuning reaches by itself
+// (AUTOTUNE_LIMIT): on Linux an explicit SO_SNDBUF / SO_RCVBUF turns autotuning off for the socket and
+// is capped at net.core.wmem_max / rmem_max, so a smaller explicit size would only slow things down.
+// If the cap is below what the link needs, the buffers stay with autotuning and the settings say so.
+// TCP_NODELAY is always on: each handshake message is flushed as one write and then waited on, which
+// Nagle's algorithm and delayed ACKs would hold up by tens of milliseconds.
+//
+//   sft.transport              AUTO | LOOPBACK | LAN | WAN (default AUTO)
+//   sft.transport.assumedMbps  AUTO's throughput guess for a public address until one is measured
+//                              (default 100)
+// sft.send.batchSegments and sft.receive.bufferSize, when set, override what a profile chooses.
+public enum TransportProfile {
+    AUTO(null),
+    LOOPBACK(new Link(50_000L, 4e9, false)),          // 50 us, 4 GB/s (memory copies)
+    LAN(new Link(1_000_000L, 1.25e9, false)),         // 1 ms, 10 Gbit/s
+    WAN(new Link(100_000_000L, 125e6, false));        // 100 ms, 1 Gbit/s
+
+    // What Linux autotuning grows a socket buffer to by default (tcp_wmem); below it nothing is set
+    private static final int AUTOTUNE_LIMIT = 4 << 20;
+    private static final int MAX_SOCKET_BUFFER = 64 << 20;
+    private static final int MIN_BATCH = 16, MAX_BATCH = 64; // segments: 1 MB to 4 MB per write
+    private static final int MIN_STREAM_BUFFER = 64 << 10, MAX_STREAM_BUFFER = 1 << 20;
+    private static final int MIN_READ_BUFFER = 256 << 10, MAX_READ_BUFFER = 4 << 20;
+    private static final double ASSUMED_BYTES_PER_SECOND = Integer.getInteger("sft.transport.assumedMbps", 100) * 125_000.0;
+
+    private static volatile int kernelLimit = -1;
+
+    private final Link nominal;
+
+    TransportProfile(Link nominal) {
+        this.nominal = nominal;
+    }
+
+    public static TransportProfile fromSystemProperties() {
+        return parse(System.getProperty("sft.transport", AUTO.name()));
+    }
+
+    public static TransportProfile parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown transport profile '" + name + "' (expected auto, loopback, lan or wan)");
+        }
+    }
+
+    // Settings before anything is known about the link: a named profile's nominal ones, or for AUTO
+    // the defaults for a short, fast link (buffers left to autotuning)
+    public Settings settings() {
+        return settings(null);
+    }
+
+    // Settings for a connection over 'measured'; named profiles ignore the measurement
+    public Settings settings(Link measured) {
+        Link link = this == AUTO ? measured : nominal;
+        long bdp = link == null ? 0 : link.bdp();
+        int wanted = (int) Math.min(MAX_SOCKET_BUFFER, powerOfTwo(2 * bdp));
+        int socketBuffer = 0;
+        boolean capped = false;
+        if (wanted > AUTOTUNE_LIMIT) {
+            capped = kernelLimit() < wanted;
+            if (!capped) socketBuffer = wanted;
+        }
+        Integer batch = Integer.getInteger("sft.send.batchSegments");
+        Integer read = Integer.getInteger("sft.receive.bufferSize");
+        return new Settings(this, link, bdp, socketBuffer, capped ? wanted : 0,
+                clamp(powerOfTwo(bdp / 16), MIN_STREAM_BUFFER, MAX_STREAM_BUFFER),
+                batch != null ? batch : clamp(powerOfTwo(bdp / 4 / SegmentedAead.SEGMENT_SIZE), MIN_BATCH, MAX_BATCH),
+                read != null ? read : clamp(powerOfTwo(bdp / 8), MIN_READ_BUFFER, MAX_READ_BUFFER));
+    }
+
+    // Largest socket buffer the kernel accepts, found once with a throwaway socket (0 if unknown)
+    static int kernelLimit() {
+        int limit = kernelLimit;
+        if (limit < 0) {
+            try (SocketChannel probe = SocketChannel.open()) {
+                probe.setOption(StandardSocketOptions.SO_SNDBUF, MAX_SOCKET_BUFFER);
+                probe.setOption(StandardSocketOptions.SO_RCVBUF, MAX_SOCKET_BUFFER);
+                limit = Math.min(probe.getOption(StandardSocketOptions.SO_SNDBUF), probe.getOption(StandardSocketOptions.SO_RCVBUF));
+            } catch (IOException e) {
+                limit = 0;
+            }
+            kernelLimit = limit;
+        }
+        return limit;
+    }
+
+    private static long powerOfTwo(long n) {
+        return n <= 1 ? 1 : Long.highestOneBit(n - 1) << 1;
+    }
+
+    private static int clamp(long n, int min, int max) {
+        return (int) Math.max(min, Math.min(max, n));
+    }
+
+    static String size(long bytes) {
+        if (bytes >= 10L << 20) return (bytes >> 20) + " MB";
+        if (bytes >= 10L << 10) return (bytes >> 10) + " KB";
+        return bytes + " bytes";
+    }
+
+    // Round-trip time and throughput of a path, measured or assumed
+    public static final class Link {
+        public final long rttNanos;
+        public final double bytesPerSecond;
+        public final boolean measured; // throughput observed on a transfer, not guessed
+
+        public Link(long rttNanos, double bytesPerSecond, boolean measured) {
+            this.rttNanos = rttNanos;
+            this.bytesPerSecond = bytesPerSecond;
+            this.measured = measured;
+        }
+
+        // Starting point for a server not talked to yet; the first connect replaces the RTT
+        public static Link guess(InetAddress address) {
+            if (address != null && address.isLoopbackAddress()) return LOOPBACK.nominal;
+            if (address != null && isPrivate(address)) return LAN.nominal;
+            return new Link(WAN.nominal.rttNanos, ASSUMED_BYTES_PER_SECOND, false);
+        }
+
+        private static boolean isPrivate(InetAddress address) {
+            return address.isSiteLocalAddress() || address.isLinkLocalAddress()
+                    || (address instanceof Inet6Address && (address.getAddress()[0] & 0xfe) == 0xfc); // fc00::/7
+        }
+
+        public Link withRtt(long rttNanos) {
+            return new Link(rttNanos, bytesPerSecond, measured);
+        }
+
+        public Link withThroughput(double bytesPerSecond) {
+            return new Link(rttNanos, bytesPerSecond, true);
+        }
+
+        public long bdp() {
+            return (long) (bytesPerSecond * rttNanos / 1e9);
+        }
+
+        @Override public String toString() {
+            return String.format("RTT %.2f ms, %.0f MB/s%s", rttNanos / 1e6, bytesPerSecond / 1e6, measured ? "" : " (assumed)");
+        }
+    }
+
+    // What one connection uses
+    public static final class Settings {
+        public final TransportProfile profile;
+        public final Link link;            // null when nothing is known (AUTO before connecting)
+        public final long bdp;
+        public final int socketBuffer;     // SO_SNDBUF and SO_RCVBUF, 0 = left to TCP autotuning
+        public final int cappedBuffer;     // size the link needs but the kernel does not allow, or 0
+        public final int streamBuffer;     // buffered header streams
+        public final int batchSegments;    // segments per gathering write, i.e. how often data is handed to the socket
+        public final int readBuffer;       // the server's receive buffers (see ReceiveEngine)
+
+        Settings(TransportProfile profile, Link link, long bdp, int socketBuffer, int cappedBuffer, int streamBuffer,
+                 int batchSegments, int readBuffer) {
+            this.profile = profile;
+            this.link = link;
+            this.bdp = bdp;
+            this.socketBuffer = socketBuffer;
+            this.cappedBuffer = cappedBuffer;
+            this.streamBuffer = streamBuffer;
+            this.batchSegments = batchSegments;
+            this.readBuffer = readBuffer;
+        }
+
+        // Options for a socket before it connects or binds (the receive buffer has to be set then for
+        // TCP to advertise a large enough window scale); a listening socket passes SO_RCVBUF on to
+        // the connections it accepts
+        public void configure(NetworkChannel channel) throws IOException {
+            if (channel instanceof SocketChannel) {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (socketBuffer > 0) channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBuffer);
+            }
+            if (socketBuffer > 0) channel.setOption(StandardSocketOptions.SO_RCVBUF, socketBuffer);
+        }
+
+        // Applies a new estimate to a connected socket; only the send buffer can still change usefully
+        public void resize(SocketChannel channel) throws IOException {
+            if (socketBuffer > channel.getOption(StandardSocketOptions.SO_SNDBUF)) {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBuffer);
+            }
+        }
+
+        @Override public String toString() {
+            StringBuilder sb = new StringBuilder(profile.name());
+            if (link != null) sb.append(": ").append(link).append(", BDP ").append(size(bdp));
+            sb.append("; socket buffers ");
+            if (socketBuffer > 0) sb.append(size(socketBuffer));
+            else if (cappedBuffer > 0) sb.append("left to TCP autotuning (").append(size(cappedBuffer))
+                    .append(" needed, the OS allows ").append(size(kernelLimit())).append("; raise net.core.wmem_max/rmem_max)");
+            else sb.append("left to TCP autotuning");
+            sb.append(", ").append(size(streamBuffer)).append(" stream buffers, ")
+                    .append(batchSegments).append(" segments per write, ").append(size(readBuffer)).append(" receive buffers");
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package ml_project.cn;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.BitSet;
+import java.util.List;
+
+// On-disk progress of an interrupted upload, so it can be continued after the connection drops or
+// the server restarts. Saved next to the target file as <id>_<name>.ckpt (temp file + atomic move),
+// and only after the segments it lists have been forced to disk.
+//
+// The transfer key is stored wrapped with the server's RSA public key; it is wrapped on the first
+// save, so uploads that finish before their first checkpoint never pay for the RSA operation.
+public class UploadCheckpoint {
+    private static final int MAGIC = 0x53465443; // "SFTC"
+    private static final int VERSION = 1;
+    public static final String SUFFIX = ".ckpt";
+
+    private final File file;
+    private final TransferSession session;
+    private final File target;
+    private final boolean decrypt;
+    private final PublicKey serverKey;
+    private byte[] wrappedKey;
+
+    public UploadCheckpoint(File file, TransferSession session, File target, boolean decrypt, PublicKey serverKey) {
+        this.file = file;
+        this.session = session;
+        this.target = target;
+        this.decrypt = decrypt;
+        this.serverKey = serverKey;
+    }
+
+    public static File fileFor(File dir, TransferSession session) {
+        return new File(dir, session.getId() + "_" + session.getFileName() + SUFFIX);
+    }
+
+    public TransferSession getSession() {
+        return session;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    public boolean isDecrypting() {
+        return decrypt;
+    }
+
+    // Records 'done' (segments already on stable storage) as the upload's progress
+    public synchronized void save(BitSet done) throws IOException {
+        if (wrappedKey == null) {
+            try {
+                wrappedKey = Crypto.rsaEncrypt(session.getAesKey().getEncoded(), serverKey);
+            } catch (Exception e) {
+                throw new IOException("Could not wrap the transfer key: " + e.getMessage(), e);
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(session.getId());
+            out.writeUTF(session.getFileName());
+            out.writeLong(session.getOriginalSize());
+            out.writeLong(session.getEncryptedSize());
+            out.writeByte(session.getCodec().ordinal());
+            out.writeByte(CipherSuite.of(session.getAesKey()).id);
+            writeBytes(out, session.getIv());
+            writeBytes(out, wrappedKey);
+            out.writeBoolean(decrypt);
+            out.writeUTF(target.getName());
+            out.writeUTF(session.getEncryptedFile().getName());
+            writeBytes(out, done.toByteArray());
+            out.flush();
+            fos.getFD().sync();
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public synchronized void delete() {
+        file.delete();
+    }
+
+    // Reads a checkpoint written by an earlier run; 'done' receives the recorded progress
+    // 'serverKeys' are the current and retired private keys (see ServerKeyRing)
+    public static UploadCheckpoint load(File file, List<PrivateKey> serverKeys, PublicKey serverPublic, BitSet done) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a checkpoint file: " + file);
+            if (in.readInt() != VERSION) throw new IOException("Unsupported checkpoint version: " + file);
+            long id = in.readLong();
+            String fileName = in.readUTF();
+            long originalSize = in.readLong();
+            long encryptedSize = in.readLong();
+            Compression.Codec codec = Compression.fromWire(in.readUnsignedByte());
+            CipherSuite suite = CipherSuite.fromWire(in.readUnsignedByte());
+            byte[] iv = readBytes(in);
+            byte[] wrapped = readBytes(in);
+            boolean decrypt = in.readBoolean();
+            File target = new File(dir, in.readUTF());
+            File encFile = new File(dir, in.readUTF());
+            done.or(BitSet.valueOf(readBytes(in)));
+
+            byte[] key;
+            try {
+                key = ServerIdentity.unwrap(wrapped, serverKeys);
+            } catch (Exception e) {
+                throw new IOException("Transfer key cannot be unwrapped (server identity changed?)", e);
+            }
+            TransferSession session = new TransferSession(id, suite.key(key), iv, fileName,
+                    originalSize, encryptedSize, encFile, codec);
+            UploadCheckpoint checkpoint = new UploadCheckpoint(file, session, target, decrypt, serverPublic);
+            checkpoint.wrappedKey = wrapped;
+            return checkpoint;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > (64 << 20)) throw new IOException("Corrupt checkpoint");
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+}
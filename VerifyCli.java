@@ -0,0 +1,93 @@
+package ml_project.cn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Re-verifies received files against the Merkle trees the server saved when it first verified them
+// (<file>.merkle, see MerkleTree). Each file is re-hashed in parallel, and a mismatch is reported as
+// the exact blocks (and byte ranges) that changed. Exits non-zero if any file is damaged.
+//
+//   java ml_project.cn.VerifyCli PATH...
+//
+// A PATH may be a file, its .merkle file, or a directory (every file in it with a .merkle file).
+public class VerifyCli {
+    public static void main(String[] args) {
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--help")) {
+                usage();
+                return;
+            }
+            collect(new File(arg), files);
+        }
+        if (args.length == 0) {
+            usage();
+            System.exit(2);
+        }
+
+        int bad = 0;
+        for (File file : files) {
+            if (!verify(file)) bad++;
+        }
+        System.out.println(files.size() - bad + " of " + files.size() + " file(s) intact.");
+        if (bad > 0 || files.isEmpty()) System.exit(1);
+    }
+
+    private static void collect(File path, List<File> files) {
+        if (path.isDirectory()) {
+            File[] trees = path.listFiles((dir, name) -> name.endsWith(MerkleTree.SUFFIX));
+            if (trees == null) return;
+            Arrays.sort(trees);
+            for (File tree : trees) collect(tree, files);
+        } else if (path.getName().endsWith(MerkleTree.SUFFIX)) {
+            String p = path.getPath();
+            files.add(new File(p.substring(0, p.length() - MerkleTree.SUFFIX.length())));
+        } else {
+            files.add(path);
+        }
+    }
+
+    private static boolean verify(File file) {
+        long started = System.nanoTime();
+        MerkleTree expected;
+        try {
+            expected = MerkleTree.load(MerkleTree.sidecarFor(file));
+        } catch (IOException e) {
+            System.out.println("NO TREE  " + file + ": " + e.getMessage());
+            return false;
+        }
+        MerkleTree actual;
+        try {
+            actual = MerkleTree.build(file);
+        } catch (IOException e) {
+            System.out.println("UNREADABLE  " + file + ": " + e.getMessage());
+            return false;
+        }
+        if (actual.rootEquals(expected.root())) {
+            System.out.printf("OK  %s (%d bytes, %d block(s), %.1f ms)%n", file, actual.size(), actual.blockCount(),
+                    (System.nanoTime() - started) / 1e6);
+            return true;
+        }
+        List<Integer> blocks = expected.differingBlocks(actual);
+        StringBuilder sb = new StringBuilder("CORRUPT  " + file);
+        if (actual.size() != expected.size()) {
+            sb.append(" (size ").append(actual.size()).append(", expected ").append(expected.size()).append(')');
+        }
+        sb.append(": ").append(blocks.size()).append(" damaged block(s)");
+        for (int i = 0; i < Math.min(blocks.size(), 20); i++) {
+            long from = (long) blocks.get(i) * MerkleTree.BLOCK_SIZE;
+            long to = Math.min(from + MerkleTree.BLOCK_SIZE, Math.max(actual.size(), expected.size()));
+            sb.append(String.format("%n    block %d: bytes [%d, %d)", blocks.get(i), from, to));
+        }
+        if (blocks.size() > 20) sb.append(String.format("%n    ... and %d more", blocks.size() - 20));
+        System.out.println(sb);
+        return false;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: VerifyCli PATH...");
+    }
+}
@@ -0,0 +1,106 @@
+package ml_project.cn.bench;
+
+import ml_project.cn.Crypto;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+// Per-transfer setup cost: RSA key exchange, key generation and cipher construction.
+// Run with -prof gc to see allocation per operation alongside the latency.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+    private KeyPair rsa;
+    private byte[] aesKeyBytes;
+    private byte[] wrappedKey;
+    private byte[] encodedPublicKey;
+    private SecretKey aesKey;
+    private byte[] iv;
+
+    @Setup
+    public void setup() throws Exception {
+        rsa = Crypto.generateRSAKeyPair(2048);
+        aesKey = Crypto.generateAESKey();
+        aesKeyBytes = aesKey.getEncoded();
+        wrappedKey = Crypto.rsaEncrypt(aesKeyBytes, rsa.getPublic());
+        encodedPublicKey = rsa.getPublic().getEncoded();
+        iv = new byte[Crypto.GCM_IV_LENGTH];
+    }
+
+    @Benchmark
+    public byte[] rsaEncrypt() throws Exception {
+        return Crypto.rsaEncrypt(aesKeyBytes, rsa.getPublic());
+    }
+
+    @Benchmark
+    public byte[] rsaDecrypt() throws Exception {
+        return Crypto.rsaDecrypt(wrappedKey, rsa.getPrivate());
+    }
+
+    @Benchmark
+    public PublicKey publicKeyFromBytes() throws Exception {
+        return Crypto.publicKeyFromBytes(encodedPublicKey);
+    }
+
+    // Taken from the KeyMaterialPool; a loop this tight outruns the refill thread, so the score mixes
+    // pooled takes with inline misses (compare inlineKeyMaterial)
+    @Benchmark
+    public SecretKey generateAESKey() throws Exception {
+        return Crypto.generateAESKey();
+    }
+
+    // What a key + IV cost when generated on the transfer thread, without the pool
+    @Benchmark
+    public byte[] inlineKeyMaterial() {
+        byte[] key = new byte[Crypto.AES_KEY_SIZE / 8];
+        byte[] iv = new byte[Crypto.GCM_IV_LENGTH];
+        Crypto.random().nextBytes(key);
+        Crypto.random().nextBytes(iv);
+        return iv;
+    }
+
+    @Benchmark
+    public Cipher createAESCipher() throws Exception {
+        // Fresh IV each call: GCM refuses to re-init an encryptor with the same key/IV pair
+        iv[0]++;
+        return Crypto.createAESCipher(Cipher.ENCRYPT_MODE, aesKey, iv);
+    }
+
+    // Cached per-thread cipher re-initialised with a fresh IV (what the segment loop uses)
+    @Benchmark
+    public Cipher threadAESCipher() throws Exception {
+        iv[0]++;
+        return Crypto.threadAESCipher(Cipher.ENCRYPT_MODE, aesKey, iv);
+    }
+
+    @Benchmark
+    public byte[] randomIv() {
+        return Crypto.randomIv();
+    }
+
+    // Everything the sender does before the first payload byte, minus the network round trip
+    @Benchmark
+    public Cipher perTransferSetup() throws Exception {
+        SecretKey key = Crypto.generateAESKey();
+        Crypto.rsaEncrypt(key.getEncoded(), rsa.getPublic());
+        return Crypto.threadAESCipher(Cipher.ENCRYPT_MODE, key, Crypto.randomIv());
+    }
+
+    // Key pair generation is slow and highly variable, so it is sampled one shot at a time
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 10)
+    public KeyPair generateRSAKeyPair() throws Exception {
+        return Crypto.generateRSAKeyPair(2048);
+    }
+}
@@ -0,0 +1,54 @@
+package ml_project.cn.bench;
+
+import ml_project.cn.EventPipeline;
+import ml_project.cn.RotatingLog;
+import ml_project.cn.TransferListener;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of posting progress and log events from transfer threads into the EventPipeline, which must
+// not block or allocate. Run with -prof gc; the consumer's own allocation is on its thread, so the
+// per-op figure mostly reflects the producers.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventPipelineBenchmark {
+    private static final String MESSAGE = "Segment written";
+
+    private EventPipeline events;
+    private long sent;
+
+    @Setup
+    public void setup() {
+        TransferListener ui = new TransferListener() {
+            @Override public void log(String message) {}
+        };
+        events = new EventPipeline("bench", ui, new RotatingLog(null, null, 0, 0), 100, 8192);
+    }
+
+    @TearDown
+    public void tearDown() {
+        events.close();
+    }
+
+    @Benchmark
+    public void progress() {
+        events.progress("file.bin", sent += 65536, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void progressContended() {
+        events.progress("file.bin", 65536, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void logContended() {
+        events.log(MESSAGE);
+    }
+}
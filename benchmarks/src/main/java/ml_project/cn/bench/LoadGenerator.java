@@ -0,0 +1,596 @@
+package ml_project.cn.bench;
+
+import ml_project.cn.Compression;
+import ml_project.cn.LatencyHistogram;
+import ml_project.cn.TransferClient;
+import ml_project.cn.TransferListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Loopback load test: starts a ServerDaemon in its own JVM, then runs one or more stages of many
+// concurrent headless clients against it and reports, per stage, throughput, latency percentiles,
+// failed uploads, connections the server rejected and the server's CPU and heap use. Ramping the
+// client count (or the arrival rate) across stages shows where the server saturates.
+//
+//   java -cp benchmarks/target/benchmarks.jar ml_project.cn.bench.LoadGenerator
+//        [--clients 10,100,1000] [--rate 0] [--duration 30] [--warmup 5] [--sizes SPEC]
+//        [--streams 1] [--compress off|auto|always] [--retries 0] [--seed 1] [--json FILE]
+//        [--server-jvm ARG]... [--server-arg ARG]... [--connect HOST:PORT [--server-stats FILE]]
+//
+// --clients and --rate take comma-separated lists, one value per stage (the shorter list repeats
+// its last value). A rate of 0 is a closed loop: every client uploads back to back. A positive rate
+// is an open loop: uploads arrive as a Poisson process at that many per second and wait for a free
+// client, and their latency is counted from the arrival, so a server that falls behind shows up in
+// the tail instead of silently lowering the offered load.
+//
+// --sizes picks the size of each upload:
+//   1m                          every upload 1 MB
+//   uniform:4k:16m              uniform between the bounds
+//   lognormal:64k:1.5           log-normal with that median and sigma (capped at 1 GB)
+//   mix:4k=50,1m=40,64m=10      weighted mix (the default is mix:4k=40,64k=30,1m=25,16m=5)
+//
+// The payloads are random (incompressible) and created once in a temporary directory; continuous
+// distributions are rounded to a few sizes per power of two so that only a handful of files exist.
+// Every client sends under its own names, so concurrent uploads never overwrite each other.
+//
+// Server options go to the daemon unchanged (--server-arg --spool, --server-jvm -Xmx512m). All
+// clients connect from 127.0.0.1, so the daemon is started with -Dsft.connections.perClient raised
+// out of the way; pass a lower value with --server-jvm to test the per-client limit. With --connect
+// an already running server is used instead; its CPU and heap are only reported when it writes
+// --stats-json to the file given with --server-stats.
+//
+// Clients share the process-wide session-ticket cache, so after the first upload they resume
+// instead of doing the RSA exchange, like a fleet of long-running senders would.
+public class LoadGenerator {
+    private static final String DEFAULT_SIZES = "mix:4k=40,64k=30,1m=25,16m=5";
+    private static final long MAX_SIZE = 1L << 30;
+    // A stage whose throughput grows less than this over the previous one counts as saturated
+    private static final double SATURATION_GAIN = 1.10;
+
+    private final Options options;
+    private final File workDir;
+    private final Map<Long, File> payloads = new ConcurrentHashMap<>();
+    private String host = "127.0.0.1";
+    private int port;
+    private File serverStats;
+    private Process daemon;
+
+    private LoadGenerator(Options options) throws IOException {
+        this.options = options;
+        this.workDir = Files.createTempDirectory("sft-load").toFile();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        if (options == null) return;
+        LoadGenerator generator = new LoadGenerator(options);
+        Runtime.getRuntime().addShutdownHook(new Thread(generator::cleanUp, "sft-load-cleanup"));
+        generator.run();
+    }
+
+    private void run() throws Exception {
+        startServer();
+        for (long size : options.sizes.fixedSizes()) payload(size);
+
+        if (options.warmupSeconds > 0) {
+            System.out.printf(Locale.ROOT, "[LOAD] Warming up for %d s with %d client(s)%n", options.warmupSeconds, options.clients[0]);
+            runStage(0, options.warmupSeconds, false);
+        }
+        List<StageResult> results = new ArrayList<>();
+        for (int stage = 0; stage < options.stages(); stage++) {
+            results.add(runStage(stage, options.durationSeconds, true));
+        }
+
+        System.out.println();
+        System.out.println(StageResult.header());
+        for (StageResult r : results) System.out.println(r.row());
+        System.out.println(saturation(results));
+        if (options.json != null) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < results.size(); i++) sb.append(i > 0 ? ",\n " : "").append(results.get(i).toJson());
+            Files.write(options.json.toPath(), sb.append("]\n").toString().getBytes(StandardCharsets.UTF_8));
+            System.out.println("[LOAD] Results written to " + options.json);
+        }
+    }
+
+    // Runs one stage: 'clients' worker threads, fed either by themselves (closed loop) or by a
+    // Poisson arrival thread (open loop), until the stage time is up and the uploads in flight end
+    private StageResult runStage(int stage, int seconds, boolean report) throws Exception {
+        int clients = options.clients[Math.min(stage, options.clients.length - 1)];
+        double rate = options.rates[Math.min(stage, options.rates.length - 1)];
+        StageResult result = new StageResult(clients, rate);
+        BlockingQueue<Long> arrivals = new LinkedBlockingQueue<>();
+        ServerSampler sampler = new ServerSampler();
+        sampler.sample();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            int id = i;
+            Thread t = new Thread(() -> work(id, rate > 0 ? arrivals : null, deadline, result), "sft-load-" + i);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+        Thread arrivalThread = null;
+        if (rate > 0) {
+            arrivalThread = new Thread(() -> arrive(arrivals, rate, start, deadline), "sft-load-arrivals");
+            arrivalThread.setDaemon(true);
+            arrivalThread.start();
+        }
+
+        long nextReport = start + TimeUnit.SECONDS.toNanos(5);
+        while (workers.stream().anyMatch(Thread::isAlive)) {
+            Thread.sleep(1000);
+            sampler.sample();
+            if (report && System.nanoTime() >= nextReport) {
+                System.out.println(result.progress(start, sampler));
+                nextReport += TimeUnit.SECONDS.toNanos(5);
+            }
+        }
+        if (arrivalThread != null) arrivalThread.join();
+        result.elapsedNanos = System.nanoTime() - start;
+        result.notStarted = arrivals.size();
+        sampler.sample();
+        result.server(sampler);
+        if (report) System.out.println(result.summary());
+        return result;
+    }
+
+    private void arrive(BlockingQueue<Long> arrivals, double rate, long start, long deadline) {
+        Random random = new Random(options.seed * 31 + 7);
+        long next = start;
+        while (true) {
+            next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+            if (next >= deadline) return;
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            arrivals.add(next);
+        }
+    }
+
+    private void work(int id, BlockingQueue<Long> arrivals, long deadline, StageResult result) {
+        TransferListener quiet = message -> {};
+        TransferClient client = new TransferClient(host, port, quiet);
+        client.setRetries(options.retries);
+        client.setCompression(options.compression);
+        Random random = new Random(options.seed * 1_000_003L + id);
+        Map<Long, File> names = new HashMap<>();
+        try {
+            while (true) {
+                long begin;
+                if (arrivals == null) {
+                    if (System.nanoTime() >= deadline) return;
+                    begin = System.nanoTime();
+                } else {
+                    Long arrival = arrivals.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (arrival == null) return;
+                    begin = arrival;
+                }
+                long size = options.sizes.next(random);
+                File file = names.computeIfAbsent(size, s -> clientFile(id, s));
+                try {
+                    client.sendFile(file, options.streams);
+                    result.latency.recordSince(begin);
+                    result.completed.increment();
+                    result.bytes.add(size);
+                } catch (Exception e) {
+                    result.failed(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The shared payload of that size, hard-linked under a name of this client's own
+    private File clientFile(int id, long size) {
+        File source = payload(size);
+        File link = new File(source.getParentFile(), "c" + id + "-" + size + ".bin");
+        try {
+            if (!link.exists()) Files.createLink(link.toPath(), source.toPath());
+            return link;
+        } catch (IOException | UnsupportedOperationException e) {
+            return source;
+        }
+    }
+
+    private File payload(long size) {
+        return payloads.computeIfAbsent(size, s -> {
+            File f = new File(workDir, "payload/" + s + ".bin");
+            try {
+                writeRandom(f, s);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not create payload " + f, e);
+            }
+            return f;
+        });
+    }
+
+    private void startServer() throws Exception {
+        if (options.connect != null) {
+            int colon = options.connect.lastIndexOf(':');
+            host = options.connect.substring(0, colon);
+            port = Integer.parseInt(options.connect.substring(colon + 1));
+            serverStats = options.serverStats;
+            System.out.println("[LOAD] Using the server at " + options.connect);
+            return;
+        }
+        port = freePort();
+        serverStats = new File(workDir, "server-stats.json");
+        File log = new File(workDir, "server.log");
+        List<String> cmd = new ArrayList<>();
+        cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        cmd.add("-Dsft.connections.perClient=65536");
+        cmd.addAll(options.serverJvm);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add("ml_project.cn.ServerDaemon");
+        cmd.addAll(List.of("--port", String.valueOf(port), "--dir", new File(workDir, "received").getPath(),
+                "--identity", new File(workDir, "keys").getPath(), "--stats", "1", "--stats-json", serverStats.getPath()));
+        cmd.addAll(options.serverArgs);
+        daemon = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(log).start();
+
+        // The first stats file is written a second after the daemon is listening
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (!serverStats.exists()) {
+            if (!daemon.isAlive() || System.nanoTime() > until) {
+                String output = log.exists() ? new String(Files.readAllBytes(log.toPath()), StandardCharsets.UTF_8) : "";
+                throw new IllegalStateException("Server daemon did not start:\n" + output);
+            }
+            Thread.sleep(100);
+        }
+        System.out.println("[LOAD] Server daemon listening on 127.0.0.1:" + port + " (log: " + log + ")");
+    }
+
+    private void cleanUp() {
+        if (daemon != null) {
+            daemon.destroy();
+            try {
+                if (!daemon.waitFor(30, TimeUnit.SECONDS)) daemon.destroyForcibly();
+            } catch (InterruptedException e) {
+                daemon.destroyForcibly();
+            }
+        }
+        if (options.keep) {
+            System.out.println("[LOAD] Kept " + workDir);
+            return;
+        }
+        try (Stream<java.nio.file.Path> walk = Files.walk(workDir.toPath())) {
+            walk.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        } catch (IOException ignored) {}
+    }
+
+    // First stage after which the throughput stopped growing, or failures / rejections appeared
+    private static String saturation(List<StageResult> results) {
+        for (int i = 0; i < results.size(); i++) {
+            StageResult r = results.get(i);
+            if (r.failureRate() > 0.01 || r.rejected > 0) {
+                return "[LOAD] Saturated at stage " + (i + 1) + ": " + r.describe() + " failed or rejected uploads";
+            }
+            if (i > 0 && r.bytesPerSecond() < results.get(i - 1).bytesPerSecond() * SATURATION_GAIN) {
+                return "[LOAD] Saturated at stage " + (i + 1) + ": " + r.describe()
+                        + " did not raise throughput over stage " + i;
+            }
+        }
+        return results.size() > 1 ? "[LOAD] Not saturated: throughput grew with every stage" : "";
+    }
+
+    private static void writeRandom(File f, long size) throws IOException {
+        f.getParentFile().mkdirs();
+        byte[] chunk = new byte[1 << 20];
+        new Random(size).nextBytes(chunk);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            long left = size;
+            while (left > 0) {
+                int n = (int) Math.min(chunk.length, left);
+                raf.write(chunk, 0, n);
+                left -= n;
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    static long parseSize(String s) {
+        s = s.trim().toLowerCase(Locale.ROOT);
+        int shift = 0;
+        if (s.endsWith("k")) shift = 10;
+        else if (s.endsWith("m")) shift = 20;
+        else if (s.endsWith("g")) shift = 30;
+        if (shift > 0) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) << shift;
+    }
+
+    // Reads the server's --stats-json file: CPU use between samples, heap, rejected connections
+    private final class ServerSampler {
+        private final Pattern field = Pattern.compile("\"([\\w.]+)\":(-?[\\d.]+)");
+        private double lastCpu = -1, lastUptime;
+        private double cpuSum, cpuPeak, heapPeak, rejected = -1, firstRejected = -1;
+        private int cpuSamples;
+
+        void sample() {
+            if (serverStats == null || !serverStats.exists()) return;
+            Map<String, Double> v = new HashMap<>();
+            try {
+                Matcher m = field.matcher(new String(Files.readAllBytes(serverStats.toPath()), StandardCharsets.UTF_8));
+                while (m.find()) v.put(m.group(1), Double.parseDouble(m.group(2)));
+            } catch (IOException | NumberFormatException e) {
+                return;
+            }
+            Double uptime = v.get("uptimeMillis");
+            Double cpu = v.get("process.cpuNanos");
+            if (uptime != null && cpu != null && cpu >= 0) {
+                if (lastCpu >= 0 && uptime > lastUptime) {
+                    double percent = (cpu - lastCpu) / ((uptime - lastUptime) * 1e6) * 100;
+                    cpuSum += percent;
+                    cpuPeak = Math.max(cpuPeak, percent);
+                    cpuSamples++;
+                }
+                lastCpu = cpu;
+                lastUptime = uptime;
+            }
+            heapPeak = Math.max(heapPeak, v.getOrDefault("process.heapUsedBytes", 0.0));
+            Double r = v.get("connections.rejected");
+            if (r != null) {
+                if (firstRejected < 0) firstRejected = r;
+                rejected = r;
+            }
+        }
+
+        double cpuMean() { return cpuSamples == 0 ? -1 : cpuSum / cpuSamples; }
+        double cpuPeak() { return cpuSamples == 0 ? -1 : cpuPeak; }
+        long rejected() { return rejected < 0 ? 0 : (long) (rejected - firstRejected); }
+    }
+
+    private static final class StageResult {
+        final int clients;
+        final double rate;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+        long elapsedNanos;
+        long notStarted;
+        long rejected;
+        double cpuMean = -1, cpuPeak = -1, heapPeakBytes;
+
+        StageResult(int clients, double rate) {
+            this.clients = clients;
+            this.rate = rate;
+        }
+
+        void failed(Exception e) {
+            failed.increment();
+            String reason = e.getClass().getSimpleName() + (e.getMessage() != null ? ": " + e.getMessage() : "");
+            if (failures.size() < 100 || failures.containsKey(reason)) {
+                failures.computeIfAbsent(reason, k -> new LongAdder()).increment();
+            }
+        }
+
+        void server(ServerSampler s) {
+            cpuMean = s.cpuMean();
+            cpuPeak = s.cpuPeak();
+            heapPeakBytes = s.heapPeak;
+            rejected = s.rejected();
+        }
+
+        long attempts() { return completed.sum() + failed.sum() + notStarted; }
+        double failureRate() { return attempts() == 0 ? 0 : (double) (failed.sum() + notStarted) / attempts(); }
+        double rejectionRate() { return attempts() == 0 ? 0 : Math.min(1, (double) rejected / attempts()); }
+        double seconds() { return elapsedNanos / 1e9; }
+        double bytesPerSecond() { return elapsedNanos == 0 ? 0 : bytes.sum() / seconds(); }
+
+        String describe() {
+            return clients + " client(s)" + (rate > 0 ? String.format(Locale.ROOT, " at %.0f/s", rate) : "");
+        }
+
+        String progress(long start, ServerSampler s) {
+            LatencyHistogram.Snapshot l = latency.snapshot();
+            double secs = (System.nanoTime() - start) / 1e9;
+            return String.format(Locale.ROOT, "[LOAD]   %5.0f s  %7d done  %5d failed  %8.1f MB/s  p99 %8.1f ms  server cpu %s heap %s",
+                    secs, completed.sum(), failed.sum(), bytes.sum() / secs / 1e6, l.percentile(0.99) / 1e6,
+                    percent(s.cpuMean()), megabytes(s.heapPeak));
+        }
+
+        String summary() {
+            StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+                    "[LOAD] Stage %s: %d uploads in %.1f s, %.1f/s, %.1f MB/s, %d failed, %d not started, %d connection(s) rejected",
+                    describe(), completed.sum(), seconds(), completed.sum() / seconds(), bytesPerSecond() / 1e6,
+                    failed.sum(), notStarted, rejected));
+            failures.entrySet().stream()
+                    .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                    .limit(3)
+                    .forEach(e -> sb.append("\n[LOAD]   ").append(e.getValue().sum()).append(" x ").append(e.getKey()));
+            return sb.toString();
+        }
+
+        static String header() {
+            return String.format(Locale.ROOT, "%8s %8s %9s %9s %9s %9s %9s %9s %9s %7s %7s %11s %9s",
+                    "clients", "rate/s", "uploads/s", "MB/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms",
+                    "fail%", "rej%", "cpu% avg/max", "heap MB");
+        }
+
+        String row() {
+            LatencyHistogram.Snapshot l = latency.snapshot();
+            return String.format(Locale.ROOT, "%8d %8s %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %7.2f %7.2f %11s %9s",
+                    clients, rate > 0 ? String.format(Locale.ROOT, "%.0f", rate) : "closed", completed.sum() / seconds(),
+                    bytesPerSecond() / 1e6, l.percentile(0.5) / 1e6, l.percentile(0.9) / 1e6, l.percentile(0.99) / 1e6,
+                    l.percentile(0.999) / 1e6, l.max() / 1e6, failureRate() * 100, rejectionRate() * 100,
+                    percent(cpuMean) + "/" + percent(cpuPeak), megabytes(heapPeakBytes));
+        }
+
+        String toJson() {
+            LatencyHistogram.Snapshot l = latency.snapshot();
+            return String.format(Locale.ROOT, "{\"clients\":%d,\"rate\":%.1f,\"seconds\":%.1f,\"completed\":%d,\"failed\":%d,"
+                            + "\"notStarted\":%d,\"rejected\":%d,\"bytes\":%d,\"uploadsPerSecond\":%.1f,\"bytesPerSecond\":%.0f,"
+                            + "\"latencyMillis\":{\"mean\":%.2f,\"p50\":%.2f,\"p90\":%.2f,\"p99\":%.2f,\"p999\":%.2f,\"max\":%.2f},"
+                            + "\"failureRate\":%.4f,\"rejectionRate\":%.4f,\"serverCpuPercent\":{\"mean\":%.1f,\"max\":%.1f},"
+                            + "\"serverHeapPeakBytes\":%.0f}",
+                    clients, rate, seconds(), completed.sum(), failed.sum(), notStarted, rejected, bytes.sum(),
+                    completed.sum() / seconds(), bytesPerSecond(), l.mean() / 1e6, l.percentile(0.5) / 1e6,
+                    l.percentile(0.9) / 1e6, l.percentile(0.99) / 1e6, l.percentile(0.999) / 1e6, l.max() / 1e6,
+                    failureRate(), rejectionRate(), cpuMean, cpuPeak, heapPeakBytes);
+        }
+
+        private static String percent(double p) {
+            return p < 0 ? "-" : String.format(Locale.ROOT, "%.0f", p);
+        }
+
+        private static String megabytes(double b) {
+            return b <= 0 ? "-" : String.format(Locale.ROOT, "%.0f", b / (1 << 20));
+        }
+    }
+
+    // Upload sizes; continuous distributions are rounded so the payload files can be shared
+    private interface SizeDistribution {
+        long next(Random random);
+
+        // Sizes known up front, whose payloads are created before the first stage
+        default List<Long> fixedSizes() {
+            return List.of();
+        }
+
+        static SizeDistribution parse(String spec) {
+            String[] p = spec.split(":");
+            switch (p[0]) {
+                case "uniform": {
+                    long lo = parseSize(p[1]), hi = parseSize(p[2]);
+                    return random -> round(lo + (long) (random.nextDouble() * (hi - lo + 1)));
+                }
+                case "lognormal": {
+                    double mu = Math.log(parseSize(p[1])), sigma = Double.parseDouble(p[2]);
+                    return random -> round((long) Math.min(MAX_SIZE, Math.exp(mu + sigma * random.nextGaussian())));
+                }
+                case "mix": {
+                    List<Long> sizes = new ArrayList<>();
+                    List<Double> cumulative = new ArrayList<>();
+                    double total = 0;
+                    for (String part : p[1].split(",")) {
+                        String[] kv = part.split("=");
+                        sizes.add(parseSize(kv[0]));
+                        total += kv.length > 1 ? Double.parseDouble(kv[1]) : 1;
+                        cumulative.add(total);
+                    }
+                    double sum = total;
+                    return new SizeDistribution() {
+                        @Override public long next(Random random) {
+                            double x = random.nextDouble() * sum;
+                            for (int i = 0; i < sizes.size(); i++) if (x < cumulative.get(i)) return sizes.get(i);
+                            return sizes.get(sizes.size() - 1);
+                        }
+
+                        @Override public List<Long> fixedSizes() {
+                            return sizes;
+                        }
+                    };
+                }
+                default: {
+                    long size = parseSize(p[p.length - 1]);
+                    return new SizeDistribution() {
+                        @Override public long next(Random random) {
+                            return size;
+                        }
+
+                        @Override public List<Long> fixedSizes() {
+                            return List.of(size);
+                        }
+                    };
+                }
+            }
+        }
+
+        // Keeps the top three bits: at most eight distinct sizes per power of two
+        static long round(long size) {
+            if (size < 4096) return Math.max(0, size);
+            int shift = 63 - Long.numberOfLeadingZeros(size) - 2;
+            return (size >>> shift) << shift;
+        }
+    }
+
+    private static final class Options {
+        int[] clients = {10};
+        double[] rates = {0};
+        int durationSeconds = 30;
+        int warmupSeconds = 5;
+        SizeDistribution sizes = SizeDistribution.parse(DEFAULT_SIZES);
+        int streams = 1;
+        int retries = 0;
+        Compression.Policy compression = Compression.Policy.OFF;
+        long seed = 1;
+        File json;
+        boolean keep;
+        String connect;
+        File serverStats;
+        final List<String> serverJvm = new ArrayList<>();
+        final List<String> serverArgs = new ArrayList<>();
+
+        int stages() {
+            return Math.max(clients.length, rates.length);
+        }
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--clients": o.clients = Stream.of(args[++i].split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray(); break;
+                    case "--rate": o.rates = Stream.of(args[++i].split(",")).mapToDouble(s -> Double.parseDouble(s.trim())).toArray(); break;
+                    case "--duration": o.durationSeconds = Integer.parseInt(args[++i]); break;
+                    case "--warmup": o.warmupSeconds = Integer.parseInt(args[++i]); break;
+                    case "--sizes": o.sizes = SizeDistribution.parse(args[++i].trim().toLowerCase(Locale.ROOT)); break;
+                    case "--streams": o.streams = Integer.parseInt(args[++i]); break;
+                    case "--retries": o.retries = Integer.parseInt(args[++i]); break;
+                    case "--compress": o.compression = Compression.Policy.valueOf(args[++i].trim().toUpperCase(Locale.ROOT)); break;
+                    case "--seed": o.seed = Long.parseLong(args[++i]); break;
+                    case "--json": o.json = new File(args[++i]); break;
+                    case "--keep": o.keep = true; break;
+                    case "--connect": o.connect = args[++i]; break;
+                    case "--server-stats": o.serverStats = new File(args[++i]); break;
+                    case "--server-jvm": o.serverJvm.add(args[++i]); break;
+                    case "--server-arg": o.serverArgs.add(args[++i]); break;
+                    case "--help":
+                        usage();
+                        return null;
+                    default:
+                        System.err.println("Unknown option: " + args[i]);
+                        usage();
+                        System.exit(2);
+                }
+            }
+            return o;
+        }
+
+        static void usage() {
+            System.out.println("Usage: LoadGenerator [--clients N,N,...] [--rate R,R,...] [--duration S] [--warmup S] [--sizes SPEC]"
+                    + " [--streams N] [--compress off|auto|always] [--retries N] [--seed N] [--json FILE] [--keep]"
+                    + " [--server-jvm ARG]... [--server-arg ARG]... [--connect HOST:PORT [--server-stats FILE]]");
+        }
+    }
+}
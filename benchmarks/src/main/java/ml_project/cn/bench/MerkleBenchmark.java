@@ -0,0 +1,63 @@
+package ml_project.cn.bench;
+
+import ml_project.cn.MerkleTree;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Integrity hashing of a file already in the page cache: the parallel Merkle tree (ForkJoin over
+// 1 MB blocks) against one SHA-256 over the whole file on a single thread, which is what
+// verifying a large file cost before.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MerkleBenchmark {
+    @Param({"67108864", "1073741824"})
+    public long fileSize;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("sft-merkle", ".bin").toFile();
+        byte[] chunk = new byte[1 << 20];
+        new Random(7).nextBytes(chunk);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for (long left = fileSize; left > 0; left -= chunk.length) {
+                raf.write(chunk, 0, (int) Math.min(chunk.length, left));
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[] merkleTree() throws IOException {
+        return MerkleTree.build(file).root();
+    }
+
+    @Benchmark
+    public byte[] sequentialSha256() throws Exception {
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        byte[] buf = new byte[1 << 20];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) > 0) sha.update(buf, 0, n);
+        }
+        return sha.digest();
+    }
+}
@@ -0,0 +1,82 @@
+package ml_project.cn.bench;
+
+import ml_project.cn.CipherSuite;
+import ml_project.cn.Crypto;
+import ml_project.cn.SegmentedAead;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Segmented stream throughput per cipher suite and application copy-buffer size.
+// Scores are per 'payloadSize' operation; bytes/s = payloadSize / score.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamingBenchmark {
+    @Param({"AES-256-GCM", "AES-128-GCM", "ChaCha20-Poly1305"})
+    public String suite;
+
+    @Param({"8192", "65536", "1048576"})
+    public int bufferSize;
+
+    @Param({"16777216"})
+    public int payloadSize;
+
+    private SecretKey key;
+    private byte[] iv;
+    private byte[] payload;
+    private byte[] ciphertext;
+    private byte[] buf;
+    private final OutputStream sink = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup() throws Exception {
+        key = CipherSuite.parse(suite).transferKey(Crypto.generateAESKey());
+        iv = new byte[Crypto.GCM_IV_LENGTH];
+        payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream((int) SegmentedAead.encryptedSize(payloadSize));
+        try (SegmentedAead.EncryptingOutputStream enc = new SegmentedAead.EncryptingOutputStream(bos, key, iv)) {
+            enc.write(payload);
+        }
+        ciphertext = bos.toByteArray();
+        buf = new byte[bufferSize];
+    }
+
+    @Benchmark
+    public long encrypt() throws Exception {
+        iv[0]++; // fresh nonce space per operation
+        InputStream in = new ByteArrayInputStream(payload);
+        long total = 0;
+        try (SegmentedAead.EncryptingOutputStream enc = new SegmentedAead.EncryptingOutputStream(sink, key, iv)) {
+            int r;
+            while ((r = in.read(buf)) != -1) {
+                enc.write(buf, 0, r);
+                total += r;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long decrypt() throws Exception {
+        long total = 0;
+        try (SegmentedAead.DecryptingInputStream dec = new SegmentedAead.DecryptingInputStream(new ByteArrayInputStream(ciphertext), key, iv)) {
+            int r;
+            while ((r = dec.read(buf)) != -1) {
+                sink.write(buf, 0, r);
+                total += r;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,100 @@
+package ml_project.cn.bench;
+
+import ml_project.cn.TransferClient;
+import ml_project.cn.TransferListener;
+import ml_project.cn.TransferServer;
+import ml_project.cn.TransferSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Full loopback upload through TransferClient -> TransferServer, measured until the server has
+// the complete file (decrypted on receive, or spooled). Larger sizes can be added on the command
+// line, e.g. -p fileSize=4294967296.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TransferBenchmark {
+    @Param({"1024", "1048576", "67108864", "1073741824"})
+    public long fileSize;
+
+    @Param({"1", "4"})
+    public int streams;
+
+    @Param({"true", "false"})
+    public boolean decryptOnReceive;
+
+    private File workDir;
+    private File source;
+    private TransferServer server;
+    private TransferClient client;
+    private final Semaphore received = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        workDir = Files.createTempDirectory("sft-bench").toFile();
+        source = new File(workDir, "payload.bin");
+        writeRandom(source, fileSize);
+
+        TransferListener quiet = new TransferListener() {
+            @Override public void log(String message) {}
+
+            @Override public void received(TransferSession session) {
+                received.release();
+            }
+        };
+        server = new TransferServer(new File(workDir, "received"), quiet);
+        server.setIdentityDir(new File(workDir, "keys"));
+        server.setDecryptOnReceive(decryptOnReceive);
+        int port = freePort();
+        server.start(port);
+        client = new TransferClient("127.0.0.1", port, quiet);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.shutdown();
+        try (Stream<java.nio.file.Path> walk = Files.walk(workDir.toPath())) {
+            walk.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public void upload() throws Exception {
+        client.sendFile(source, streams);
+        if (!received.tryAcquire(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Server did not finish receiving " + source);
+        }
+    }
+
+    private static void writeRandom(File f, long size) throws IOException {
+        byte[] chunk = new byte[1 << 20];
+        new Random(7).nextBytes(chunk);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            long left = size;
+            while (left > 0) {
+                int n = (int) Math.min(chunk.length, left);
+                raf.write(chunk, 0, n);
+                left -= n;
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -1,32 +1,54 @@
 package ml_project.cn;
 
-import javax.crypto.CipherOutputStream;
-import javax.crypto.SecretKey;
 import javax.swing.*;
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.*;
-import java.net.Socket;
-import java.security.PublicKey;
-import java.security.SecureRandom;
-import javax.crypto.Cipher;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class client extends JFrame {
     private final JTextField fileField = new JTextField(24);
     private final JButton browseBtn = new JButton("Browse");
-    private final JComboBox<String> algoCombo = new JComboBox<>(new String[] {"AES-256"});
+    // "Auto" ranks the suites by a quick measurement on this CPU (see CipherSuite.calibrate), taken in
+    // the background when the window opens; every other entry is one CipherSuite
+    private static final String AUTO = "Auto (fastest here)";
+    private final JComboBox<Object> algoCombo = new JComboBox<>();
+    private CompletableFuture<List<CipherSuite.Calibration>> calibration;
     private final JTextField ipField = new JTextField("127.0.0.1", 12);
     private final JTextField portField = new JTextField("8080", 6);
+    private final JSpinner streamsSpinner = new JSpinner(new SpinnerNumberModel(1, 1, Protocol.MAX_STREAMS, 1));
     private final JButton sendBtn = new JButton("Send File");
     private final JProgressBar progressBar = new JProgressBar(0,100);
     private final JTextArea statusArea = new JTextArea(8, 40);
+    // Transfer threads post events here; the view is refreshed from it a few times per second
+    private final EventPipeline events = EventPipeline.fromSystemProperties("client", new TransferListener() {
+        @Override public void log(String message) {
+            SwingUtilities.invokeLater(() -> {
+                statusArea.append(message + "\n");
+                statusArea.setCaretPosition(statusArea.getDocument().getLength());
+            });
+        }
+
+        @Override public void progress(String fileName, long sent, long total) {
+            final int pct = total == 0 ? 100 : (int) ((sent * 100) / total);
+            SwingUtilities.invokeLater(() -> progressBar.setValue(pct));
+        }
+    }, "[CLIENT]");
 
     private File selectedFile;
 
     public client() {
         super("Secure File Transfer - Client");
         initUI();
+        startCalibration();
+    }
+
+    // About a second of CPU, done while the user picks a file rather than on the first send
+    private void startCalibration() {
+        calibration = CompletableFuture.supplyAsync(CipherSuite::calibrate);
+        calibration.thenAccept(speeds -> log("Cipher speed on this CPU: " + speeds));
     }
 
     private void initUI() {
@@ -47,6 +69,10 @@ public class client extends JFrame {
         gbc.gridx=0; gbc.gridy=1;
         add(new JLabel("Encryption Algorithm"), gbc);
         gbc.gridx=1; gbc.gridwidth=2;
+        algoCombo.addItem(AUTO);
+        for (CipherSuite suite : CipherSuite.values()) {
+            if (suite.isAvailable()) algoCombo.addItem(suite);
+        }
         add(algoCombo, gbc);
         gbc.gridwidth=1;
 
@@ -58,17 +84,23 @@ public class client extends JFrame {
         gbc.gridx=2;
         add(portField, gbc);
 
+        // Row: Parallel streams
+        gbc.gridx=0; gbc.gridy=3;
+        add(new JLabel("Parallel Streams"), gbc);
+        gbc.gridx=1;
+        add(streamsSpinner, gbc);
+
         // Row: Send Button
-        gbc.gridx=1; gbc.gridy=3;
+        gbc.gridx=1; gbc.gridy=4;
         add(sendBtn, gbc);
 
         // Row: Progress bar
-        gbc.gridx=0; gbc.gridy=4; gbc.gridwidth=3; gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.gridx=0; gbc.gridy=5; gbc.gridwidth=3; gbc.fill = GridBagConstraints.HORIZONTAL;
         add(progressBar, gbc);
         gbc.fill = GridBagConstraints.NONE; gbc.gridwidth=1;
 
         // Status area
-        gbc.gridx=0; gbc.gridy=5; gbc.gridwidth=3;
+        gbc.gridx=0; gbc.gridy=6; gbc.gridwidth=3;
         add(new JScrollPane(statusArea), gbc);
         statusArea.setEditable(false);
 
@@ -96,9 +128,19 @@ public class client extends JFrame {
             return;
         }
         sendBtn.setEnabled(false);
+        String host = ipField.getText().trim();
+        int port = Integer.parseInt(portField.getText().trim());
+        int streams = (Integer) streamsSpinner.getValue();
+        Object algo = algoCombo.getSelectedItem();
+        TransferClient transfer = new TransferClient(host, port, events);
         new Thread(() -> {
             try {
-                sendFile();
+                if (algo instanceof CipherSuite) {
+                    transfer.setCipherSuites(List.of((CipherSuite) algo));
+                } else {
+                    transfer.setCipherSuites(CipherSuite.ranking(calibration.get())); // waits if still measuring
+                }
+                transfer.sendFile(selectedFile, streams);
             } catch (Exception ex) {
                 log("Error: " + ex.getMessage());
                 ex.printStackTrace();
@@ -108,85 +150,8 @@ public class client extends JFrame {
         }).start();
     }
 
-    private void sendFile() throws Exception {
-        String host = ipField.getText().trim();
-        int port = Integer.parseInt(portField.getText().trim());
-
-        try (Socket socket = new Socket(host, port);
-             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
-
-            log("Connected to " + host + ":" + port);
-
-            // Read server RSA public key
-            int pubLen = in.readInt();
-            byte[] pubBytes = new byte[pubLen];
-            in.readFully(pubBytes);
-            PublicKey serverPub = Crypto.publicKeyFromBytes(pubBytes);
-            log("Received server public key (" + pubLen + " bytes).");
-            log("Recieved ASE Encrypted key");
-            System.out.println(serverPub);
-            // Generate AES key and IV
-            SecretKey aesKey = Crypto.generateAESKey();
-            byte[] aesKeyBytes = aesKey.getEncoded();
-            byte[] encAesKey = Crypto.rsaEncrypt(aesKeyBytes, serverPub);
-
-            byte[] iv = new byte[Crypto.GCM_IV_LENGTH];
-            SecureRandom sr = new SecureRandom();
-            sr.nextBytes(iv);
-
-            // Send encrypted AES key
-            out.writeInt(encAesKey.length);
-            out.write(encAesKey);
-
-            // Send IV
-            out.writeInt(iv.length);
-            out.write(iv);
-
-            // Filename
-            byte[] fnameBytes = selectedFile.getName().getBytes("UTF-8");
-            out.writeInt(fnameBytes.length);
-            out.write(fnameBytes);
-
-            long originalSize = selectedFile.length();
-            long encryptedSize = originalSize + Crypto.GCM_TAG_LENGTH; // GCM tag appended
-
-            out.writeLong(originalSize);
-            out.writeLong(encryptedSize);
-            out.flush();
-
-            log("Sending file: " + selectedFile.getName() + " (" + originalSize + " bytes)");
-
-            // Stream file encrypted with AES/GCM
-            Cipher encryptCipher = Crypto.createAESCipher(Cipher.ENCRYPT_MODE, aesKey, iv);
-
-            try (FileInputStream fis = new FileInputStream(selectedFile);
-                 CipherOutputStream cos = new CipherOutputStream(out, encryptCipher)) {
-
-                byte[] buf = new byte[8192];
-                long total = 0;
-                int r;
-                while ((r = fis.read(buf)) != -1) {
-                    cos.write(buf, 0, r);
-                    total += r;
-                    final int pct = (int)((total * 100) / originalSize);
-                    SwingUtilities.invokeLater(() -> progressBar.setValue(pct));
-                }
-                cos.flush(); // important to ensure GCM tag is written
-            }
-
-            out.flush();
-            log("Upload complete.");
-            SwingUtilities.invokeLater(() -> progressBar.setValue(100));
-        }
-    }
-
     private void log(String s) {
-        SwingUtilities.invokeLater(() -> {
-            statusArea.append(s + "\n");
-            statusArea.setCaretPosition(statusArea.getDocument().getLength());
-        });
-        System.out.println("[CLIENT] " + s);
+        events.log(s);
     }
 
     public static void main(String[] args) {
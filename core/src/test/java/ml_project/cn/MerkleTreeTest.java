@@ -0,0 +1,141 @@
+package ml_project.cn;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MerkleTreeTest {
+    private static final int BLOCK = MerkleTree.BLOCK_SIZE;
+
+    @TempDir File dir;
+
+    @Test
+    void emptyFileIsOneEmptyLeaf() throws IOException {
+        // RFC 6962 hash of an empty leaf: SHA-256(0x00)
+        String empty = "6e340b9cffb37a989ca544e6bb780a2c78901d3fb33738768511a30617afa01d";
+        assertEquals(empty, MerkleTree.hex(MerkleTree.of(new byte[0], 0, 0).root()));
+        assertEquals(empty, MerkleTree.hex(MerkleTree.build(write(new byte[0])).root()));
+        assertEquals(1, MerkleTree.of(new byte[0], 0, 0).blockCount());
+    }
+
+    @Test
+    void rootSplitsAtTheLargestPowerOfTwoBelowTheLeafCount() throws IOException {
+        byte[] data = SegmentedAeadTest.random(4 * BLOCK + 100, 500);
+        byte[][] leaf = new byte[5][];
+        for (int i = 0; i < 5; i++) leaf[i] = leaf(Arrays.copyOfRange(data, i * BLOCK, Math.min(data.length, (i + 1) * BLOCK)));
+        byte[] expected = node(node(node(leaf[0], leaf[1]), node(leaf[2], leaf[3])), leaf[4]);
+
+        MerkleTree tree = MerkleTree.of(data, 0, data.length);
+        assertEquals(5, tree.blockCount());
+        assertArrayEquals(expected, tree.root());
+        assertArrayEquals(expected, MerkleTree.build(write(data)).root());
+
+        byte[] three = Arrays.copyOf(data, 2 * BLOCK + 1);
+        assertArrayEquals(node(node(leaf[0], leaf[1]), leaf(new byte[] {data[2 * BLOCK]})), MerkleTree.of(three, 0, three.length).root());
+    }
+
+    @Test
+    void fileStreamAndMemoryAgreeAroundBlockBoundaries() throws IOException {
+        for (int size : new int[] {1, BLOCK - 1, BLOCK, BLOCK + 1, 3 * BLOCK}) {
+            byte[] data = SegmentedAeadTest.random(size, size);
+            byte[] root = MerkleTree.of(data, 0, size).root();
+            assertArrayEquals(root, MerkleTree.build(write(data)).root(), "file of " + size);
+            assertArrayEquals(root, MerkleTree.read(new ByteArrayInputStream(data), size).root(), "stream of " + size);
+            assertEquals(size, MerkleTree.read(new ByteArrayInputStream(data), size).size());
+        }
+    }
+
+    @Test
+    void streamOfTheWrongLengthIsRejected() {
+        byte[] data = SegmentedAeadTest.random(BLOCK + 10, 501);
+        assertThrows(EOFException.class, () -> MerkleTree.read(new ByteArrayInputStream(data), data.length + 1));
+        assertThrows(IOException.class, () -> MerkleTree.read(new ByteArrayInputStream(data), data.length - 1));
+    }
+
+    @Test
+    void builderHashesInOrderBlocksAndReadsBackTheRest() throws IOException {
+        int chunk = SegmentedAead.SEGMENT_SIZE;
+        byte[] data = SegmentedAeadTest.random(4 * BLOCK + 100, 504);
+        MerkleTree.Builder builder = new MerkleTree.Builder(data.length);
+        for (int block : new int[] {3, 0, 1}) feed(builder, data, block * BLOCK, (block + 1) * BLOCK, chunk);
+        // Block 2 starts arriving in the middle (split between two streams), block 4 is written again
+        feed(builder, data, 2 * BLOCK + chunk, 3 * BLOCK, chunk);
+        feed(builder, data, 2 * BLOCK, 2 * BLOCK + chunk, chunk);
+        feed(builder, data, 4 * BLOCK, data.length, chunk);
+        builder.invalidate(4 * BLOCK + 10, data.length);
+        assertEquals(2, builder.pendingBlocks());
+
+        MerkleTree tree = builder.finish((position, b, off, len) -> {
+            int block = (int) (position / BLOCK);
+            assertTrue(block == 2 || block == 4, "block " + block + " was hashed already");
+            int n = (int) Math.min(len, data.length - position);
+            System.arraycopy(data, (int) position, b, off, n);
+            return n;
+        });
+        assertArrayEquals(MerkleTree.of(data, 0, data.length).root(), tree.root());
+        assertEquals(data.length, tree.size());
+    }
+
+    @Test
+    void anyChangedByteChangesTheRootAndNamesItsBlock() {
+        byte[] data = SegmentedAeadTest.random(4 * BLOCK, 502);
+        MerkleTree expected = MerkleTree.of(data, 0, data.length);
+        byte[] changed = data.clone();
+        changed[2 * BLOCK + 12345] ^= 1;
+        MerkleTree actual = MerkleTree.of(changed, 0, changed.length);
+        assertFalse(actual.rootEquals(expected.root()));
+        assertEquals(List.of(2), expected.differingBlocks(actual));
+        assertEquals(List.of(), expected.differingBlocks(MerkleTree.of(data.clone(), 0, data.length)));
+
+        // A shorter file differs in its now partial last block and in every block it lost
+        MerkleTree shorter = MerkleTree.of(data, 0, 2 * BLOCK + 1);
+        assertEquals(List.of(2, 3), expected.differingBlocks(shorter));
+    }
+
+    @Test
+    void sidecarRoundTripsAndRejectsDamage() throws IOException {
+        byte[] data = SegmentedAeadTest.random(2 * BLOCK + 7, 503);
+        MerkleTree tree = MerkleTree.of(data, 0, data.length);
+        File sidecar = MerkleTree.sidecarFor(new File(dir, "f"));
+        tree.save(sidecar);
+        MerkleTree loaded = MerkleTree.load(sidecar);
+        assertArrayEquals(tree.root(), loaded.root());
+        assertEquals(tree.size(), loaded.size());
+        assertEquals(List.of(), tree.differingBlocks(loaded));
+
+        byte[] bytes = Files.readAllBytes(sidecar.toPath());
+        bytes[bytes.length - MerkleTree.HASH_LENGTH - 1] ^= 1; // last leaf hash
+        Files.write(sidecar.toPath(), bytes);
+        assertThrows(IOException.class, () -> MerkleTree.load(sidecar));
+    }
+
+    private static void feed(MerkleTree.Builder builder, byte[] data, int from, int to, int chunk) {
+        for (int p = from; p < to; p += chunk) builder.update(p, data, p, Math.min(chunk, to - p));
+    }
+
+    private File write(byte[] data) throws IOException {
+        File f = File.createTempFile("merkle", ".bin", dir);
+        Files.write(f.toPath(), data);
+        return f;
+    }
+
+    private static byte[] leaf(byte[] block) {
+        MessageDigest sha = Chunker.sha256();
+        sha.update((byte) 0);
+        return sha.digest(block);
+    }
+
+    private static byte[] node(byte[] left, byte[] right) {
+        MessageDigest sha = Chunker.sha256();
+        sha.update((byte) 1);
+        sha.update(left);
+        return sha.digest(right);
+    }
+}
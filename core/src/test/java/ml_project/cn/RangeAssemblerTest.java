@@ -0,0 +1,167 @@
+package ml_project.cn;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangeAssemblerTest {
+    private static final int SEGMENT = SegmentedAead.SEGMENT_SIZE;
+    private static final int SEGMENTS = 5;
+    private static KeyPair server;
+    private static KeyPair otherServer;
+
+    @TempDir File dir;
+    private final SecretKey key = CipherSuite.AES_256_GCM.key(SegmentedAeadTest.random(32, 300));
+    private final byte[] iv = Crypto.randomIv();
+    private final byte[] plain = SegmentedAeadTest.random((SEGMENTS - 1) * SEGMENT + 123, 301);
+    private byte[] sealed;
+
+    @BeforeAll
+    static void keys() throws Exception {
+        server = Crypto.generateRSAKeyPair(2048);
+        otherServer = Crypto.generateRSAKeyPair(2048);
+    }
+
+    @Test
+    void restoredDecryptingUploadOnlyNeedsWhatWasMissing() throws IOException {
+        assertArrayEquals(plain, interruptAndContinue(true));
+    }
+
+    @Test
+    void restoredSpooledUploadOnlyNeedsWhatWasMissing() throws IOException {
+        assertArrayEquals(sealed(), interruptAndContinue(false));
+    }
+
+    @Test
+    void rejectsOverlappingAndOutOfBoundsRanges() throws IOException {
+        TransferSession session = session(7);
+        try (RangeAssembler assembler = assembler(session, new File(dir, "7.part"), true, null)) {
+            assertFalse(receive(assembler, 0, 2));
+            assertThrows(IOException.class, () -> receive(assembler, 1, 2));
+            assertThrows(IOException.class, () -> receive(assembler, 3, SEGMENTS));
+            assertArrayEquals(new long[] {2, SEGMENTS - 2}, assembler.missingRanges().get(0));
+        }
+    }
+
+    @Test
+    void spooledUploadIsHashedAsItArrives() throws IOException {
+        TransferSession session = session(9);
+        File target = new File(dir, "9_f.enc");
+        try (RangeAssembler assembler = new RangeAssembler(session, new ReceiveEngine(ReceiveEngine.Mode.DIRECT_BUFFER, 64 << 10, 2),
+                target, false, true, null, 0, new TransferMetrics("test", "assembler"))) {
+            assertTrue(receive(assembler, 0, SEGMENTS));
+            assertEquals(0, assembler.getTree().pendingBlocks());
+            MerkleTree tree = assembler.getTree().finish((position, b, off, len) -> {
+                throw new AssertionError("nothing to read back");
+            });
+            assertArrayEquals(MerkleTree.of(plain, 0, plain.length).root(), tree.root());
+        }
+        // Still stored as the ciphertext that arrived
+        assertArrayEquals(sealed(), Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    void checkpointCannotBeOpenedWithAnotherServerKeyOrWhenDamaged() throws IOException {
+        TransferSession session = session(8);
+        File ckpt = UploadCheckpoint.fileFor(dir, session);
+        BitSet done = new BitSet();
+        done.set(0, 2);
+        new UploadCheckpoint(ckpt, session, new File(dir, "8.part"), true, server.getPublic()).save(done);
+
+        assertThrows(IOException.class, () -> UploadCheckpoint.load(ckpt, List.of(otherServer.getPrivate()), server.getPublic(), new BitSet()));
+        // A retired key still opens it
+        assertNotNull(UploadCheckpoint.load(ckpt, List.of(otherServer.getPrivate(), server.getPrivate()), server.getPublic(), new BitSet()));
+
+        byte[] bytes = Files.readAllBytes(ckpt.toPath());
+        bytes[0] ^= 1;
+        Files.write(ckpt.toPath(), bytes);
+        assertThrows(IOException.class, () -> UploadCheckpoint.load(ckpt, List.of(server.getPrivate()), server.getPublic(), new BitSet()));
+    }
+
+    // Receives segments 0-1, breaks a stream inside 2-4, "restarts" from the checkpoint file and
+    // sends the missing range; returns the completed target
+    private byte[] interruptAndContinue(boolean decrypt) throws IOException {
+        TransferSession session = session(5);
+        File target = new File(dir, decrypt ? "5_f.part" : "5_f.enc");
+        File ckpt = UploadCheckpoint.fileFor(dir, session);
+        RangeAssembler first = assembler(session, target, decrypt,
+                new UploadCheckpoint(ckpt, session, target, decrypt, server.getPublic()));
+        assertFalse(receive(first, 0, 2));
+        byte[] range = range(2, SEGMENTS - 2);
+        assertThrows(EOFException.class, () -> first.receiveRange(header(Arrays.copyOf(range, range.length / 2)),
+                Channels.newChannel(new ByteArrayInputStream(new byte[0])), 2, SEGMENTS - 2, () -> {}));
+        first.close(); // checkpoints the incomplete upload
+        assertTrue(ckpt.isFile());
+
+        BitSet done = new BitSet();
+        UploadCheckpoint restored = UploadCheckpoint.load(ckpt, List.of(server.getPrivate()), server.getPublic(), done);
+        TransferSession again = restored.getSession();
+        assertEquals(session.getId(), again.getId());
+        assertEquals(session.getFileName(), again.getFileName());
+        assertEquals(session.getOriginalSize(), again.getOriginalSize());
+        assertArrayEquals(key.getEncoded(), again.getAesKey().getEncoded());
+        assertArrayEquals(iv, again.getIv());
+        assertEquals(decrypt, restored.isDecrypting());
+        assertEquals(target.getName(), restored.getTarget().getName());
+
+        try (RangeAssembler second = assembler(again, restored.getTarget(), decrypt, restored)) {
+            second.restore(done);
+            assertEquals(2, second.doneSegments());
+            List<long[]> missing = second.missingRanges();
+            assertEquals(1, missing.size());
+            assertArrayEquals(new long[] {2, SEGMENTS - 2}, missing.get(0));
+            assertTrue(receive(second, 2, SEGMENTS - 2));
+        }
+        assertFalse(ckpt.exists(), "a completed upload drops its checkpoint");
+        return Files.readAllBytes(target.toPath());
+    }
+
+    private TransferSession session(long id) {
+        return new TransferSession(id, key, iv, "f", plain.length, SegmentedAead.encryptedSize(plain.length),
+                new File(dir, id + "_f.enc"), Compression.Codec.NONE);
+    }
+
+    private RangeAssembler assembler(TransferSession session, File target, boolean decrypt, UploadCheckpoint checkpoint) throws IOException {
+        return new RangeAssembler(session, new ReceiveEngine(ReceiveEngine.Mode.DIRECT_BUFFER, 64 << 10, 2),
+                target, decrypt, false, checkpoint, 1, new TransferMetrics("test", "assembler"));
+    }
+
+    private boolean receive(RangeAssembler assembler, long first, long count) throws IOException {
+        ByteArrayInputStream raw = new ByteArrayInputStream(range(first, count));
+        return assembler.receiveRange(new ReceiveEngine.HeaderInputStream(raw), Channels.newChannel(raw), first, count, () -> {});
+    }
+
+    private static ReceiveEngine.HeaderInputStream header(byte[] data) {
+        return new ReceiveEngine.HeaderInputStream(new ByteArrayInputStream(data));
+    }
+
+    // Frames of segments [first, first + count) as the client sends them
+    private byte[] range(long first, long count) throws IOException {
+        byte[] all = sealed();
+        int from = (int) SegmentedAead.segmentOffset(first);
+        int to = (int) Math.min(all.length, SegmentedAead.segmentOffset(first + count));
+        return Arrays.copyOfRange(all, from, to);
+    }
+
+    private byte[] sealed() throws IOException {
+        if (sealed == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (OutputStream enc = new SegmentedAead.EncryptingOutputStream(out, key, iv, false)) {
+                enc.write(plain);
+            }
+            sealed = out.toByteArray();
+        }
+        return sealed;
+    }
+}
@@ -0,0 +1,88 @@
+package ml_project.cn;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangeReadTest {
+    private static final String NAME = "app.log";
+
+    @TempDir File dir;
+    private final List<String> clientLog = new CopyOnWriteArrayList<>();
+    private final byte[] plain = SegmentedAeadTest.random(3 * SegmentedAead.SEGMENT_SIZE + 11, 600);
+    private TransferServer server;
+    private TransferClient client;
+
+    @BeforeEach
+    void upload() throws Exception {
+        server = new TransferServer(new File(dir, "received"), message -> {});
+        server.setIdentityDir(new File(dir, "keys"));
+        server.setStoreAtRest(true);
+        server.start(0);
+        client = new TransferClient("127.0.0.1", server.getPort(), clientLog::add);
+        File source = new File(dir, NAME);
+        Files.write(source.toPath(), plain);
+        client.sendFile(source, 1);
+        assertTrue(new File(server.getSaveDir(), NAME + SealedFile.SUFFIX).isFile());
+    }
+
+    @AfterEach
+    void stop() {
+        server.shutdown();
+    }
+
+    @Test
+    void readsAreOffByDefault() {
+        IOException e = assertThrows(IOException.class, () -> read(readToken()));
+        assertTrue(e.getMessage().contains("disabled"), e.getMessage());
+    }
+
+    @Test
+    void readerWithoutTheFileTokenGetsAnError() throws Exception {
+        server.setServeReads(true);
+        byte[] wrong = readToken();
+        wrong[0] ^= 1;
+        IOException e = assertThrows(IOException.class, () -> read(wrong));
+        assertTrue(e.getMessage().contains("Not allowed"), e.getMessage());
+        // A file that is not there is refused the same way
+        e = assertThrows(IOException.class, () -> client.download("other.log", readToken(), 0, -1, new ByteArrayOutputStream()));
+        assertTrue(e.getMessage().contains("Not allowed"), e.getMessage());
+    }
+
+    @Test
+    void uploaderReadsWithTheLoggedToken() throws Exception {
+        server.setServeReads(true);
+        assertArrayEquals(Arrays.copyOfRange(plain, plain.length - 100, plain.length), read(readToken()));
+    }
+
+    // Tail of the stored file, read with 'token'
+    private byte[] read(byte[] token) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        client.download(NAME, token, -100, -1, out);
+        return out.toByteArray();
+    }
+
+    // The token the uploading client logged
+    private byte[] readToken() {
+        String prefix = "Read token for " + NAME + ": ";
+        for (String line : Collections.unmodifiableList(clientLog)) {
+            if (line.startsWith(prefix)) {
+                String hex = line.substring(prefix.length());
+                byte[] token = new byte[hex.length() / 2];
+                for (int i = 0; i < token.length; i++) token[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+                return token;
+            }
+        }
+        throw new AssertionError("no read token logged: " + clientLog);
+    }
+}
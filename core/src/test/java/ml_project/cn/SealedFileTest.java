@@ -0,0 +1,110 @@
+package ml_project.cn;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SealedFileTest {
+    private static final int SEGMENT = SegmentedAead.SEGMENT_SIZE;
+    private static KeyPair server;
+
+    @TempDir File dir;
+    private final SecretKey key = CipherSuite.AES_256_GCM.key(SegmentedAeadTest.random(32, 400));
+
+    @BeforeAll
+    static void keys() throws Exception {
+        server = Crypto.generateRSAKeyPair(2048);
+    }
+
+    @Test
+    void rangesAtSegmentEdges() throws IOException {
+        byte[] plain = SegmentedAeadTest.random(3 * SEGMENT + 17, 401);
+        try (SealedFile file = SealedFile.open(seal(plain), List.of(server.getPrivate()))) {
+            assertEquals(plain.length, file.getSize());
+            assertRange(plain, file, 0, 1);
+            assertRange(plain, file, SEGMENT - 1, 2);          // spans two segments
+            assertRange(plain, file, SEGMENT, SEGMENT);         // exactly one segment
+            assertRange(plain, file, SEGMENT - 5, 2 * SEGMENT + 10); // spans three
+            assertRange(plain, file, plain.length - 1, 1);      // last byte, in the short final segment
+            assertRange(plain, file, 2 * SEGMENT + 3, SEGMENT);  // backwards after reading the end
+            assertRange(plain, file, 0, plain.length);
+
+            byte[] b = new byte[100];
+            assertEquals(17, file.read(3L * SEGMENT, b, 0, b.length), "a read past the end is cut short");
+            assertEquals(-1, file.read(plain.length, b, 0, 1));
+            assertEquals(-1, file.read(plain.length + 1000L, b, 0, 1));
+            assertEquals(0, file.read(5, b, 0, 0));
+            assertThrows(IllegalArgumentException.class, () -> file.read(-1, b, 0, 1));
+        }
+    }
+
+    @Test
+    void emptyFile() throws IOException {
+        try (SealedFile file = SealedFile.open(seal(new byte[0]), List.of(server.getPrivate()))) {
+            assertEquals(0, file.getSize());
+            assertEquals(-1, file.read(0, new byte[1], 0, 1));
+        }
+    }
+
+    @Test
+    void damagedSegmentFailsOnlyItsOwnReads() throws IOException {
+        byte[] plain = SegmentedAeadTest.random(3 * SEGMENT, 402);
+        File sealed = seal(plain);
+        byte[] bytes = Files.readAllBytes(sealed.toPath());
+        bytes[(int) SegmentedAead.segmentOffset(1) + SegmentedAead.HEADER_LENGTH + 7] ^= 1;
+        Files.write(sealed.toPath(), bytes);
+        try (SealedFile file = SealedFile.open(sealed, List.of(server.getPrivate()))) {
+            assertRange(plain, file, 0, SEGMENT);
+            assertRange(plain, file, 2 * SEGMENT, SEGMENT);
+            assertThrows(IOException.class, () -> file.read(SEGMENT + 10, new byte[1], 0, 1));
+        }
+    }
+
+    @Test
+    void rejectsForeignKeyAndDamagedTrailer() throws Exception {
+        File sealed = seal(SegmentedAeadTest.random(1000, 403));
+        KeyPair other = Crypto.generateRSAKeyPair(2048);
+        assertThrows(IOException.class, () -> SealedFile.open(sealed, List.of(other.getPrivate())));
+
+        byte[] bytes = Files.readAllBytes(sealed.toPath());
+        File truncated = new File(dir, "truncated" + SealedFile.SUFFIX);
+        Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(IOException.class, () -> SealedFile.open(truncated, List.of(server.getPrivate())));
+
+        // The original size in the trailer must match the segment layout
+        bytes[(int) SegmentedAead.encryptedSize(1000) + 256 + Crypto.GCM_IV_LENGTH + 7] ^= 1;
+        File resized = new File(dir, "resized" + SealedFile.SUFFIX);
+        Files.write(resized.toPath(), bytes);
+        assertThrows(IOException.class, () -> SealedFile.open(resized, List.of(server.getPrivate())));
+    }
+
+    private static void assertRange(byte[] plain, SealedFile file, long position, int len) throws IOException {
+        byte[] b = new byte[len];
+        assertEquals(len, file.read(position, b, 0, len), "length of [" + position + ", +" + len + ")");
+        assertArrayEquals(Arrays.copyOfRange(plain, (int) position, (int) position + len), b, "bytes of [" + position + ", +" + len + ")");
+    }
+
+    // Spools 'plain' as an upload would and seals it
+    private File seal(byte[] plain) throws IOException {
+        byte[] iv = Crypto.randomIv();
+        File spool = new File(dir, "1_f.enc");
+        try (OutputStream enc = new SegmentedAead.EncryptingOutputStream(new FileOutputStream(spool), key, iv, false)) {
+            enc.write(plain);
+        }
+        TransferSession session = new TransferSession(1, key, iv, "f", plain.length, SegmentedAead.encryptedSize(plain.length),
+                spool, Compression.Codec.NONE);
+        File sealed = new File(dir, "f" + SealedFile.SUFFIX);
+        SealedFile.seal(session, server.getPublic(), sealed);
+        assertFalse(spool.exists());
+        return sealed;
+    }
+}
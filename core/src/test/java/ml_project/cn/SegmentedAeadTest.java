@@ -0,0 +1,126 @@
+package ml_project.cn;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentedAeadTest {
+    private static final int SEGMENT = SegmentedAead.SEGMENT_SIZE;
+
+    private final SecretKey key = CipherSuite.AES_256_GCM.key(random(32, 100));
+    private byte[] iv = Crypto.randomIv();
+
+    @Test
+    void roundTripsEverySizeAroundSegmentBoundaries() throws IOException {
+        for (int size : new int[] {0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT + 5}) {
+            iv = Crypto.randomIv(); // GCM refuses to seal twice under one key and nonce
+            byte[] plain = random(size, size);
+            byte[] sealed = seal(plain, false);
+            assertEquals(SegmentedAead.encryptedSize(size), sealed.length, "encrypted size of " + size);
+            assertArrayEquals(plain, open(sealed), "round trip of " + size);
+        }
+    }
+
+    @Test
+    void roundTripsCompressedSegments() throws IOException {
+        byte[] plain = new byte[2 * SEGMENT + 100];
+        Arrays.fill(plain, (byte) 'a');
+        byte[] sealed = seal(plain, true);
+        assertTrue(sealed.length < plain.length, "compressible data should shrink");
+        assertArrayEquals(plain, open(sealed));
+    }
+
+    @Test
+    void rejectsReorderedSegments() throws IOException {
+        byte[] sealed = seal(random(3 * SEGMENT, 1), false);
+        byte[] swapped = sealed.clone();
+        int frame = SegmentedAead.SEGMENT_FRAME;
+        System.arraycopy(sealed, 0, swapped, frame, frame);
+        System.arraycopy(sealed, frame, swapped, 0, frame);
+        assertThrows(IOException.class, () -> open(swapped));
+    }
+
+    @Test
+    void rejectsStreamTruncatedAtSegmentBoundary() throws IOException {
+        byte[] sealed = seal(random(2 * SEGMENT + 10, 2), false);
+        byte[] truncated = Arrays.copyOf(sealed, 2 * SegmentedAead.SEGMENT_FRAME);
+        assertThrows(EOFException.class, () -> open(truncated));
+    }
+
+    @Test
+    void rejectsStreamTruncatedInsideSegment() throws IOException {
+        byte[] sealed = seal(random(SEGMENT + 10, 3), false);
+        assertThrows(EOFException.class, () -> open(Arrays.copyOf(sealed, sealed.length - 1)));
+    }
+
+    @Test
+    void rejectsFinalFlagMovedToEarlierSegment() throws IOException {
+        byte[] sealed = seal(random(2 * SEGMENT, 4), false);
+        // Marking the first full segment final would end the stream early, dropping the rest
+        byte[] tampered = sealed.clone();
+        tampered[0] |= (byte) 0x80;
+        assertThrows(IOException.class, () -> open(tampered));
+    }
+
+    @Test
+    void rejectsFinalFlagRemovedFromLastSegment() throws IOException {
+        byte[] sealed = seal(random(SEGMENT, 5), false);
+        byte[] tampered = sealed.clone();
+        tampered[0] &= (byte) 0x7f;
+        assertThrows(IOException.class, () -> open(tampered));
+    }
+
+    @Test
+    void rejectsFlippedCiphertextAndWrongKey() throws IOException {
+        byte[] sealed = seal(random(1000, 6), false);
+        byte[] flipped = sealed.clone();
+        flipped[SegmentedAead.HEADER_LENGTH + 10] ^= 1;
+        assertThrows(IOException.class, () -> open(flipped));
+
+        SecretKey other = CipherSuite.AES_256_GCM.key(random(32, 101));
+        assertThrows(IOException.class, () -> readAll(new SegmentedAead.DecryptingInputStream(new ByteArrayInputStream(sealed), other, iv)));
+    }
+
+    @Test
+    void rejectsMalformedHeaders() {
+        assertThrows(IOException.class, () -> SegmentedAead.bodyLength(SEGMENT + 1, 0));
+        // A short segment is only allowed as the final one
+        assertThrows(IOException.class, () -> SegmentedAead.bodyLength(100, 0));
+        assertDoesNotThrow(() -> SegmentedAead.bodyLength(100 | SegmentedAead.FINAL_FLAG, 0));
+    }
+
+    @Test
+    void noncesDifferPerSegmentAndKeepTheBaseIv() {
+        assertArrayEquals(iv, SegmentedAead.segmentNonce(iv, 0));
+        assertFalse(Arrays.equals(SegmentedAead.segmentNonce(iv, 1), SegmentedAead.segmentNonce(iv, 2)));
+    }
+
+    private byte[] seal(byte[] plain, boolean compress) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream enc = new SegmentedAead.EncryptingOutputStream(out, key, iv, compress)) {
+            enc.write(plain);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] open(byte[] sealed) throws IOException {
+        return readAll(new SegmentedAead.DecryptingInputStream(new ByteArrayInputStream(sealed), key, iv));
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream is = in) {
+            return is.readAllBytes();
+        }
+    }
+
+    static byte[] random(int size, long seed) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+}
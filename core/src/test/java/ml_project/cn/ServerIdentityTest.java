@@ -0,0 +1,43 @@
+package ml_project.cn;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerIdentityTest {
+    private static final TransferListener QUIET = message -> {};
+
+    @TempDir File dir;
+
+    @Test
+    void storedPairLoadsBack() throws Exception {
+        KeyPair pair = ServerIdentity.create(dir, QUIET);
+        KeyPair loaded = ServerIdentity.loadExisting(dir, QUIET);
+        assertArrayEquals(pair.getPrivate().getEncoded(), loaded.getPrivate().getEncoded());
+        assertArrayEquals(pair.getPublic().getEncoded(), loaded.getPublic().getEncoded());
+    }
+
+    @Test
+    void pairTornByACrashIsRepairedFromThePrivateKey() throws Exception {
+        KeyPair old = ServerIdentity.create(dir, QUIET);
+        byte[] oldPublic = old.getPublic().getEncoded();
+        // As if store() of a new pair died between its two writes
+        KeyPair pair = Crypto.generateRSAKeyPair(2048);
+        ServerIdentity.store(pair, dir);
+        File pub = new File(dir, ServerIdentity.PUBLIC_KEY_FILE);
+        Files.write(pub.toPath(), oldPublic);
+
+        KeyPair loaded = ServerIdentity.loadExisting(dir, QUIET);
+        assertArrayEquals(pair.getPrivate().getEncoded(), loaded.getPrivate().getEncoded());
+        assertArrayEquals(pair.getPublic().getEncoded(), loaded.getPublic().getEncoded());
+        assertArrayEquals(pair.getPublic().getEncoded(), Files.readAllBytes(pub.toPath()));
+
+        assertTrue(pub.delete());
+        assertArrayEquals(pair.getPublic().getEncoded(), ServerIdentity.loadExisting(dir, QUIET).getPublic().getEncoded());
+    }
+}
@@ -0,0 +1,80 @@
+package ml_project.cn;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionTicketsTest {
+    private final SecretKey transferKey = CipherSuite.AES_256_GCM.key(SegmentedAeadTest.random(32, 200));
+    private final byte[] nonce = SegmentedAeadTest.random(SessionTickets.NONCE_LENGTH, 201);
+
+    @Test
+    void ticketRoundTripsTheResumptionSecret() throws Exception {
+        SessionTickets tickets = new SessionTickets(60_000);
+        byte[] secret = SessionTickets.resumptionSecret(transferKey);
+        assertArrayEquals(secret, tickets.open(tickets.issue(secret)));
+    }
+
+    @Test
+    void rejectsExpiredTicket() throws Exception {
+        SessionTickets tickets = new SessionTickets(-1000);
+        byte[] ticket = tickets.issue(SessionTickets.resumptionSecret(transferKey));
+        IOException e = assertThrows(IOException.class, () -> tickets.open(ticket));
+        assertTrue(e.getMessage().contains("expired"), e.getMessage());
+    }
+
+    @Test
+    void rejectsTamperedTruncatedAndForeignTickets() throws Exception {
+        SessionTickets tickets = new SessionTickets(60_000);
+        byte[] ticket = tickets.issue(SessionTickets.resumptionSecret(transferKey));
+
+        byte[] flipped = ticket.clone();
+        flipped[Crypto.GCM_IV_LENGTH + 3] ^= 1;
+        assertThrows(IOException.class, () -> tickets.open(flipped));
+        assertThrows(IOException.class, () -> tickets.open(Arrays.copyOf(ticket, ticket.length - 1)));
+        // Another server run has another ticket key
+        assertThrows(IOException.class, () -> new SessionTickets(60_000).open(ticket));
+    }
+
+    @Test
+    void bothSidesDeriveTheSameResumedKey() throws GeneralSecurityException {
+        byte[] secret = SessionTickets.resumptionSecret(transferKey);
+        SecretKey client = SessionTickets.transferKey(secret, nonce);
+        assertArrayEquals(client.getEncoded(), SessionTickets.transferKey(secret.clone(), nonce.clone()).getEncoded());
+        assertFalse(Arrays.equals(client.getEncoded(), SessionTickets.transferKey(secret, new byte[nonce.length]).getEncoded()));
+        assertFalse(Arrays.equals(client.getEncoded(), transferKey.getEncoded()));
+    }
+
+    @Test
+    void proofsAreBoundToKeyTransferNonceAndPurpose() throws GeneralSecurityException {
+        byte[] proof = SessionTickets.continueProof(transferKey, 7, nonce);
+        assertEquals(SessionTickets.PROOF_LENGTH, proof.length);
+        assertArrayEquals(proof, SessionTickets.continueProof(transferKey, 7, nonce.clone()));
+
+        SecretKey otherKey = CipherSuite.AES_256_GCM.key(SegmentedAeadTest.random(32, 202));
+        assertFalse(Arrays.equals(proof, SessionTickets.continueProof(otherKey, 7, nonce)));
+        assertFalse(Arrays.equals(proof, SessionTickets.continueProof(transferKey, 8, nonce)));
+        assertFalse(Arrays.equals(proof, SessionTickets.continueProof(transferKey, 7, new byte[nonce.length])));
+        // A continue proof cannot be replayed to join a stream, or the other way round
+        assertFalse(Arrays.equals(proof, SessionTickets.joinProof(transferKey, 7, nonce)));
+    }
+
+    @Test
+    void readProofsAreBoundToTheFileTokenAndName() throws GeneralSecurityException {
+        byte[] token = SessionTickets.readToken(transferKey);
+        assertFalse(Arrays.equals(token, SessionTickets.resumptionSecret(transferKey)));
+        byte[] proof = SessionTickets.readProof(token, "a.log", nonce);
+        assertEquals(SessionTickets.PROOF_LENGTH, proof.length);
+        assertArrayEquals(proof, SessionTickets.readProof(token.clone(), "a.log", nonce.clone()));
+
+        SecretKey otherKey = CipherSuite.AES_256_GCM.key(SegmentedAeadTest.random(32, 203));
+        assertFalse(Arrays.equals(proof, SessionTickets.readProof(SessionTickets.readToken(otherKey), "a.log", nonce)));
+        assertFalse(Arrays.equals(proof, SessionTickets.readProof(token, "b.log", nonce)));
+        assertFalse(Arrays.equals(proof, SessionTickets.readProof(token, "a.log", new byte[nonce.length])));
+    }
+}